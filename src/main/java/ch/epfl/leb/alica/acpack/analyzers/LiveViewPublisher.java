@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers;
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.process.ImageProcessor;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Shows the latest image of an analyzer in a live view window.
+ *
+ * The analysis thread hands over its images with publish(), which only
+ * replaces the pending image and never blocks. A Swing timer draws the
+ * pending image on the event dispatch thread at most maxFps times per
+ * second, so images published in between are never drawn. The timer only
+ * runs while the live view is enabled.
+ *
+ * Published images and overlays are drawn later and must not be modified
+ * by the analyzer afterwards.
+ */
+public class LiveViewPublisher {
+
+    /**
+     * The default maximum refresh rate of the window.
+     */
+    public static final double DEFAULT_MAX_FPS = 10;
+
+    private final ImagePlus view;
+
+    private final Timer timer;
+
+    /**
+     * The image waiting to be drawn, or null.
+     */
+    private final AtomicReference<Snapshot> pending = new AtomicReference<>();
+
+    private volatile boolean enabled = false;
+
+    /**
+     * An image and its overlay.
+     */
+    private static class Snapshot {
+        final ImageProcessor ip;
+        final Overlay overlay;
+
+        Snapshot(ImageProcessor ip, Overlay overlay) {
+            this.ip = ip;
+            this.overlay = overlay;
+        }
+    }
+
+    /**
+     * Initializes the publisher with the live view disabled.
+     *
+     * @param title title of the live view window
+     * @param maxFps maximum number of redraws per second
+     */
+    public LiveViewPublisher(String title, double maxFps) {
+        view = new ImagePlus(title);
+        timer = new Timer(delayMs(maxFps), new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                draw();
+            }
+        });
+        timer.setCoalesce(true);
+    }
+
+    /**
+     * Hands over the latest image of the analyzer; it replaces any image
+     * that has not been drawn yet. Does nothing if the live view is off.
+     *
+     * @param ip image to show
+     * @param overlay overlay of the image, or null for none
+     */
+    public void publish(ImageProcessor ip, Overlay overlay) {
+        if (enabled) {
+            pending.set(new Snapshot(ip, overlay));
+        }
+    }
+
+    /**
+     * Turns the live view on or off; turning it off hides the window.
+     *
+     * @param enabled true to show published images
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) {
+            timer.start();
+        } else {
+            timer.stop();
+            pending.set(null);
+            hide();
+        }
+    }
+
+    /**
+     * @return true if published images are shown
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the maximum refresh rate of the window.
+     *
+     * @param maxFps maximum number of redraws per second
+     */
+    public void setMaxFps(double maxFps) {
+        int delay = delayMs(maxFps);
+        timer.setDelay(delay);
+        timer.setInitialDelay(delay);
+    }
+
+    /**
+     * Stops the live view and closes the window.
+     */
+    public void dispose() {
+        setEnabled(false);
+    }
+
+    private static int delayMs(double maxFps) {
+        if (!(maxFps > 0)) {
+            String msg = "maxFps must be positive. Received: " +
+                         String.valueOf(maxFps);
+            throw new IllegalArgumentException(msg);
+        }
+        return (int) Math.max(1, Math.round(1000 / maxFps));
+    }
+
+    /**
+     * Draws the pending image; runs on the event dispatch thread.
+     */
+    private void draw() {
+        Snapshot snapshot = pending.getAndSet(null);
+        if (snapshot == null || !enabled) {
+            return;
+        }
+        view.setProcessor(snapshot.ip);
+        view.setOverlay(snapshot.overlay);
+        view.updateAndDraw();
+        if (!view.isVisible()) {
+            view.show();
+        }
+    }
+
+    private void hide() {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                view.hide();
+            }
+        });
+    }
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.NoLocalCountMapException;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+/**
+ * A DEFCoN predictor that runs the network on batches of frames.
+ *
+ * All frames of a batch are stacked into one input tensor, so TensorFlow
+ * runs the network once per batch instead of once per frame. The network
+ * normalizes each frame separately, so the density maps are the same as
+ * for single frames. All frames of a batch must have the same size.
+ *
+ * The Predictor methods refer to the frame chosen with selectFrame(), which
+ * is the first frame after each prediction. The input and output buffers are
+ * kept between batches and only grow with the batch or frame size; the input
+ * buffer is direct so that it is copied into the input tensor without
+ * passing through the Java heap. Models are shared with other predictors
+ * through the ModelCache.
+ */
+public class BatchPredictor implements DirectPredictor {
+
+    /**
+     * The name of the input tensor of the DEFCoN network.
+     */
+    static final String INPUT_TENSOR = "input_tensor";
+
+    /**
+     * The name of the output tensor of the DEFCoN network.
+     */
+    static final String OUTPUT_TENSOR = "output_tensor";
+
+    /**
+     * The tag of the network graph in the saved model.
+     */
+    static final String MODEL_TAG = "serve";
+
+    /**
+     * The maximum number of frames per batch.
+     */
+    private final int maxBatchSize;
+
+    /**
+     * The serialized session options, or null for the defaults.
+     */
+    private final byte[] sessionConfig;
+
+    /**
+     * The session of the model, or null before setup or after closing.
+     */
+    private Session session;
+
+    /**
+     * The path of the saved model, used to release it from the cache.
+     */
+    private String modelPath;
+
+    /**
+     * The stacked input frames.
+     */
+    private FloatBuffer input = allocateDirect(0);
+
+    /**
+     * The stacked density maps of the last batch.
+     */
+    private float[] output = new float[0];
+
+    /**
+     * A view of the output array that the output tensor is written to.
+     */
+    private FloatBuffer outputBuffer = FloatBuffer.wrap(output);
+
+    /**
+     * The local count map of the selected frame.
+     */
+    private float[] localCounts = new float[0];
+
+    /**
+     * The size of the density maps of the last batch.
+     */
+    private int mapWidth = 0;
+    private int mapHeight = 0;
+
+    /**
+     * The number of frames in the last batch.
+     */
+    private int batchSize = 0;
+
+    /**
+     * The frame that the Predictor methods refer to.
+     */
+    private int selected = 0;
+
+    /**
+     * Is the local count map up to date for the selected frame?
+     */
+    private boolean localCountsValid = false;
+
+    /**
+     * The summed-area table of the selected frame's density map.
+     */
+    private final SummedAreaTable table = new SummedAreaTable();
+
+    /**
+     * Is the summed-area table up to date for the selected frame?
+     */
+    private boolean tableValid = false;
+
+    /**
+     * Initializes the predictor; call setup() to load a model.
+     *
+     * @param maxBatchSize The maximum number of frames per batch.
+     */
+    public BatchPredictor(int maxBatchSize) {
+        this(maxBatchSize, null);
+    }
+
+    /**
+     * Initializes the predictor with the given TensorFlow session options;
+     * call setup() to load a model.
+     *
+     * @param maxBatchSize The maximum number of frames per batch.
+     * @param sessionConfig The serialized ConfigProto of the session, or null
+     *                      for the default options.
+     */
+    public BatchPredictor(int maxBatchSize, byte[] sessionConfig) {
+        if (maxBatchSize < 1) {
+            String msg = "maxBatchSize must be at least 1. Received: " +
+                         String.valueOf(maxBatchSize);
+            throw new IllegalArgumentException(msg);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.sessionConfig = sessionConfig;
+    }
+
+    /**
+     * Loads the saved DEFCoN model, or shares it if it is already loaded.
+     *
+     * @param pathToModel The path to the saved model directory.
+     */
+    @Override
+    public void setup(String pathToModel) {
+        close();
+        session = ModelCache.acquire(pathToModel, sessionConfig);
+        modelPath = pathToModel;
+    }
+
+    /**
+     * Releases the model and the input buffer; the TensorFlow session is
+     * closed if no other predictor uses it.
+     */
+    @Override
+    public void close() {
+        if (session != null) {
+            session = null;
+            ModelCache.release(modelPath, sessionConfig);
+        }
+        NativeResources.release(4L * input.capacity());
+        input = allocateDirect(0);
+        batchSize = 0;
+    }
+    
+    /**
+     * Replaces the input buffer by a larger one.
+     */
+    private void growInput(int capacity) {
+        NativeResources.release(4L * input.capacity());
+        input = allocateDirect(capacity);
+        NativeResources.reserve(4L * capacity);
+    }
+
+    /**
+     * Predicts the density map of a single frame.
+     *
+     * @param ip The 8-bit or 16-bit frame.
+     * @throws ImageBitDepthException If the frame is not 8-bit or 16-bit.
+     * @throws SessionClosedException If no model is loaded.
+     */
+    @Override
+    public void predict(ImageProcessor ip)
+            throws ImageBitDepthException, SessionClosedException {
+        predict(new ImageProcessor[] {ip}, 1);
+    }
+
+    /**
+     * Predicts the density maps of a batch of frames and selects the first.
+     *
+     * @param frames The 8-bit or 16-bit frames, all of the same size.
+     * @param n The number of frames to use from the array.
+     * @throws ImageBitDepthException If a frame is not 8-bit or 16-bit.
+     * @throws SessionClosedException If no model is loaded.
+     */
+    public void predict(ImageProcessor[] frames, int n)
+            throws ImageBitDepthException, SessionClosedException {
+        if (session == null) {
+            throw new SessionClosedException("The predictor is not set up.");
+        }
+        if (n < 1 || n > maxBatchSize || n > frames.length) {
+            String msg = "Invalid batch size: " + String.valueOf(n);
+            throw new IllegalArgumentException(msg);
+        }
+
+        int width = frames[0].getWidth();
+        int height = frames[0].getHeight();
+        int frameSize = width * height;
+        if (input.capacity() < n * frameSize) {
+            growInput(maxBatchSize * frameSize);
+        }
+        input.clear();
+        for (int f = 0; f < n; f++) {
+            ImageProcessor ip = frames[f];
+            if (ip.getWidth() != width || ip.getHeight() != height) {
+                throw new IllegalArgumentException(
+                        "All frames of a batch must have the same size.");
+            }
+            putRegion(ip.getPixels(), width, 0, 0, width, height, input);
+        }
+        input.flip();
+        run(n, width, height);
+    }
+
+    /**
+     * Predicts the density map of a region of a frame without copying the
+     * frame first.
+     *
+     * @param pixels The short[] or byte[] pixels of the frame.
+     * @param width The width of the frame.
+     * @param height The height of the frame.
+     * @param region The region to analyze, or null for the whole frame.
+     * @throws ImageBitDepthException If the frame is not 8-bit or 16-bit.
+     * @throws SessionClosedException If no model is loaded.
+     */
+    @Override
+    public void predict(Object pixels, int width, int height, Rectangle region)
+            throws ImageBitDepthException, SessionClosedException {
+        if (session == null) {
+            throw new SessionClosedException("The predictor is not set up.");
+        }
+        Rectangle r = clip(region, width, height);
+        if (input.capacity() < r.width * r.height) {
+            growInput(maxBatchSize * r.width * r.height);
+        }
+        input.clear();
+        putRegion(pixels, width, r.x, r.y, r.width, r.height, input);
+        input.flip();
+        run(1, r.width, r.height);
+    }
+
+    @Override
+    public void buildSummedAreaTable(SummedAreaTable table)
+            throws UninitializedPredictorException {
+        checkInitialized();
+        table.build(output, selected * mapWidth * mapHeight, mapWidth, mapHeight);
+    }
+
+    /**
+     * Runs the network on the frames in the input buffer.
+     */
+    private void run(int n, int width, int height) {
+        long[] shape = {n, height, width, 1};
+        try (Tensor<Float> in = Tensor.create(shape, input)) {
+            List<Tensor<?>> results = session.runner()
+                                            .feed(INPUT_TENSOR, in)
+                                            .fetch(OUTPUT_TENSOR)
+                                            .run();
+            try (Tensor<?> out = results.get(0)) {
+                long[] outShape = out.shape();
+                mapHeight = (int) outShape[1];
+                mapWidth = (int) outShape[2];
+                int size = out.numElements();
+                if (output.length < size) {
+                    output = new float[size];
+                    outputBuffer = FloatBuffer.wrap(output);
+                }
+                outputBuffer.clear();
+                outputBuffer.limit(size);
+                out.writeTo(outputBuffer);
+            }
+        }
+        batchSize = n;
+        selectFrame(0);
+    }
+
+    /**
+     * Selects the frame of the last batch that the Predictor methods refer to.
+     *
+     * @param i The index of the frame within the batch.
+     */
+    public void selectFrame(int i) {
+        if (i < 0 || i >= batchSize) {
+            String msg = "No frame " + String.valueOf(i) + " in the batch.";
+            throw new IndexOutOfBoundsException(msg);
+        }
+        selected = i;
+        localCountsValid = false;
+        tableValid = false;
+    }
+
+    /**
+     * Returns the number of frames of the last batch.
+     *
+     * @return The number of frames of the last batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public double getCount() throws UninitializedPredictorException {
+        checkInitialized();
+        int size = mapWidth * mapHeight;
+        int offset = selected * size;
+        double count = 0;
+        for (int k = 0; k < size; k++) {
+            count += output[offset + k];
+        }
+        return count;
+    }
+
+    @Override
+    public FloatProcessor getDensityMap() throws UninitializedPredictorException {
+        checkInitialized();
+        int size = mapWidth * mapHeight;
+        float[] map = new float[size];
+        System.arraycopy(output, selected * size, map, 0, size);
+        return new FloatProcessor(mapWidth, mapHeight, map);
+    }
+
+    @Override
+    public FloatProcessor getLocalCountMap() throws NoLocalCountMapException {
+        if (!localCountsValid) {
+            throw new NoLocalCountMapException(
+                    "The maximum local count has not been computed.");
+        }
+        int size = mapWidth * mapHeight;
+        float[] map = new float[size];
+        System.arraycopy(localCounts, 0, map, 0, size);
+        return new FloatProcessor(mapWidth, mapHeight, map);
+    }
+
+    /**
+     * Returns the maximum count within a square box anywhere in the frame.
+     *
+     * The local count map holds the count within the box centered on each
+     * pixel, clipped at the frame borders. The summed-area table of the
+     * frame is built once, so further box sizes cost the same.
+     *
+     * @param boxSize The odd side length of the box in pixels.
+     * @return The maximum local count.
+     * @throws UninitializedPredictorException If nothing was predicted yet.
+     */
+    @Override
+    public double getMaximumLocalCount(int boxSize)
+            throws UninitializedPredictorException {
+        checkInitialized();
+        int size = mapWidth * mapHeight;
+        if (localCounts.length < size) {
+            localCounts = new float[size];
+        }
+        if (!tableValid) {
+            table.build(output, selected * size, mapWidth, mapHeight);
+            tableValid = true;
+        }
+        double max = table.maximumLocalCount(boxSize, localCounts);
+        localCountsValid = true;
+        return max;
+    }
+
+    private void checkInitialized() throws UninitializedPredictorException {
+        if (batchSize == 0) {
+            throw new UninitializedPredictorException(
+                    "No density map has been predicted.");
+        }
+    }
+
+    /**
+     * Allocates a direct buffer in the native byte order.
+     */
+    static FloatBuffer allocateDirect(int capacity) {
+        return ByteBuffer.allocateDirect(4 * capacity)
+                         .order(ByteOrder.nativeOrder())
+                         .asFloatBuffer();
+    }
+
+    /**
+     * Returns a region clipped to a frame, or the whole frame if the region
+     * is null.
+     */
+    static Rectangle clip(Rectangle region, int width, int height) {
+        Rectangle frame = new Rectangle(0, 0, width, height);
+        if (region == null) {
+            return frame;
+        }
+        Rectangle r = region.intersection(frame);
+        if (r.isEmpty()) {
+            throw new IllegalArgumentException("The region is outside the frame.");
+        }
+        return r;
+    }
+
+    /**
+     * Appends the pixel values of a region of a frame to the input buffer.
+     */
+    static void putRegion(Object pixels, int stride, int x0, int y0,
+                          int width, int height, FloatBuffer buffer)
+            throws ImageBitDepthException {
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int y = y0; y < y0 + height; y++) {
+                int row = y * stride;
+                for (int x = x0; x < x0 + width; x++) {
+                    buffer.put(p[row + x] & 0xffff);
+                }
+            }
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int y = y0; y < y0 + height; y++) {
+                int row = y * stride;
+                for (int x = x0; x < x0 + width; x++) {
+                    buffer.put(p[row + x] & 0xff);
+                }
+            }
+        } else {
+            throw new ImageBitDepthException(
+                    "The image must be either 16-bits or 8-bits.");
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the float variables of a TensorFlow saved model without TensorFlow.
+ *
+ * The variables are stored as a tensor bundle: an index file in the sorted
+ * string table format of LevelDB, which maps each variable name to a
+ * BundleEntryProto, and data files holding the raw little-endian values.
+ * Only uncompressed tables and unpartitioned float variables are supported,
+ * which is what TensorFlow writes for the DEFCoN models.
+ */
+final class CheckpointReader {
+
+    /**
+     * The magic number at the end of a sorted string table.
+     */
+    private static final long TABLE_MAGIC = 0xdb4775248b80fb57L;
+
+    /**
+     * The size of the footer of a sorted string table.
+     */
+    private static final int FOOTER_SIZE = 48;
+
+    /**
+     * The size of the trailer after each block: compression type and CRC.
+     */
+    private static final int BLOCK_TRAILER_SIZE = 5;
+
+    /**
+     * DataType.DT_FLOAT.
+     */
+    private static final int DT_FLOAT = 1;
+
+    /**
+     * A variable of the model.
+     */
+    static final class Variable {
+        final int[] shape;
+        final float[] values;
+
+        Variable(int[] shape, float[] values) {
+            this.shape = shape;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Where a variable is stored in the data files.
+     */
+    private static final class Entry {
+        int dtype = 0;
+        List<Integer> shape = new ArrayList<>();
+        int shard = 0;
+        long offset = 0;
+        long size = 0;
+    }
+
+    private CheckpointReader() {
+    }
+
+    /**
+     * Reads all variables of a saved model.
+     *
+     * @param pathToModel The path to the saved model directory.
+     * @return The variables by name.
+     * @throws IOException If the files cannot be read or are not supported.
+     */
+    static Map<String, Variable> read(String pathToModel) throws IOException {
+        File prefix = new File(new File(pathToModel, "variables"), "variables");
+        byte[] index = Files.readAllBytes(new File(prefix.getPath() + ".index").toPath());
+
+        Map<String, Entry> entries = new HashMap<>();
+        int numShards = 1;
+        for (Map.Entry<String, byte[]> kv : readTable(index).entrySet()) {
+            if (kv.getKey().isEmpty()) {
+                // The header holds the number of shards in field 1.
+                ByteBuffer header = ByteBuffer.wrap(kv.getValue());
+                while (header.hasRemaining()) {
+                    int tag = (int) readVarint(header);
+                    if (tag == (1 << 3)) {
+                        numShards = (int) readVarint(header);
+                    } else {
+                        skipField(header, tag);
+                    }
+                }
+            } else {
+                entries.put(kv.getKey(), parseEntry(kv.getValue()));
+            }
+        }
+
+        Map<String, Variable> variables = new HashMap<>();
+        for (int shard = 0; shard < numShards; shard++) {
+            String name = String.format("%s.data-%05d-of-%05d", prefix.getPath(),
+                                        shard, numShards);
+            try (RandomAccessFile data = new RandomAccessFile(name, "r")) {
+                for (Map.Entry<String, Entry> kv : entries.entrySet()) {
+                    Entry entry = kv.getValue();
+                    if (entry.shard != shard) {
+                        continue;
+                    }
+                    variables.put(kv.getKey(), readVariable(kv.getKey(), entry, data));
+                }
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * Reads the values of a float variable from a data file.
+     */
+    private static Variable readVariable(String name, Entry entry,
+                                         RandomAccessFile data) throws IOException {
+        if (entry.dtype != DT_FLOAT) {
+            throw new IOException("Variable " + name + " is not a float tensor.");
+        }
+        int[] shape = new int[entry.shape.size()];
+        long count = 1;
+        for (int d = 0; d < shape.length; d++) {
+            shape[d] = entry.shape.get(d);
+            count *= shape[d];
+        }
+        if (entry.size != 4 * count) {
+            throw new IOException("Variable " + name + " has an unexpected size.");
+        }
+        byte[] bytes = new byte[(int) entry.size];
+        data.seek(entry.offset);
+        data.readFully(bytes);
+        float[] values = new float[(int) count];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+        return new Variable(shape, values);
+    }
+
+    /**
+     * Parses a BundleEntryProto.
+     */
+    private static Entry parseEntry(byte[] value) throws IOException {
+        Entry entry = new Entry();
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        while (buffer.hasRemaining()) {
+            int tag = (int) readVarint(buffer);
+            switch (tag) {
+                case (1 << 3):
+                    entry.dtype = (int) readVarint(buffer);
+                    break;
+                case (2 << 3) | 2:
+                    parseShape(readBytes(buffer), entry.shape);
+                    break;
+                case (3 << 3):
+                    entry.shard = (int) readVarint(buffer);
+                    break;
+                case (4 << 3):
+                    entry.offset = readVarint(buffer);
+                    break;
+                case (5 << 3):
+                    entry.size = readVarint(buffer);
+                    break;
+                case (7 << 3) | 2:
+                    throw new IOException("Partitioned variables are not supported.");
+                default:
+                    skipField(buffer, tag);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Parses the dimensions of a TensorShapeProto.
+     */
+    private static void parseShape(ByteBuffer buffer, List<Integer> shape)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int tag = (int) readVarint(buffer);
+            if (tag == ((2 << 3) | 2)) {
+                ByteBuffer dim = readBytes(buffer);
+                long size = 0;
+                while (dim.hasRemaining()) {
+                    int dimTag = (int) readVarint(dim);
+                    if (dimTag == (1 << 3)) {
+                        size = readVarint(dim);
+                    } else {
+                        skipField(dim, dimTag);
+                    }
+                }
+                shape.add((int) size);
+            } else {
+                skipField(buffer, tag);
+            }
+        }
+    }
+
+    /**
+     * Returns all keys and values of a sorted string table.
+     */
+    private static Map<String, byte[]> readTable(byte[] table) throws IOException {
+        if (table.length < FOOTER_SIZE) {
+            throw new IOException("The variable index is truncated.");
+        }
+        ByteBuffer footer = ByteBuffer.wrap(table, table.length - FOOTER_SIZE,
+                                            FOOTER_SIZE).slice();
+        if (footer.order(ByteOrder.LITTLE_ENDIAN).getLong(FOOTER_SIZE - 8) != TABLE_MAGIC) {
+            throw new IOException("The variable index is not a sorted string table.");
+        }
+        readVarint(footer);  // metaindex offset
+        readVarint(footer);  // metaindex size
+        int indexOffset = (int) readVarint(footer);
+        int indexSize = (int) readVarint(footer);
+
+        Map<String, byte[]> result = new HashMap<>();
+        for (byte[] handle : readBlock(table, indexOffset, indexSize).values()) {
+            ByteBuffer buffer = ByteBuffer.wrap(handle);
+            int offset = (int) readVarint(buffer);
+            int size = (int) readVarint(buffer);
+            result.putAll(readBlock(table, offset, size));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the keys and values of a block of a sorted string table.
+     */
+    private static Map<String, byte[]> readBlock(byte[] table, int offset, int size)
+            throws IOException {
+        if (offset + size + BLOCK_TRAILER_SIZE > table.length) {
+            throw new IOException("The variable index is truncated.");
+        }
+        if (table[offset + size] != 0) {
+            throw new IOException("Compressed variable indices are not supported.");
+        }
+        ByteBuffer block = ByteBuffer.wrap(table, offset, size).slice()
+                                     .order(ByteOrder.LITTLE_ENDIAN);
+        int numRestarts = block.getInt(size - 4);
+        block.limit(size - 4 - 4 * numRestarts);
+
+        Map<String, byte[]> entries = new HashMap<>();
+        byte[] key = new byte[0];
+        while (block.hasRemaining()) {
+            int shared = (int) readVarint(block);
+            int unshared = (int) readVarint(block);
+            int valueLength = (int) readVarint(block);
+            byte[] next = new byte[shared + unshared];
+            System.arraycopy(key, 0, next, 0, shared);
+            block.get(next, shared, unshared);
+            key = next;
+            byte[] value = new byte[valueLength];
+            block.get(value);
+            entries.put(new String(key, StandardCharsets.UTF_8), value);
+        }
+        return entries;
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Truncated varint in the variable index.");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in the variable index.");
+    }
+
+    private static ByteBuffer readBytes(ByteBuffer buffer) throws IOException {
+        int length = (int) readVarint(buffer);
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        return bytes;
+    }
+
+    private static void skipField(ByteBuffer buffer, int tag) throws IOException {
+        switch (tag & 7) {
+            case 0:
+                readVarint(buffer);
+                break;
+            case 1:
+                buffer.position(buffer.position() + 8);
+                break;
+            case 2:
+                readBytes(buffer);
+                break;
+            case 5:
+                buffer.position(buffer.position() + 4);
+                break;
+            default:
+                throw new IOException("Unsupported protocol buffer wire type.");
+        }
+    }
+}
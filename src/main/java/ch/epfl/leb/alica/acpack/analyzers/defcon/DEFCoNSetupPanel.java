@@ -57,7 +57,25 @@ public class DEFCoNSetupPanel extends AnalyzerSetupPanel {
     @Override
     public Analyzer initAnalyzer() {
         String modelPath = textModelPath.getText();
-        return new Defcon(modelPath);
+        DefconConfig config = new DefconConfig();
+        config.shareModel = cbShareModel.isSelected();
+        config.directInput = cbDirectInput.isSelected();
+        config.javaInference = cbJavaInference.isSelected();
+        config.warmupWidth = Integer.parseInt(textWarmupWidth.getText());
+        config.warmupHeight = Integer.parseInt(textWarmupHeight.getText());
+        config.asynchronous = cbAsynchronous.isSelected();
+        config.queueCapacity = Integer.parseInt(textQueueCapacity.getText());
+        config.batchSize = Integer.parseInt(textBatchSize.getText());
+        config.batchTimeoutMs = Long.parseLong(textBatchTimeout.getText());
+        config.tileSize = Integer.parseInt(textTileSize.getText());
+        config.tileThreads = Integer.parseInt(textTileThreads.getText());
+        config.frameStride = Integer.parseInt(textFrameStride.getText());
+        config.inferenceBudgetMs = Long.parseLong(textInferenceBudget.getText());
+        config.intraOpThreads = Integer.parseInt(textIntraOpThreads.getText());
+        config.interOpThreads = Integer.parseInt(textInterOpThreads.getText());
+        config.optimizeGraph = cbOptimizeGraph.isSelected();
+        config.poolSize = Integer.parseInt(textPoolSize.getText());
+        return new Defcon(modelPath, config);
     }
     
     /**
@@ -68,17 +86,116 @@ public class DEFCoNSetupPanel extends AnalyzerSetupPanel {
     @SuppressWarnings("unchecked")
     // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
     private void initComponents() {
-
         labelNetworkModel = new javax.swing.JLabel();
         textModelPath = new javax.swing.JTextField();
+        cbShareModel = new javax.swing.JCheckBox();
+        cbDirectInput = new javax.swing.JCheckBox();
+        cbJavaInference = new javax.swing.JCheckBox();
+        labelWarmupWidth = new javax.swing.JLabel();
+        textWarmupWidth = new javax.swing.JTextField();
+        labelWarmupHeight = new javax.swing.JLabel();
+        textWarmupHeight = new javax.swing.JTextField();
+        cbAsynchronous = new javax.swing.JCheckBox();
+        labelQueueCapacity = new javax.swing.JLabel();
+        textQueueCapacity = new javax.swing.JTextField();
+        labelBatchSize = new javax.swing.JLabel();
+        textBatchSize = new javax.swing.JTextField();
+        labelBatchTimeout = new javax.swing.JLabel();
+        textBatchTimeout = new javax.swing.JTextField();
+        labelTileSize = new javax.swing.JLabel();
+        textTileSize = new javax.swing.JTextField();
+        labelTileThreads = new javax.swing.JLabel();
+        textTileThreads = new javax.swing.JTextField();
+        labelFrameStride = new javax.swing.JLabel();
+        textFrameStride = new javax.swing.JTextField();
+        labelInferenceBudget = new javax.swing.JLabel();
+        textInferenceBudget = new javax.swing.JTextField();
+        labelIntraOpThreads = new javax.swing.JLabel();
+        textIntraOpThreads = new javax.swing.JTextField();
+        labelInterOpThreads = new javax.swing.JLabel();
+        textInterOpThreads = new javax.swing.JTextField();
+        cbOptimizeGraph = new javax.swing.JCheckBox();
+        labelPoolSize = new javax.swing.JLabel();
+        textPoolSize = new javax.swing.JTextField();
 
-        setPreferredSize(new java.awt.Dimension(150, 150));
+        setPreferredSize(new java.awt.Dimension(150, 562));
 
         labelNetworkModel.setText("Saved network model");
 
         textModelPath.setHorizontalAlignment(javax.swing.JTextField.LEFT);
         textModelPath.setText("/path/to/model");
 
+        cbShareModel.setText("Share loaded model");
+
+        cbDirectInput.setText("Direct input");
+
+        cbJavaInference.setText("Pure Java inference");
+
+        labelWarmupWidth.setText("Warm-up width (0: off)");
+
+        textWarmupWidth.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textWarmupWidth.setText("0");
+
+        labelWarmupHeight.setText("Warm-up height");
+
+        textWarmupHeight.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textWarmupHeight.setText("0");
+
+        cbAsynchronous.setText("Asynchronous inference");
+
+        labelQueueCapacity.setText("Queue capacity");
+
+        textQueueCapacity.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textQueueCapacity.setText("4");
+
+        labelBatchSize.setText("Batch size");
+
+        textBatchSize.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textBatchSize.setText("1");
+
+        labelBatchTimeout.setText("Batch timeout (ms)");
+
+        textBatchTimeout.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textBatchTimeout.setText("10");
+
+        labelTileSize.setText("Tile size (0: off)");
+
+        textTileSize.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textTileSize.setText("0");
+
+        labelTileThreads.setText("Tile threads");
+
+        textTileThreads.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textTileThreads.setText("2");
+
+        labelFrameStride.setText("Infer every n-th frame");
+
+        textFrameStride.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textFrameStride.setText("1");
+
+        labelInferenceBudget.setText("Budget per tick (ms, 0: off)");
+
+        textInferenceBudget.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textInferenceBudget.setText("0");
+
+        labelIntraOpThreads.setText("Intra-op threads (0: all)");
+
+        textIntraOpThreads.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textIntraOpThreads.setText("0");
+
+        labelInterOpThreads.setText("Inter-op threads (0: all)");
+
+        textInterOpThreads.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textInterOpThreads.setText("0");
+
+        cbOptimizeGraph.setSelected(true);
+        cbOptimizeGraph.setText("Optimize graph");
+
+        labelPoolSize.setText("Predictor pool size");
+
+        textPoolSize.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
+        textPoolSize.setText("1");
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(this);
         this.setLayout(layout);
         layout.setHorizontalGroup(
@@ -86,10 +203,61 @@ public class DEFCoNSetupPanel extends AnalyzerSetupPanel {
             .addGroup(layout.createSequentialGroup()
                 .addContainerGap()
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(labelNetworkModel)
+                    .addComponent(textModelPath, javax.swing.GroupLayout.DEFAULT_SIZE, 136, Short.MAX_VALUE)
+                    .addComponent(cbShareModel)
+                    .addComponent(cbDirectInput)
+                    .addComponent(cbJavaInference)
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelWarmupWidth)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textWarmupWidth, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelWarmupHeight)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textWarmupHeight, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addComponent(cbAsynchronous)
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelQueueCapacity)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textQueueCapacity, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelBatchSize)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textBatchSize, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelBatchTimeout)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textBatchTimeout, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelTileSize)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textTileSize, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelTileThreads)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textTileThreads, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
                     .addGroup(layout.createSequentialGroup()
-                        .addComponent(labelNetworkModel)
-                        .addGap(0, 0, Short.MAX_VALUE))
-                    .addComponent(textModelPath, javax.swing.GroupLayout.DEFAULT_SIZE, 136, Short.MAX_VALUE))
+                        .addComponent(labelFrameStride)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textFrameStride, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelInferenceBudget)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textInferenceBudget, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelIntraOpThreads)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textIntraOpThreads, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelInterOpThreads)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textInterOpThreads, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addComponent(cbOptimizeGraph)
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(labelPoolSize)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(textPoolSize, javax.swing.GroupLayout.PREFERRED_SIZE, 50, javax.swing.GroupLayout.PREFERRED_SIZE)))
                 .addContainerGap())
         );
         layout.setVerticalGroup(
@@ -99,14 +267,101 @@ public class DEFCoNSetupPanel extends AnalyzerSetupPanel {
                 .addComponent(labelNetworkModel)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(textModelPath, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                .addContainerGap(100, Short.MAX_VALUE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cbShareModel)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cbDirectInput)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cbJavaInference)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelWarmupWidth)
+                    .addComponent(textWarmupWidth, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelWarmupHeight)
+                    .addComponent(textWarmupHeight, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cbAsynchronous)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelQueueCapacity)
+                    .addComponent(textQueueCapacity, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelBatchSize)
+                    .addComponent(textBatchSize, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelBatchTimeout)
+                    .addComponent(textBatchTimeout, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelTileSize)
+                    .addComponent(textTileSize, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelTileThreads)
+                    .addComponent(textTileThreads, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelFrameStride)
+                    .addComponent(textFrameStride, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelInferenceBudget)
+                    .addComponent(textInferenceBudget, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelIntraOpThreads)
+                    .addComponent(textIntraOpThreads, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelInterOpThreads)
+                    .addComponent(textInterOpThreads, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cbOptimizeGraph)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(labelPoolSize)
+                    .addComponent(textPoolSize, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
     }// </editor-fold>//GEN-END:initComponents
     
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JCheckBox cbAsynchronous;
+    private javax.swing.JCheckBox cbDirectInput;
+    private javax.swing.JCheckBox cbJavaInference;
+    private javax.swing.JCheckBox cbOptimizeGraph;
+    private javax.swing.JCheckBox cbShareModel;
+    private javax.swing.JLabel labelBatchSize;
+    private javax.swing.JLabel labelBatchTimeout;
+    private javax.swing.JLabel labelFrameStride;
+    private javax.swing.JLabel labelInferenceBudget;
+    private javax.swing.JLabel labelInterOpThreads;
+    private javax.swing.JLabel labelIntraOpThreads;
     private javax.swing.JLabel labelNetworkModel;
+    private javax.swing.JLabel labelPoolSize;
+    private javax.swing.JLabel labelQueueCapacity;
+    private javax.swing.JLabel labelTileSize;
+    private javax.swing.JLabel labelTileThreads;
+    private javax.swing.JLabel labelWarmupHeight;
+    private javax.swing.JLabel labelWarmupWidth;
+    private javax.swing.JTextField textBatchSize;
+    private javax.swing.JTextField textBatchTimeout;
+    private javax.swing.JTextField textFrameStride;
+    private javax.swing.JTextField textInferenceBudget;
+    private javax.swing.JTextField textInterOpThreads;
+    private javax.swing.JTextField textIntraOpThreads;
     private javax.swing.JTextField textModelPath;
+    private javax.swing.JTextField textPoolSize;
+    private javax.swing.JTextField textQueueCapacity;
+    private javax.swing.JTextField textTileSize;
+    private javax.swing.JTextField textTileThreads;
+    private javax.swing.JTextField textWarmupHeight;
+    private javax.swing.JTextField textWarmupWidth;
     // End of variables declaration//GEN-END:variables
 
     @Override
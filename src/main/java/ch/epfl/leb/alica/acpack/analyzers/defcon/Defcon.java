@@ -18,6 +18,7 @@
  */
 package ch.epfl.leb.alica.acpack.analyzers.defcon;
 
+import ch.epfl.leb.alica.acpack.analyzers.LiveViewPublisher;
 import ch.epfl.leb.alica.interfaces.Analyzer;
 import ch.epfl.leb.alica.interfaces.analyzers.AnalyzerStatusPanel;
 import ch.epfl.leb.defcon.predictors.Predictor;
@@ -28,21 +29,40 @@ import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
 import ch.epfl.leb.defcon.predictors.internal.DefaultPredictor;
 
 import ij.gui.Roi;
-import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
+import java.awt.Rectangle;
+import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A fluorescent spot counter derived from the DEFCoN package.
  * 
+ * The analyzer holds TensorFlow sessions and native buffers, which are
+ * released by dispose() or close(). If it is dropped without being closed,
+ * they are released after it has been garbage collected, and the inference
+ * thread of the asynchronous mode is stopped.
+ * 
  * @author Kyle M. Douglass
  * @see <a href="https://github.com/LEB-EPFL/DEFCoN-ImageJ">DEFCoN-ImageJ</a>
  */
-public class Defcon implements Analyzer {
+public class Defcon implements Analyzer, AutoCloseable {
     
     private final static Logger LOGGER = Logger.getLogger(Defcon.class.getName());
     
@@ -57,25 +77,90 @@ public class Defcon implements Analyzer {
     private double intermittentOutput = 0.0;
     
     /**
-     * The count cache. This is emptied when getBatchOutput() is called.
+     * Acquisition time of the frame of the most recent spot count.
      */
-    private List<Double> intermittentOutputs;
+    private long intermittentOutputTimeMs = -1;
+    
+    /**
+     * The runtime options of the analyzer.
+     */
+    private final DefconConfig config;
+    
+    /**
+     * Frames waiting for asynchronous inference, or null in synchronous mode.
+     */
+    private final BlockingQueue<Frame> frameQueue;
+    
+    /**
+     * The asynchronous inference thread, or null in synchronous mode.
+     */
+    private final Thread inferenceThread;
+    
+    /**
+     * The number of frames dropped because inference fell behind.
+     */
+    private final AtomicLong droppedFrames = new AtomicLong();
+    
+    /**
+     * The number of frames skipped by the frame stride or inference budget.
+     */
+    private final AtomicLong skippedFrames = new AtomicLong();
+    
+    /**
+     * Inference time spent since the last call to getBatchOutput().
+     */
+    private final AtomicLong windowInferenceNs = new AtomicLong();
+    
+    /**
+     * Frames received since the last frame passed to inference.
+     * 
+     * With a predictor pool, processImage() may be called from several
+     * threads at once.
+     */
+    private final AtomicInteger framesSinceInference = new AtomicInteger();
     
     /**
-     * Is the analyzer currently in live view mode?
+     * The count cache. This is emptied when getBatchOutput() is called.
      */
-    private boolean liveMode;
+    private List<Double> intermittentOutputs;
     
     /**
-     * A reference to the live view window.
+     * Shows the density maps in the live view window when live mode is on.
      */
-    private final ImagePlus liveView;
+    private final LiveViewPublisher liveView;
     
     /**
      * A flag indicating whether the total count or max local count is returned.
      */
     private boolean maxLocalCount;
     
+    /**
+     * The summed-area table of the most recent density map.
+     */
+    private final SummedAreaTable localCountTable = new SummedAreaTable();
+    
+    /**
+     * The local count map of the most recent frame.
+     */
+    private float[] localCountMap = new float[0];
+    
+    /**
+     * The size of the most recent local count map; zero if there is none.
+     */
+    private int localCountWidth = 0;
+    private int localCountHeight = 0;
+    
+    /**
+     * Additional box sizes whose maximum local counts are computed.
+     */
+    private int[] reportedBoxSizes = new int[0];
+    
+    /**
+     * The maximum local counts of the most recent frame for the reported
+     * box sizes.
+     */
+    private double[] maximumLocalCounts = new double[0];
+    
     /**
      * The descriptive name for this analyzer.
      */
@@ -86,6 +171,40 @@ public class Defcon implements Analyzer {
      */
     private final Predictor predictor;
     
+    /**
+     * The predictors analyzing frames concurrently, or null if there is
+     * only one predictor.
+     */
+    private final PredictorPool pool;
+    
+    /**
+     * The summed-area table of each predictor of the pool, or null if there
+     * is no pool. A table is only used by the thread leasing its predictor.
+     */
+    private final Map<Predictor, SummedAreaTable> pooledTables;
+    
+    /**
+     * The earliest time at which the predictor pool hands over a new map
+     * to the live view, from System.nanoTime().
+     */
+    private final AtomicLong nextPooledViewNs = new AtomicLong(System.nanoTime());
+    
+    /**
+     * Puts the results of the predictor pool back in timestamp order, or
+     * null if there is no pool.
+     */
+    private final ReorderBuffer reorderBuffer;
+    
+    /**
+     * Closes the predictors when the analyzer is closed or collected.
+     */
+    private final NativeResources.Registration resources;
+    
+    /**
+     * Has the analyzer been closed?
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+    
     /**
      * The region of interest to analyze.
      */
@@ -110,46 +229,159 @@ public class Defcon implements Analyzer {
      * @param pathToModel The path to the DEFCoN network model.
      */
     public Defcon(String pathToModel) {
+        this(pathToModel, new DefconConfig());
+    }
+    
+    /**
+     * Initializes the DEFCoN analyzer with the given runtime options.
+     * 
+     * @param pathToModel The path to the DEFCoN network model.
+     * @param config The runtime options.
+     */
+    public Defcon(String pathToModel, DefconConfig config) {
+        config.validate();
+        this.config = config;
+        
+        // The first frame is always analyzed.
+        framesSinceInference.set(config.frameStride - 1);
+        
         // Initialize the count cache.
         intermittentOutputs = new ArrayList<>();
         
-        // Initializes the density map predictor.
-        predictor = new DefaultPredictor();
-        predictor.setup(pathToModel);
+        // Initializes the density map predictors.
+        predictor = createPredictor(pathToModel);
+        if (config.poolSize > 1) {
+            List<Predictor> predictors = new ArrayList<>();
+            predictors.add(predictor);
+            while (predictors.size() < config.poolSize) {
+                predictors.add(createPredictor(pathToModel));
+            }
+            pool = new PredictorPool(predictors);
+            pooledTables = new IdentityHashMap<>();
+            for (Predictor p : predictors) {
+                pooledTables.put(p, new SummedAreaTable());
+            }
+            reorderBuffer = new ReorderBuffer(new ReorderBuffer.Sink() {
+                @Override
+                public void accept(long timeMs, double value) {
+                    addPooledOutput(timeMs, value);
+                }
+            });
+        } else {
+            pool = null;
+            pooledTables = null;
+            reorderBuffer = null;
+        }
+        
+        // Creates the inference thread in asynchronous mode.
+        if (config.asynchronous) {
+            frameQueue = new ArrayBlockingQueue<>(config.queueCapacity);
+            inferenceThread = new Thread(new InferenceLoop(this, frameQueue,
+                    predictor, config.batchSize, config.batchTimeoutMs),
+                    "DEFCoN inference");
+            inferenceThread.setDaemon(true);
+        } else {
+            frameQueue = null;
+            inferenceThread = null;
+        }
+        resources = NativeResources.register(this,
+                new PredictorCloser(predictor, pool, inferenceThread));
         
         // Creates the status panel.
         statusPanel = new DefconStatusPanel(this);
         
         // Setups the live view.
-        liveMode = false;
-        liveView = new ImagePlus("DEFCoN - Density Map");
+        liveView = new LiveViewPublisher("DEFCoN - Density Map",
+                                         config.liveViewMaxFps);
         
         boxSize = 7;
         maxLocalCount = false;
+        
+        // Starts the inference thread in asynchronous mode.
+        if (inferenceThread != null) {
+            inferenceThread.start();
+        }
+    }
+    
+    /**
+     * Creates and sets up a density map predictor for the runtime options.
+     * 
+     * @param pathToModel The path to the DEFCoN network model.
+     * @return The predictor.
+     */
+    private Predictor createPredictor(String pathToModel) {
+        // Only our own predictors can use non-default session options.
+        byte[] sessionConfig = config.sessionConfig();
+        Predictor created;
+        if (config.javaInference) {
+            int threads = config.intraOpThreads > 0 ? config.intraOpThreads
+                    : Runtime.getRuntime().availableProcessors();
+            created = new JavaPredictor(threads);
+        } else if (config.tileSize > 0) {
+            created = new TiledPredictor(config.tileSize, config.tileThreads,
+                                         sessionConfig);
+        } else if (config.batchSize > 1 || config.shareModel
+                       || config.directInput || sessionConfig != null) {
+            created = new BatchPredictor(config.batchSize, sessionConfig);
+        } else {
+            created = new DefaultPredictor();
+        }
+        created.setup(pathToModel);
+        if (config.warmupWidth > 0 && config.warmupHeight > 0) {
+            warmUp(created, config.warmupWidth, config.warmupHeight);
+        }
+        return created;
+    }
+    
+    /**
+     * Runs the network once on a dummy frame.
+     * 
+     * TensorFlow optimizes the graph and sets up its kernels during the first
+     * run for a given input size, which makes the first prediction slow.
+     * 
+     * @param predictor The predictor to warm up.
+     * @param width The width of the expected frames.
+     * @param height The height of the expected frames.
+     */
+    private static void warmUp(Predictor predictor, int width, int height) {
+        ShortProcessor dummy = new ShortProcessor(width, height);
+        short[] pixels = (short[]) dummy.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            // The network normalizes each frame, so it must not be constant.
+            pixels[i] = (short) (i % 256);
+        }
+        long start = System.nanoTime();
+        try {
+            predictor.predict(dummy);
+        } catch (ImageBitDepthException | SessionClosedException ex) {
+            LOGGER.log(Level.WARNING, "DEFCoN warm-up failed.", ex);
+            return;
+        }
+        LOGGER.log(Level.INFO, "DEFCoN warm-up took {0} ms.",
+                   (System.nanoTime() - start) / 1000000);
     }
     
     /**
      * Cleans up the analyzer when it's finished.
+     * 
+     * Calling it again has no effect.
      */
     @Override
     public void dispose() {
-        predictor.close();
-        if (this.liveView != null) {
-            this.liveView.hide();
+        if (!closed.compareAndSet(false, true)) {
+            return;
         }
+        // Stops the inference thread before closing the predictors.
+        resources.clean();
+        liveView.dispose();
     }
     
     /**
-     * Failsafe in case the predictor has not been closed at the point of garbage collection.
-     * @throws java.lang.Throwable
+     * Releases the predictors; same as dispose().
      */
     @Override
-    protected void finalize() throws Throwable {
-        try {
-            predictor.close();
-        } finally {
-            super.finalize();
-        }
+    public void close() {
+        dispose();
     }
     
     /**
@@ -160,7 +392,8 @@ public class Defcon implements Analyzer {
      * @return The averaged DEFCoN count.
      */
     @Override
-    public double getBatchOutput() {
+    public synchronized double getBatchOutput() {
+        windowInferenceNs.set(0);
         if (intermittentOutputs.isEmpty())
             return Double.NaN;
         double meanOutput = 0.0;
@@ -184,16 +417,61 @@ public class Defcon implements Analyzer {
         return boxSize;
     }
     
+    /**
+     * Returns the maximum local counts of the most recent frame for the box
+     * sizes set with setReportedBoxSizes().
+     * 
+     * They are computed only when the maximum local count is on.
+     * 
+     * @return The maximum local counts, in the order of the box sizes.
+     */
+    public synchronized double[] getMaximumLocalCounts() {
+        return maximumLocalCounts.clone();
+    }
+    
+    /**
+     * Returns the number of frames that were dropped because asynchronous
+     * inference could not keep up with the acquisition.
+     * 
+     * @return The number of dropped frames.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+    
+    /**
+     * Returns the number of frames that were not analyzed because of the
+     * frame stride or the inference budget.
+     * 
+     * @return The number of skipped frames.
+     */
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+    
     /**
      * Returns the intermittent output of the analyzer.
      * 
+     * In asynchronous mode, this is the result of the newest frame whose
+     * inference has finished; see getIntermittentOutputTime().
+     * 
      * @return The analyzer's current output value.
      */
     @Override
-    public double getIntermittentOutput() {
+    public synchronized double getIntermittentOutput() {
         return intermittentOutput;
     }
     
+    /**
+     * Returns the acquisition time of the frame of the intermittent output.
+     * 
+     * @return The acquisition time in milliseconds, or -1 if no frame has
+     *         been analyzed yet.
+     */
+    public synchronized long getIntermittentOutputTime() {
+        return intermittentOutputTimeMs;
+    }
+    
     /**
      * Returns the name of the DEFCoN analyzer.
      * 
@@ -240,7 +518,7 @@ public class Defcon implements Analyzer {
      * @return True if live mode is on, false otherwise
      */
     public boolean isLiveModeOn() {
-        return liveMode;
+        return liveView.isEnabled();
     }
     
     /**
@@ -256,35 +534,34 @@ public class Defcon implements Analyzer {
      * Turns on the live view of the density map.
      */
     public void liveModeOn() {
-        synchronized(liveView) {
-            liveMode = true;
-        }
+        liveView.setEnabled(true);
     }
     
     /**
      * Turns off the live view of the density map.
      */
     public void liveModeOff() {
-        synchronized(liveView) {
-            liveMode = false;
-            liveView.hide();
-        }
+        liveView.setEnabled(false);
     }
     
     /**
      * Turns on the live view of the density map.
      */
     public void maxLocalCountOn() {
+        synchronized(this) {
             // Flush the output cache.
             intermittentOutputs.clear();
             maxLocalCount = true;
+        }
     }
     
     /**
      * Turns off the live view of the density map.
      */
     public void maxLocalCountOff() {
+        synchronized(this) {
             maxLocalCount = false;
+        }
     }
     
     /**
@@ -304,23 +581,179 @@ public class Defcon implements Analyzer {
     @Override
     public void processImage(Object image, int width, int height,
                            double pixelSizeUm, long timeMs) {
+        if (skipFrame()) {
+            long skipped = skippedFrames.incrementAndGet();
+            LOGGER.log(Level.FINEST, "DEFCoN skipped {0} frames.", skipped);
+            return;
+        }
+        
+        double fovArea = computeFovArea(width, height, pixelSizeUm);
+        
+        if (pool != null) {
+            Rectangle region = (roi == null) ? null : roi.getBounds();
+            reorderBuffer.begin(timeMs);
+            analyzePooled(image, width, height, region, fovArea, timeMs);
+            return;
+        }
+        
+        // Our own predictors read the region straight from the camera frame.
+        if (frameQueue == null && predictor instanceof DirectPredictor) {
+            Rectangle region = (roi == null) ? null : roi.getBounds();
+            analyzeRegion((DirectPredictor) predictor, image, width, height,
+                          region, fovArea, timeMs);
+            return;
+        }
         
         ShortProcessor sp = new ShortProcessor(width, height);
         sp.setPixels(image);
+        sp.setRoi(roi);
         
-        double fovArea;
-        if (roi == null) {
-            fovArea = pixelSizeUm * pixelSizeUm * width * height;
-        } else {
-            fovArea = pixelSizeUm * pixelSizeUm *
-                      roi.getBounds().getWidth() * roi.getBounds().getHeight();
-            
+        if (frameQueue == null) {
+            analyzeFrame(sp.crop(), fovArea, timeMs);
+            return;
         }
-        sp.setRoi(roi);
         
+        // Makes room for the frame by dropping the oldest waiting ones.
+        Frame frame = new Frame(sp.crop(), fovArea, timeMs);
+        while (!frameQueue.offer(frame)) {
+            if (frameQueue.poll() != null) {
+                long dropped = droppedFrames.incrementAndGet();
+                LOGGER.log(Level.FINE, "DEFCoN inference is behind; dropped {0} frames.", dropped);
+            }
+        }
+    }
+    
+    /**
+     * Analyzes all slices of a recorded stack.
+     * 
+     * With a predictor pool, the slices are analyzed in parallel by the
+     * predictors of the pool and their results are added in slice order.
+     * This call returns once all slices have been analyzed. If it is
+     * interrupted, the slices that have not started are not analyzed.
+     * 
+     * @param stack The stack of 16-bit or 8-bit images.
+     * @param pixelSizeUm Length of a side of a square pixel in micrometers.
+     * @param frameIntervalMs The time between two slices in milliseconds;
+     *                        slice n is given the time (n - 1) * frameIntervalMs.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void processStack(ImageStack stack, double pixelSizeUm,
+                             long frameIntervalMs) throws InterruptedException {
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        if (pool == null) {
+            for (int n = 1; n <= stack.getSize(); n++) {
+                processImage(stack.getPixels(n), width, height, pixelSizeUm,
+                             (n - 1) * frameIntervalMs);
+            }
+            return;
+        }
+        
+        final double fovArea = computeFovArea(width, height, pixelSizeUm);
+        final Rectangle region = (roi == null) ? null : roi.getBounds();
+        ExecutorService executor = Executors.newFixedThreadPool(pool.size());
+        try {
+            for (int n = 1; n <= stack.getSize(); n++) {
+                if (skipFrame()) {
+                    skippedFrames.incrementAndGet();
+                    continue;
+                }
+                // Registers the frames in slice order before any finishes.
+                long timeMs = (n - 1) * frameIntervalMs;
+                reorderBuffer.begin(timeMs);
+                executor.execute(new PooledSlice(stack.getPixels(n), width,
+                                                 height, region, fovArea, timeMs));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.log(Level.FINE, "Waiting for the DEFCoN stack analysis.");
+            }
+        } catch (InterruptedException ex) {
+            // Slices still waiting for a predictor are dropped; they must not
+            // hold back the results of later frames.
+            for (Runnable dropped : executor.shutdownNow()) {
+                reorderBuffer.cancel(((PooledSlice) dropped).timeMs);
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Returns the area of the analyzed region in square micrometers.
+     */
+    private double computeFovArea(int width, int height, double pixelSizeUm) {
+        if (roi == null) {
+            return pixelSizeUm * pixelSizeUm * width * height;
+        }
+        return pixelSizeUm * pixelSizeUm *
+               roi.getBounds().getWidth() * roi.getBounds().getHeight();
+    }
+    
+    /**
+     * Decides whether a new frame is skipped to save inference time.
+     * 
+     * A frame is analyzed if it is the frameStride-th one since the last
+     * analyzed frame and the inference budget of the current batch window
+     * is not used up. Frames arriving concurrently are counted one after
+     * the other.
+     * 
+     * @return True if the frame is not analyzed.
+     */
+    private boolean skipFrame() {
+        while (true) {
+            int frames = framesSinceInference.get();
+            boolean skip = frames + 1 < config.frameStride
+                    || (config.inferenceBudgetMs > 0 && windowInferenceNs.get()
+                        >= TimeUnit.MILLISECONDS.toNanos(config.inferenceBudgetMs));
+            if (framesSinceInference.compareAndSet(frames, skip ? frames + 1 : 0)) {
+                return skip;
+            }
+        }
+    }
+    
+    /**
+     * Runs the prediction on a batch of frames and updates the analyzer's
+     * output with each of them, in order.
+     */
+    private void analyzeBatch(BatchPredictor batchPredictor, Frame[] batch,
+                              ImageProcessor[] images, int n) {
+        long start = System.nanoTime();
+        try {
+            batchPredictor.predict(images, n);
+        } catch (ImageBitDepthException ex) {
+            String msg = "The image must be either 16-bits or 8-bits.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+            return;
+        } catch (SessionClosedException ex) {
+            String msg = "The TensorFlow session has been closed.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            batchPredictor.selectFrame(i);
+            updateOutput(batch[i].fovArea, batch[i].timeMs);
+        }
+        windowInferenceNs.addAndGet(System.nanoTime() - start);
+        updateLiveView();
+    }
+    
+    /**
+     * Runs the prediction on a frame and updates the analyzer's output.
+     * 
+     * @param ip The cropped image.
+     * @param fovArea The area of the image in square micrometers.
+     * @param timeMs Image acquisition time in milliseconds.
+     */
+    private void analyzeFrame(ImageProcessor ip, double fovArea, long timeMs) {
         // Compute the density map.
+        long start = System.nanoTime();
         try {
-            predictor.predict(sp.crop());
+            predictor.predict(ip);
         } catch (ImageBitDepthException ex) {
             String msg = "The image must be either 16-bits or 8-bits.";
             LOGGER.log(Level.SEVERE, msg);
@@ -330,58 +763,285 @@ public class Defcon implements Analyzer {
             LOGGER.log(Level.SEVERE, msg);
             LOGGER.log(Level.SEVERE, ex.getMessage());
         }
+        updateOutput(fovArea, timeMs);
+        windowInferenceNs.addAndGet(System.nanoTime() - start);
         
-        // Compute the spot density.
+        // This should occur as the last call of this method so that the live
+        // view is synced with the state of the analyzer.
+        updateLiveView();
+    }
+    
+    /**
+     * Runs the prediction on a region of a camera frame and updates the
+     * analyzer's output.
+     * 
+     * @param directPredictor The predictor of the analyzer.
+     * @param pixels The pixels of the camera frame.
+     * @param width The width of the camera frame.
+     * @param height The height of the camera frame.
+     * @param region The region to analyze, or null for the whole frame.
+     * @param fovArea The area of the region in square micrometers.
+     * @param timeMs Image acquisition time in milliseconds.
+     */
+    private void analyzeRegion(DirectPredictor directPredictor, Object pixels,
+                               int width, int height, Rectangle region,
+                               double fovArea, long timeMs) {
+        long start = System.nanoTime();
+        try {
+            directPredictor.predict(pixels, width, height, region);
+        } catch (ImageBitDepthException ex) {
+            String msg = "The image must be either 16-bits or 8-bits.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+        } catch (SessionClosedException ex) {
+            String msg = "The TensorFlow session has been closed.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+        }
+        updateOutput(fovArea, timeMs);
+        windowInferenceNs.addAndGet(System.nanoTime() - start);
+        updateLiveView();
+    }
+    
+    /**
+     * Runs the prediction on a frame with a predictor leased from the pool
+     * and hands the result to the reorder buffer.
+     * 
+     * The frame must have been registered with the reorder buffer. The
+     * maximum local counts of the reported box sizes are not computed here.
+     * 
+     * @param pixels The pixels of the camera frame.
+     * @param width The width of the camera frame.
+     * @param height The height of the camera frame.
+     * @param region The region to analyze, or null for the whole frame.
+     * @param fovArea The area of the region in square micrometers.
+     * @param timeMs Image acquisition time in milliseconds.
+     */
+    private void analyzePooled(Object pixels, int width, int height,
+                               Rectangle region, double fovArea, long timeMs) {
+        double value = Double.NaN;
+        FloatProcessor view = null;
+        Predictor leased;
+        try {
+            leased = pool.lease();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            reorderBuffer.complete(timeMs, value);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (leased instanceof DirectPredictor) {
+                ((DirectPredictor) leased).predict(pixels, width, height, region);
+            } else {
+                ShortProcessor sp = new ShortProcessor(width, height);
+                sp.setPixels(pixels);
+                sp.setRoi(region);
+                leased.predict(sp.crop());
+            }
+            
+            boolean live = liveView.isEnabled() && claimPooledView();
+            if (maxLocalCount && leased instanceof DirectPredictor) {
+                SummedAreaTable table = pooledTables.get(leased);
+                ((DirectPredictor) leased).buildSummedAreaTable(table);
+                // The live view keeps the map until it is drawn.
+                float[] counts = live ? new float[table.getWidth() * table.getHeight()]
+                                      : null;
+                value = table.maximumLocalCount(boxSize, counts);
+                if (live) {
+                    view = new FloatProcessor(table.getWidth(), table.getHeight(), counts);
+                }
+            } else if (maxLocalCount) {
+                value = leased.getMaximumLocalCount(boxSize);
+                if (live) {
+                    view = leased.getLocalCountMap();
+                }
+            } else {
+                value = leased.getCount() / fovArea * SCALE_FACTOR;
+                if (live) {
+                    view = leased.getDensityMap();
+                }
+            }
+        } catch (ImageBitDepthException ex) {
+            String msg = "The image must be either 16-bits or 8-bits.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+        } catch (SessionClosedException ex) {
+            String msg = "The TensorFlow session has been closed.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+        } catch (UninitializedPredictorException ex) {
+            String msg = "This predictor has not been initialized.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+        } catch (NoLocalCountMapException ex) {
+            String msg = "The local count map has not been computed.";
+            LOGGER.log(Level.SEVERE, msg);
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+        } finally {
+            pool.release(leased);
+            windowInferenceNs.addAndGet(System.nanoTime() - start);
+            reorderBuffer.complete(timeMs, value);
+        }
+        if (view != null) {
+            liveView.publish(view, null);
+        }
+    }
+    
+    /**
+     * Decides whether the map of a pooled frame is handed over to the live
+     * view; maps published faster than the live view is drawn are not
+     * computed.
+     * 
+     * @return True if the map of the frame is published.
+     */
+    private boolean claimPooledView() {
+        long now = System.nanoTime();
+        long next = nextPooledViewNs.get();
+        if (now - next < 0) {
+            return false;
+        }
+        long periodNs = (long) (1e9 / config.liveViewMaxFps);
+        return nextPooledViewNs.compareAndSet(next, now + periodNs);
+    }
+    
+    /**
+     * Adds a result of the predictor pool, in timestamp order.
+     * 
+     * @param timeMs Image acquisition time in milliseconds.
+     * @param value The result, or NaN if the analysis failed.
+     */
+    private synchronized void addPooledOutput(long timeMs, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        intermittentOutput = value;
+        intermittentOutputs.add(value);
+        intermittentOutputTimeMs = timeMs;
+    }
+    
+    /**
+     * Computes the spot density from the predictor's current density map.
+     * 
+     * @param fovArea The area of the image in square micrometers.
+     * @param timeMs Image acquisition time in milliseconds.
+     */
+    private void updateOutput(double fovArea, long timeMs) {
         synchronized(this) {
             try {
                 if (maxLocalCount) {
-                    intermittentOutput
-                            = predictor.getMaximumLocalCount(boxSize);
+                    intermittentOutput = computeLocalCounts();
                     intermittentOutputs.add(intermittentOutput);
                 } else {
                     intermittentOutput = predictor.getCount() 
                                          / fovArea * SCALE_FACTOR;
                     intermittentOutputs.add(intermittentOutput);
                 }
+                intermittentOutputTimeMs = timeMs;
             } catch (UninitializedPredictorException ex) {
                 String msg = "This predictor has not been initialized.";
                 LOGGER.log(Level.SEVERE, msg);
                 LOGGER.log(Level.SEVERE, ex.getMessage());
             }
-         }
-        
-        // This should occur as the last call of this method so that the live
-        // view is synced with the state of the analyzer.
-        updateLiveView();
+        }
     }
     
     /**
-     * Updates the live viewer.
+     * Computes the local count map of the current density map and the
+     * maximum local counts for the box size and the reported box sizes.
+     * 
+     * For the predictors of this package, the summed-area table of the
+     * density map is built once, so the cost does not depend on the box
+     * sizes. The predictors of the DEFCoN library compute the local counts
+     * themselves, with their own handling of the map borders.
+     * 
+     * @return The maximum local count for the box size.
+     */
+    private double computeLocalCounts() throws UninitializedPredictorException {
+        if (maximumLocalCounts.length != reportedBoxSizes.length) {
+            maximumLocalCounts = new double[reportedBoxSizes.length];
+        }
+        if (!(predictor instanceof DirectPredictor)) {
+            return computeLibraryLocalCounts();
+        }
+        // Reads the density map in place instead of copying it.
+        ((DirectPredictor) predictor).buildSummedAreaTable(localCountTable);
+        localCountWidth = localCountTable.getWidth();
+        localCountHeight = localCountTable.getHeight();
+        int size = localCountWidth * localCountHeight;
+        if (localCountMap.length < size) {
+            localCountMap = new float[size];
+        }
+        localCountTable.maximumLocalCounts(reportedBoxSizes, maximumLocalCounts);
+        return localCountTable.maximumLocalCount(boxSize, localCountMap);
+    }
+    
+    /**
+     * Computes the local counts with a predictor of the DEFCoN library, one
+     * box size at a time; the box size comes last so that the local count
+     * map belongs to it.
+     * 
+     * @return The maximum local count for the box size.
+     */
+    private double computeLibraryLocalCounts()
+            throws UninitializedPredictorException {
+        for (int i = 0; i < reportedBoxSizes.length; i++) {
+            maximumLocalCounts[i] = predictor.getMaximumLocalCount(reportedBoxSizes[i]);
+        }
+        double max = predictor.getMaximumLocalCount(boxSize);
+        try {
+            FloatProcessor map = predictor.getLocalCountMap();
+            localCountWidth = map.getWidth();
+            localCountHeight = map.getHeight();
+            localCountMap = (float[]) map.getPixels();
+        } catch (NoLocalCountMapException ex) {
+            localCountWidth = 0;
+            localCountHeight = 0;
+        }
+        return max;
+    }
+    
+    /**
+     * Returns a copy of the most recent local count map.
+     * 
+     * @return The local count map, or null if none has been computed.
+     */
+    private synchronized FloatProcessor copyLocalCountMap() {
+        int width = localCountWidth;
+        int height = localCountHeight;
+        if (width == 0) {
+            return null;
+        }
+        float[] map = new float[width * height];
+        System.arraycopy(localCountMap, 0, map, 0, map.length);
+        return new FloatProcessor(width, height, map);
+    }
+    
+    /**
+     * Hands the current map over to the live viewer, which draws it on the
+     * event dispatch thread.
      */
     public void updateLiveView() {
-        synchronized(liveView) {
-            if (liveMode) {
-                try {
-                    if (maxLocalCount) {
-                        liveView.setProcessor(predictor.getLocalCountMap());
-                    } else {
-                        liveView.setProcessor(predictor.getDensityMap());
-                    }
-                } catch (UninitializedPredictorException ex) {
-                    String msg = "Cannot update live view; " +
-                                 "the predictor has not been initialized.";
-                    LOGGER.log(Level.SEVERE, msg);
-                } catch (NoLocalCountMapException ex) {
+        if (!liveView.isEnabled()) {
+            return;
+        }
+        try {
+            if (maxLocalCount) {
+                FloatProcessor map = copyLocalCountMap();
+                if (map != null) {
+                    liveView.publish(map, null);
+                } else {
                     String msg = "Cannot update live view; " +
                                  "the max local count has not been computed.";
                     LOGGER.log(Level.SEVERE, msg);
                 }
-                liveView.updateAndDraw();
-                
-                if (!liveView.isVisible()) {
-                    liveView.show();
-                }
+            } else {
+                liveView.publish(predictor.getDensityMap(), null);
             }
+        } catch (UninitializedPredictorException ex) {
+            String msg = "Cannot update live view; " +
+                         "the predictor has not been initialized.";
+            LOGGER.log(Level.SEVERE, msg);
         }
     }
     
@@ -391,6 +1051,26 @@ public class Defcon implements Analyzer {
      * @param boxSize The kernel size for computing the maximum local count.
      */
     public void setBoxSize(int boxSize) {
+        checkBoxSize(boxSize);
+        this.boxSize = boxSize;
+    }
+    
+    /**
+     * Sets additional box sizes whose maximum local counts are computed
+     * together with the one for the box size.
+     * 
+     * @param boxSizes The odd kernel sizes, or none to turn this off.
+     * @see #getMaximumLocalCounts()
+     */
+    public synchronized void setReportedBoxSizes(int... boxSizes) {
+        for (int size : boxSizes) {
+            checkBoxSize(size);
+        }
+        reportedBoxSizes = boxSizes.clone();
+        maximumLocalCounts = new double[boxSizes.length];
+    }
+    
+    private static void checkBoxSize(int boxSize) {
         if (boxSize % 2 == 0) {
             String msg = "boxSize must be odd. Received: " +
                          String.valueOf(boxSize);
@@ -400,11 +1080,185 @@ public class Defcon implements Analyzer {
                          String.valueOf(boxSize);
             throw new IllegalArgumentException(msg);
         }
-        this.boxSize = boxSize;
     }
     
     @Override
     public void setROI(Roi roi) {
         this.roi = roi;
     }
+    
+    /**
+     * Consumes the frames of the asynchronous mode.
+     * 
+     * It only holds a weak reference to the analyzer, so that an analyzer
+     * that is dropped without being closed can be collected while the
+     * thread waits for frames. The analyzer is only reachable from the
+     * thread while a frame is analyzed.
+     */
+    private static class InferenceLoop implements Runnable {
+        private final WeakReference<Defcon> analyzer;
+        private final BlockingQueue<Frame> frameQueue;
+        private final Predictor predictor;
+        private final int batchSize;
+        private final long batchTimeoutMs;
+        
+        InferenceLoop(Defcon analyzer, BlockingQueue<Frame> frameQueue,
+                      Predictor predictor, int batchSize, long batchTimeoutMs) {
+            this.analyzer = new WeakReference<>(analyzer);
+            this.frameQueue = frameQueue;
+            this.predictor = predictor;
+            this.batchSize = batchSize;
+            this.batchTimeoutMs = batchTimeoutMs;
+        }
+        
+        /**
+         * Consumes frames from the queue until the thread is interrupted or
+         * the analyzer has been collected.
+         */
+        @Override
+        public void run() {
+            if (predictor instanceof BatchPredictor) {
+                runBatchInference((BatchPredictor) predictor);
+                return;
+            }
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Frame frame = frameQueue.take();
+                    Defcon target = analyzer.get();
+                    if (target == null) {
+                        return;
+                    }
+                    target.analyzeFrame(frame.ip, frame.fovArea, frame.timeMs);
+                }
+            } catch (InterruptedException ex) {
+                // The analyzer was closed.
+            }
+        }
+        
+        /**
+         * Collects batches of frames from the queue and analyzes them until
+         * the thread is interrupted or the analyzer has been collected.
+         * 
+         * A batch is run when it is full, when the batch timeout has passed
+         * since its first frame, or when the next frame has a different size.
+         * 
+         * @param batchPredictor The predictor of the analyzer.
+         */
+        private void runBatchInference(BatchPredictor batchPredictor) {
+            Frame[] batch = new Frame[batchSize];
+            ImageProcessor[] images = new ImageProcessor[batchSize];
+            Frame next = null;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    batch[0] = (next != null) ? next : frameQueue.take();
+                    next = null;
+                    int n = 1;
+                    long deadline = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(batchTimeoutMs);
+                    while (n < batch.length) {
+                        Frame frame = frameQueue.poll(deadline - System.nanoTime(),
+                                                      TimeUnit.NANOSECONDS);
+                        if (frame == null) {
+                            break;
+                        }
+                        if (frame.ip.getWidth() != batch[0].ip.getWidth()
+                                || frame.ip.getHeight() != batch[0].ip.getHeight()) {
+                            next = frame;
+                            break;
+                        }
+                        batch[n++] = frame;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        images[i] = batch[i].ip;
+                    }
+                    Defcon target = analyzer.get();
+                    if (target == null) {
+                        return;
+                    }
+                    target.analyzeBatch(batchPredictor, batch, images, n);
+                }
+            } catch (InterruptedException ex) {
+                // The analyzer was closed.
+            }
+        }
+    }
+    
+    /**
+     * Stops the inference thread and closes the predictors of an analyzer.
+     * 
+     * It must not refer to the analyzer, so that the analyzer can be
+     * collected before the predictors are closed.
+     */
+    private static class PredictorCloser implements Runnable {
+        private final Predictor predictor;
+        private final PredictorPool pool;
+        private final Thread inferenceThread;
+        
+        PredictorCloser(Predictor predictor, PredictorPool pool,
+                        Thread inferenceThread) {
+            this.predictor = predictor;
+            this.pool = pool;
+            this.inferenceThread = inferenceThread;
+        }
+        
+        @Override
+        public void run() {
+            if (inferenceThread != null) {
+                // The predictor must not be closed during an inference.
+                inferenceThread.interrupt();
+                try {
+                    inferenceThread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (pool != null) {
+                pool.close();
+            } else {
+                predictor.close();
+            }
+        }
+    }
+    
+    /**
+     * A slice of a stack waiting for a predictor of the pool.
+     */
+    private final class PooledSlice implements Runnable {
+        final Object pixels;
+        final int width;
+        final int height;
+        final Rectangle region;
+        final double fovArea;
+        final long timeMs;
+        
+        PooledSlice(Object pixels, int width, int height, Rectangle region,
+                    double fovArea, long timeMs) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.region = region;
+            this.fovArea = fovArea;
+            this.timeMs = timeMs;
+        }
+        
+        @Override
+        public void run() {
+            analyzePooled(pixels, width, height, region, fovArea, timeMs);
+        }
+    }
+    
+    /**
+     * A frame waiting for asynchronous inference.
+     */
+    private static class Frame {
+        final ImageProcessor ip;
+        final double fovArea;
+        final long timeMs;
+        
+        Frame(ImageProcessor ip, double fovArea, long timeMs) {
+            this.ip = ip;
+            this.fovArea = fovArea;
+            this.timeMs = timeMs;
+        }
+    }
 }
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ch.epfl.leb.alica.acpack.analyzers.LiveViewPublisher;
+
+/**
+ * Runtime options of the DEFCoN analyzer.
+ *
+ * The defaults reproduce the original behavior, in which each image is
+ * analyzed on the calling thread.
+ */
+public class DefconConfig {
+
+    /**
+     * Run the inference on a dedicated thread instead of the acquisition
+     * thread.
+     */
+    public boolean asynchronous = false;
+
+    /**
+     * Number of frames waiting for asynchronous inference before the oldest
+     * ones are dropped.
+     */
+    public int queueCapacity = 4;
+    
+    /**
+     * Maximum number of frames per inference in asynchronous mode; 1 runs
+     * the network on single frames.
+     */
+    public int batchSize = 1;
+    
+    /**
+     * Maximum time in milliseconds to wait for more frames before running
+     * an incomplete batch.
+     */
+    public long batchTimeoutMs = 10;
+    
+    /**
+     * Share the loaded model with other DEFCoN analyzers using the same
+     * model, instead of loading a private copy with the DEFCoN predictor.
+     */
+    public boolean shareModel = false;
+    
+    /**
+     * Read synchronously analyzed frames straight from the camera buffer
+     * into a reused input buffer instead of copying them for the DEFCoN
+     * predictor.
+     */
+    public boolean directInput = false;
+    
+    /**
+     * Run the network in pure Java instead of TensorFlow, with
+     * intraOpThreads threads, or one per core if it is 0.
+     */
+    public boolean javaInference = false;
+    
+    /**
+     * Width of a dummy frame analyzed at construction, so that the first
+     * acquired frame does not pay for the network setup; 0 for no warm-up.
+     */
+    public int warmupWidth = 0;
+    
+    /**
+     * Height of the warm-up frame.
+     */
+    public int warmupHeight = 0;
+    
+    /**
+     * Side length in pixels of the tiles that large frames are split into;
+     * 0 analyzes whole frames.
+     */
+    public int tileSize = 0;
+    
+    /**
+     * Number of tiles analyzed in parallel.
+     */
+    public int tileThreads = 2;
+    
+    /**
+     * Infer only every frameStride-th frame; the other frames are skipped.
+     */
+    public int frameStride = 1;
+    
+    /**
+     * Inference time in milliseconds allowed between two calls to
+     * getBatchOutput(); further frames are skipped until the next call.
+     * 0 for no limit.
+     */
+    public long inferenceBudgetMs = 0;
+    
+    /**
+     * Number of threads TensorFlow uses within an operation; 0 for one per
+     * core.
+     */
+    public int intraOpThreads = 0;
+    
+    /**
+     * Number of threads TensorFlow uses to run independent operations; 0
+     * for the TensorFlow default.
+     */
+    public int interOpThreads = 0;
+    
+    /**
+     * Apply TensorFlow's default graph optimizations.
+     */
+    public boolean optimizeGraph = true;
+    
+    /**
+     * Number of DEFCoN predictors analyzing frames concurrently, each with
+     * its own buffers. Frames passed to processImage() from several threads
+     * or with processStack() are then analyzed in parallel and their results
+     * are put back in timestamp order.
+     */
+    public int poolSize = 1;
+    
+    /**
+     * Maximum number of live view redraws per second.
+     */
+    public double liveViewMaxFps = LiveViewPublisher.DEFAULT_MAX_FPS;
+
+    /**
+     * Checks that the options can be used.
+     *
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    public void validate() {
+        if (queueCapacity < 1) {
+            String msg = "queueCapacity must be at least 1. Received: " +
+                         String.valueOf(queueCapacity);
+            throw new IllegalArgumentException(msg);
+        }
+        if (batchSize < 1) {
+            String msg = "batchSize must be at least 1. Received: " +
+                         String.valueOf(batchSize);
+            throw new IllegalArgumentException(msg);
+        }
+        if (batchSize > 1 && !asynchronous) {
+            String msg = "Batched inference requires asynchronous mode.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (warmupWidth < 0 || warmupHeight < 0) {
+            String msg = "The warm-up frame size must not be negative.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (tileSize < 0) {
+            String msg = "tileSize must not be negative. Received: " +
+                         String.valueOf(tileSize);
+            throw new IllegalArgumentException(msg);
+        }
+        if (tileThreads < 1) {
+            String msg = "tileThreads must be at least 1. Received: " +
+                         String.valueOf(tileThreads);
+            throw new IllegalArgumentException(msg);
+        }
+        if (tileSize > 0 && batchSize > 1) {
+            String msg = "Tiled inference cannot be combined with batches.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (frameStride < 1) {
+            String msg = "frameStride must be at least 1. Received: " +
+                         String.valueOf(frameStride);
+            throw new IllegalArgumentException(msg);
+        }
+        if (inferenceBudgetMs < 0) {
+            String msg = "inferenceBudgetMs must not be negative. Received: " +
+                         String.valueOf(inferenceBudgetMs);
+            throw new IllegalArgumentException(msg);
+        }
+        if (intraOpThreads < 0 || interOpThreads < 0) {
+            String msg = "The TensorFlow thread counts must not be negative.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (javaInference && (tileSize > 0 || batchSize > 1)) {
+            String msg = "Java inference cannot be combined with tiles or batches.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (poolSize < 1) {
+            String msg = "poolSize must be at least 1. Received: " +
+                         String.valueOf(poolSize);
+            throw new IllegalArgumentException(msg);
+        }
+        if (poolSize > 1 && asynchronous) {
+            String msg = "A predictor pool cannot be combined with asynchronous mode.";
+            throw new IllegalArgumentException(msg);
+        }
+        if (!(liveViewMaxFps > 0)) {
+            String msg = "liveViewMaxFps must be positive. Received: " +
+                         String.valueOf(liveViewMaxFps);
+            throw new IllegalArgumentException(msg);
+        }
+        if (batchTimeoutMs < 0) {
+            String msg = "batchTimeoutMs must not be negative. Received: " +
+                         String.valueOf(batchTimeoutMs);
+            throw new IllegalArgumentException(msg);
+        }
+    }
+    
+    /**
+     * Returns the TensorFlow session options as a serialized ConfigProto.
+     * 
+     * @return The session options, or null for the defaults.
+     */
+    byte[] sessionConfig() {
+        return SessionConfig.encode(intraOpThreads, interOpThreads,
+                                    optimizeGraph);
+    }
+}
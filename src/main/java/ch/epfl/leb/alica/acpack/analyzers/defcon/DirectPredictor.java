@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.Predictor;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
+
+import java.awt.Rectangle;
+
+/**
+ * A predictor that reads frames and writes density maps without
+ * intermediate copies.
+ *
+ * The pixels of a region of the camera frame are written straight into the
+ * predictor's reused input buffer, and the density map is read from its
+ * output buffer.
+ */
+interface DirectPredictor extends Predictor {
+
+    /**
+     * Predicts the density map of a region of a frame.
+     *
+     * @param pixels The short[] or byte[] pixels of the frame.
+     * @param width The width of the frame.
+     * @param height The height of the frame.
+     * @param region The region to analyze, or null for the whole frame.
+     * @throws ImageBitDepthException If the frame is not 8-bit or 16-bit.
+     * @throws SessionClosedException If no model is loaded.
+     */
+    void predict(Object pixels, int width, int height, Rectangle region)
+            throws ImageBitDepthException, SessionClosedException;
+
+    /**
+     * Builds a summed-area table from the current density map.
+     *
+     * @param table The table to build.
+     * @throws UninitializedPredictorException If nothing was predicted yet.
+     */
+    void buildSummedAreaTable(SummedAreaTable table)
+            throws UninitializedPredictorException;
+}
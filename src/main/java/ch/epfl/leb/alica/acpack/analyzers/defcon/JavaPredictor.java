@@ -0,0 +1,571 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.NoLocalCountMapException;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A DEFCoN predictor that runs the density network in pure Java.
+ *
+ * The weights are read from the variables of the saved model, so the
+ * TensorFlow runtime is not needed. The network is the fully convolutional
+ * DEFCoN architecture: a segmentation branch whose sigmoid output feeds a
+ * density branch, each made of strided 3x3 or 5x5 convolutions followed by
+ * two transposed convolutions that upsample back to the input size.
+ *
+ * Convolutions are computed one output row at a time: the input patches of
+ * the row are unrolled into a matrix (im2col) that is multiplied with the
+ * kernel, skipping the zeros left by the ReLUs. The rows are split among a
+ * pool of threads. All activation and patch buffers are kept between frames
+ * of the same size.
+ */
+public class JavaPredictor implements DirectPredictor {
+
+    private final static Logger LOGGER = Logger.getLogger(JavaPredictor.class.getName());
+
+    private static final int NONE = 0;
+    private static final int RELU = 1;
+    private static final int SIGMOID = 2;
+
+    /**
+     * The layers of the network in order: variable name, stride, transposed
+     * and activation. Transposed layers upsample by their stride.
+     */
+    private static final Object[][] NETWORK = {
+        {"conv_seg_1", 1, false, RELU},
+        {"conv_stride_1", 2, false, RELU},
+        {"conv_seg_2", 1, false, RELU},
+        {"conv_stride_2", 2, false, RELU},
+        {"conv_seg_3", 1, false, RELU},
+        {"deconv_seg_1", 2, true, RELU},
+        {"decon_seg_2", 2, true, RELU},
+        {"seg", 1, false, SIGMOID},
+        {"conv_1_1", 1, false, RELU},
+        {"conv_2_1", 2, false, RELU},
+        {"conv_3_1", 1, false, RELU},
+        {"conv_4_1", 2, false, RELU},
+        {"conv_5_1", 1, false, RELU},
+        {"deconv_1", 2, true, RELU},
+        {"deconv_2", 2, true, RELU},
+        {"density", 1, false, NONE}
+    };
+
+    /**
+     * A convolution layer and its buffers for the current frame size.
+     */
+    private static final class Layer {
+        final int size;
+        final int stride;
+        final boolean transposed;
+        final int activation;
+        final int inChannels;
+        final int outChannels;
+
+        /**
+         * The kernel as [ky][kx][input channel][output channel].
+         */
+        final float[] kernel;
+        final float[] bias;
+
+        int inWidth, inHeight, outWidth, outHeight;
+        int padTop, padLeft;
+        float[] output = new float[0];
+
+        Layer(CheckpointReader.Variable kernel, CheckpointReader.Variable bias,
+              int stride, boolean transposed, int activation) {
+            int[] shape = kernel.shape;
+            if (shape.length != 4 || shape[0] != shape[1]) {
+                throw new IllegalArgumentException("Unexpected kernel shape.");
+            }
+            this.size = shape[0];
+            this.stride = stride;
+            this.transposed = transposed;
+            this.activation = activation;
+            if (transposed) {
+                // TensorFlow stores transposed kernels as [ky][kx][out][in].
+                this.outChannels = shape[2];
+                this.inChannels = shape[3];
+                this.kernel = new float[kernel.values.length];
+                for (int p = 0; p < size * size; p++) {
+                    for (int co = 0; co < outChannels; co++) {
+                        for (int ci = 0; ci < inChannels; ci++) {
+                            this.kernel[(p * inChannels + ci) * outChannels + co]
+                                    = kernel.values[(p * outChannels + co) * inChannels + ci];
+                        }
+                    }
+                }
+            } else {
+                this.inChannels = shape[2];
+                this.outChannels = shape[3];
+                this.kernel = kernel.values;
+            }
+            this.bias = (bias != null) ? bias.values : new float[outChannels];
+            if (this.bias.length != outChannels) {
+                throw new IllegalArgumentException("Unexpected bias shape.");
+            }
+        }
+
+        /**
+         * Computes the output size and padding for an input size, using the
+         * SAME padding of TensorFlow.
+         */
+        void resize(int width, int height) {
+            inWidth = width;
+            inHeight = height;
+            if (transposed) {
+                outWidth = width * stride;
+                outHeight = height * stride;
+                padLeft = Math.max((inWidth - 1) * stride + size - outWidth, 0) / 2;
+                padTop = Math.max((inHeight - 1) * stride + size - outHeight, 0) / 2;
+            } else {
+                outWidth = (width + stride - 1) / stride;
+                outHeight = (height + stride - 1) / stride;
+                padLeft = Math.max((outWidth - 1) * stride + size - inWidth, 0) / 2;
+                padTop = Math.max((outHeight - 1) * stride + size - inHeight, 0) / 2;
+            }
+            int length = outWidth * outHeight * outChannels;
+            if (output.length < length) {
+                output = new float[length];
+            }
+        }
+    }
+
+    /**
+     * Computes a band of output rows of a layer.
+     */
+    private static final class RowTask implements Callable<Void> {
+        final Layer layer;
+        final int firstRow;
+        final int lastRow;
+        float[] input;
+
+        /**
+         * The unrolled input patches of one output row.
+         */
+        final float[] patches;
+
+        RowTask(Layer layer, int firstRow, int lastRow) {
+            this.layer = layer;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.patches = new float[layer.outWidth * layer.size * layer.size
+                                     * layer.inChannels];
+        }
+
+        @Override
+        public Void call() {
+            for (int oy = firstRow; oy < lastRow; oy++) {
+                unroll(oy);
+                multiply(oy);
+            }
+            return null;
+        }
+
+        /**
+         * Writes the input patch of each pixel of an output row into the
+         * patch matrix, with zeros outside of the input.
+         */
+        private void unroll(int oy) {
+            Layer l = layer;
+            int k = l.size;
+            int cin = l.inChannels;
+            int patchSize = k * k * cin;
+            for (int ox = 0; ox < l.outWidth; ox++) {
+                int p = ox * patchSize;
+                for (int ky = 0; ky < k; ky++) {
+                    int iy = inputIndex(oy, ky, l.padTop, l.inHeight);
+                    for (int kx = 0; kx < k; kx++) {
+                        int ix = (iy < 0) ? -1 : inputIndex(ox, kx, l.padLeft, l.inWidth);
+                        if (ix < 0) {
+                            for (int ci = 0; ci < cin; ci++) {
+                                patches[p++] = 0;
+                            }
+                        } else {
+                            System.arraycopy(input, (iy * l.inWidth + ix) * cin,
+                                             patches, p, cin);
+                            p += cin;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the input row or column that a kernel tap reads for an
+         * output row or column, or -1 if there is none.
+         */
+        private int inputIndex(int out, int tap, int pad, int inSize) {
+            int stride = layer.stride;
+            if (layer.transposed) {
+                int t = out + pad - tap;
+                if (t < 0 || t % stride != 0) {
+                    return -1;
+                }
+                int in = t / stride;
+                return in < inSize ? in : -1;
+            }
+            int in = out * stride + tap - pad;
+            return (in >= 0 && in < inSize) ? in : -1;
+        }
+
+        /**
+         * Multiplies the patch matrix of an output row with the kernel and
+         * applies the bias and activation.
+         */
+        private void multiply(int oy) {
+            Layer l = layer;
+            int cout = l.outChannels;
+            int patchSize = l.size * l.size * l.inChannels;
+            float[] kernel = l.kernel;
+            float[] out = l.output;
+            for (int ox = 0; ox < l.outWidth; ox++) {
+                int o = (oy * l.outWidth + ox) * cout;
+                System.arraycopy(l.bias, 0, out, o, cout);
+                int p0 = ox * patchSize;
+                for (int p = 0; p < patchSize; p++) {
+                    float a = patches[p0 + p];
+                    if (a == 0) {
+                        continue;
+                    }
+                    int w = p * cout;
+                    for (int co = 0; co < cout; co++) {
+                        out[o + co] += a * kernel[w + co];
+                    }
+                }
+                if (l.activation == RELU) {
+                    for (int co = 0; co < cout; co++) {
+                        if (out[o + co] < 0) {
+                            out[o + co] = 0;
+                        }
+                    }
+                } else if (l.activation == SIGMOID) {
+                    for (int co = 0; co < cout; co++) {
+                        out[o + co] = (float) (1 / (1 + Math.exp(-out[o + co])));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of threads computing the rows of each layer.
+     */
+    private final int threads;
+
+    /**
+     * The layers, or null before setup or after closing.
+     */
+    private Layer[] layers;
+
+    /**
+     * The row bands of each layer for the current frame size.
+     */
+    private final List<List<RowTask>> tasks = new ArrayList<>();
+
+    /**
+     * The threads computing the rows.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The normalized input frame.
+     */
+    private float[] input = new float[0];
+
+    /**
+     * A view of the input array that the frame is written to.
+     */
+    private FloatBuffer inputBuffer = FloatBuffer.wrap(input);
+
+    /**
+     * The size of the frames that the buffers are allocated for.
+     */
+    private int width = 0;
+    private int height = 0;
+
+    /**
+     * The local count map of the last frame.
+     */
+    private float[] localCounts = new float[0];
+
+    /**
+     * The summed-area table of the last density map.
+     */
+    private final SummedAreaTable table = new SummedAreaTable();
+
+    private boolean predicted = false;
+    private boolean localCountsValid = false;
+    private boolean tableValid = false;
+
+    /**
+     * Initializes the predictor; call setup() to load a model.
+     *
+     * @param threads The number of threads computing each layer.
+     */
+    public JavaPredictor(int threads) {
+        if (threads < 1) {
+            String msg = "threads must be at least 1. Received: " +
+                         String.valueOf(threads);
+            throw new IllegalArgumentException(msg);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Reads the weights of the saved DEFCoN model and starts the threads.
+     *
+     * @param pathToModel The path to the saved model directory.
+     */
+    @Override
+    public void setup(String pathToModel) {
+        close();
+        Map<String, CheckpointReader.Variable> variables;
+        try {
+            variables = CheckpointReader.read(pathToModel);
+        } catch (IOException ex) {
+            String msg = "Cannot read the DEFCoN model " + pathToModel;
+            LOGGER.log(Level.SEVERE, msg, ex);
+            throw new IllegalArgumentException(msg, ex);
+        }
+        Layer[] network = new Layer[NETWORK.length];
+        for (int i = 0; i < NETWORK.length; i++) {
+            String name = (String) NETWORK[i][0];
+            CheckpointReader.Variable kernel = variables.get(name + "/kernel");
+            if (kernel == null) {
+                throw new IllegalArgumentException(
+                        "The model has no variable " + name + "/kernel.");
+            }
+            network[i] = new Layer(kernel, variables.get(name + "/bias"),
+                                   (Integer) NETWORK[i][1],
+                                   (Boolean) NETWORK[i][2],
+                                   (Integer) NETWORK[i][3]);
+        }
+        layers = network;
+        width = 0;
+        height = 0;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DEFCoN Java inference");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Stops the threads and releases the weights and buffers.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        layers = null;
+        tasks.clear();
+        predicted = false;
+        localCountsValid = false;
+        tableValid = false;
+    }
+
+    @Override
+    public void predict(ImageProcessor ip)
+            throws ImageBitDepthException, SessionClosedException {
+        predict(ip.getPixels(), ip.getWidth(), ip.getHeight(), null);
+    }
+
+    /**
+     * Predicts the density map of a region of a frame.
+     *
+     * @param pixels The short[] or byte[] pixels of the frame.
+     * @param frameWidth The width of the frame.
+     * @param frameHeight The height of the frame.
+     * @param region The region to analyze, or null for the whole frame.
+     * @throws ImageBitDepthException If the frame is not 8-bit or 16-bit.
+     * @throws SessionClosedException If no model is loaded.
+     */
+    @Override
+    public void predict(Object pixels, int frameWidth, int frameHeight,
+                        Rectangle region)
+            throws ImageBitDepthException, SessionClosedException {
+        if (layers == null) {
+            throw new SessionClosedException("The predictor is not set up.");
+        }
+        predicted = false;
+        localCountsValid = false;
+        tableValid = false;
+        Rectangle r = BatchPredictor.clip(region, frameWidth, frameHeight);
+        if (r.width != width || r.height != height) {
+            allocate(r.width, r.height);
+        }
+        inputBuffer.clear();
+        BatchPredictor.putRegion(pixels, frameWidth, r.x, r.y, width, height,
+                                 inputBuffer);
+        TiledPredictor.normalize(input, width * height);
+
+        float[] activation = input;
+        try {
+            for (int i = 0; i < layers.length; i++) {
+                List<RowTask> bands = tasks.get(i);
+                for (RowTask task : bands) {
+                    task.input = activation;
+                }
+                for (Future<Void> result : executor.invokeAll(bands)) {
+                    result.get();
+                }
+                activation = layers[i].output;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Java DEFCoN inference was interrupted.");
+            return;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Error in Java DEFCoN inference.", ex.getCause());
+        }
+        predicted = true;
+    }
+
+    /**
+     * Sizes the layers and their buffers for a frame size.
+     */
+    private void allocate(int frameWidth, int frameHeight) {
+        width = frameWidth;
+        height = frameHeight;
+        if (input.length < width * height) {
+            input = new float[width * height];
+            inputBuffer = FloatBuffer.wrap(input);
+        }
+        tasks.clear();
+        int w = width;
+        int h = height;
+        for (Layer layer : layers) {
+            layer.resize(w, h);
+            w = layer.outWidth;
+            h = layer.outHeight;
+
+            List<RowTask> bands = new ArrayList<>();
+            int rows = layer.outHeight;
+            int n = Math.min(threads, rows);
+            for (int b = 0; b < n; b++) {
+                bands.add(new RowTask(layer, b * rows / n, (b + 1) * rows / n));
+            }
+            tasks.add(bands);
+        }
+    }
+
+    /**
+     * Returns the last layer, which holds the density map.
+     */
+    private Layer densityLayer() {
+        return layers[layers.length - 1];
+    }
+
+    @Override
+    public void buildSummedAreaTable(SummedAreaTable table)
+            throws UninitializedPredictorException {
+        checkInitialized();
+        Layer l = densityLayer();
+        table.build(l.output, 0, l.outWidth, l.outHeight);
+    }
+
+    @Override
+    public double getCount() throws UninitializedPredictorException {
+        checkInitialized();
+        Layer l = densityLayer();
+        double count = 0;
+        for (int k = 0; k < l.outWidth * l.outHeight; k++) {
+            count += l.output[k];
+        }
+        return count;
+    }
+
+    @Override
+    public FloatProcessor getDensityMap() throws UninitializedPredictorException {
+        checkInitialized();
+        Layer l = densityLayer();
+        float[] map = new float[l.outWidth * l.outHeight];
+        System.arraycopy(l.output, 0, map, 0, map.length);
+        return new FloatProcessor(l.outWidth, l.outHeight, map);
+    }
+
+    @Override
+    public FloatProcessor getLocalCountMap() throws NoLocalCountMapException {
+        if (!localCountsValid) {
+            throw new NoLocalCountMapException(
+                    "The maximum local count has not been computed.");
+        }
+        Layer l = densityLayer();
+        float[] map = new float[l.outWidth * l.outHeight];
+        System.arraycopy(localCounts, 0, map, 0, map.length);
+        return new FloatProcessor(l.outWidth, l.outHeight, map);
+    }
+
+    /**
+     * Returns the maximum count within a square box anywhere in the frame.
+     *
+     * @param boxSize The odd side length of the box in pixels.
+     * @return The maximum local count.
+     * @throws UninitializedPredictorException If nothing was predicted yet.
+     */
+    @Override
+    public double getMaximumLocalCount(int boxSize)
+            throws UninitializedPredictorException {
+        checkInitialized();
+        Layer l = densityLayer();
+        if (localCounts.length < l.outWidth * l.outHeight) {
+            localCounts = new float[l.outWidth * l.outHeight];
+        }
+        if (!tableValid) {
+            table.build(l.output, 0, l.outWidth, l.outHeight);
+            tableValid = true;
+        }
+        double max = table.maximumLocalCount(boxSize, localCounts);
+        localCountsValid = true;
+        return max;
+    }
+
+    private void checkInitialized() throws UninitializedPredictorException {
+        if (!predicted) {
+            throw new UninitializedPredictorException(
+                    "No density map has been predicted.");
+        }
+    }
+}
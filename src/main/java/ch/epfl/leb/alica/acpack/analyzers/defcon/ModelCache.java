@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+/**
+ * Process-wide cache of loaded DEFCoN models.
+ *
+ * Models are keyed by the canonical path of their directory and their
+ * session options, and reference counted. A model is loaded by the first
+ * acquire() and its session is closed when the last user releases it, so
+ * several analyzers can share a model without loading it again. TensorFlow
+ * sessions can be run from several threads at once.
+ *
+ * The saved model loader of this TensorFlow version always uses the default
+ * session options. For other options, a new session is created on the
+ * loaded graph and the variables are restored into it by running the
+ * restore operation of the model's saver.
+ */
+final class ModelCache {
+
+    private final static Logger LOGGER = Logger.getLogger(ModelCache.class.getName());
+
+    /**
+     * The saver operation that restores the variables.
+     */
+    private static final String RESTORE_OP = "save/restore_all";
+
+    /**
+     * The input of the saver operations holding the checkpoint prefix.
+     */
+    private static final String CHECKPOINT_INPUT = "save/Const";
+
+    /**
+     * A loaded model, its session and the number of its users.
+     */
+    private static class Entry {
+        final SavedModelBundle bundle;
+        final Session session;
+        int references = 0;
+
+        Entry(SavedModelBundle bundle, Session session) {
+            this.bundle = bundle;
+            this.session = session;
+        }
+    }
+
+    private static final Map<String, Entry> MODELS = new HashMap<>();
+
+    private ModelCache() {
+    }
+
+    /**
+     * Returns a session of the model at the given path with the default
+     * session options, loading the model if nobody uses it yet.
+     *
+     * Each call must be matched by a call to release() with the same path.
+     *
+     * @param pathToModel The path to the saved model directory.
+     * @return A session of the loaded model.
+     */
+    static Session acquire(String pathToModel) {
+        return acquire(pathToModel, null);
+    }
+
+    /**
+     * Returns a session of the model at the given path with the given
+     * session options, loading the model if nobody uses it yet.
+     *
+     * Each call must be matched by a call to release() with the same path
+     * and options.
+     *
+     * @param pathToModel The path to the saved model directory.
+     * @param sessionConfig The serialized ConfigProto of the session, or
+     *                      null for the default options.
+     * @return A session of the loaded model.
+     */
+    static synchronized Session acquire(String pathToModel, byte[] sessionConfig) {
+        String key = key(pathToModel, sessionConfig);
+        Entry entry = MODELS.get(key);
+        if (entry == null) {
+            entry = load(pathToModel, sessionConfig);
+            MODELS.put(key, entry);
+            LOGGER.log(Level.INFO, "Loaded DEFCoN model {0}", key);
+        }
+        entry.references++;
+        return entry.session;
+    }
+
+    /**
+     * Releases a session obtained from acquire() with the default session
+     * options.
+     *
+     * @param pathToModel The path that was passed to acquire().
+     */
+    static void release(String pathToModel) {
+        release(pathToModel, null);
+    }
+
+    /**
+     * Releases a session obtained from acquire() and closes it if it has no
+     * other users.
+     *
+     * @param pathToModel The path that was passed to acquire().
+     * @param sessionConfig The options that were passed to acquire().
+     */
+    static synchronized void release(String pathToModel, byte[] sessionConfig) {
+        String key = key(pathToModel, sessionConfig);
+        Entry entry = MODELS.get(key);
+        if (entry == null) {
+            LOGGER.log(Level.WARNING, "Released DEFCoN model {0} was not loaded.", key);
+            return;
+        }
+        if (--entry.references == 0) {
+            MODELS.remove(key);
+            if (entry.session != entry.bundle.session()) {
+                // The graph cannot be closed while a session uses it.
+                entry.session.close();
+            }
+            entry.bundle.close();
+            LOGGER.log(Level.INFO, "Closed DEFCoN model {0}", key);
+        }
+    }
+
+    /**
+     * Returns the number of users of a model with the default session
+     * options.
+     *
+     * @param pathToModel The path to the saved model directory.
+     * @return The number of users, 0 if the model is not loaded.
+     */
+    static synchronized int getReferences(String pathToModel) {
+        Entry entry = MODELS.get(key(pathToModel, null));
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Returns the number of loaded models, each with one open session.
+     *
+     * @return The number of loaded models.
+     */
+    static synchronized int size() {
+        return MODELS.size();
+    }
+
+    /**
+     * Loads a model and creates its session.
+     */
+    private static Entry load(String pathToModel, byte[] sessionConfig) {
+        SavedModelBundle bundle = SavedModelBundle.load(pathToModel,
+                                                        BatchPredictor.MODEL_TAG);
+        if (sessionConfig == null) {
+            return new Entry(bundle, bundle.session());
+        }
+        Session session = new Session(bundle.graph(), sessionConfig);
+        String prefix = new File(new File(pathToModel, "variables"), "variables")
+                .getPath();
+        try (Tensor<?> checkpoint = Tensor.create(prefix.getBytes(StandardCharsets.UTF_8))) {
+            session.runner()
+                   .feed(CHECKPOINT_INPUT, checkpoint)
+                   .addTarget(RESTORE_OP)
+                   .run();
+        } catch (RuntimeException ex) {
+            session.close();
+            bundle.close();
+            throw ex;
+        }
+        // The variables of the loader's session are no longer needed.
+        bundle.session().close();
+        return new Entry(bundle, session);
+    }
+
+    private static String key(String pathToModel, byte[] sessionConfig) {
+        File file = new File(pathToModel);
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException ex) {
+            path = file.getAbsolutePath();
+        }
+        if (sessionConfig == null) {
+            return path;
+        }
+        StringBuilder key = new StringBuilder(path).append('#');
+        for (byte b : sessionConfig) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks and releases the native resources held by DEFCoN predictors.
+ *
+ * Owners of native resources register a cleanup action, which is run once:
+ * either explicitly when the owner is closed, or by a daemon thread after
+ * the owner has become unreachable without being closed. Unlike a
+ * finalizer, this does not delay the collection of the owner. The action
+ * must not refer to its owner, or the owner never becomes unreachable.
+ *
+ * The direct buffers of open predictors and the TensorFlow sessions of
+ * the model cache are counted, so that leaks show up across restarts of
+ * the analyzers.
+ */
+public final class NativeResources {
+
+    private final static Logger LOGGER = Logger.getLogger(NativeResources.class.getName());
+
+    /**
+     * Receives the owners that have become unreachable.
+     */
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+
+    /**
+     * Keeps the registrations reachable until their action has run.
+     */
+    private static final Set<Registration> REGISTERED
+            = Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>());
+
+    /**
+     * The bytes of direct buffers held by open predictors.
+     */
+    private static final AtomicLong DIRECT_BYTES = new AtomicLong();
+
+    static {
+        Thread cleaner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((Registration) QUEUE.remove()).clean();
+                    } catch (InterruptedException ex) {
+                        // Keeps cleaning; the thread is a daemon.
+                    } catch (RuntimeException ex) {
+                        LOGGER.log(Level.WARNING, "A DEFCoN cleanup action failed.", ex);
+                    }
+                }
+            }
+        }, "DEFCoN cleaner");
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+
+    /**
+     * A cleanup action registered for an owner.
+     */
+    static final class Registration extends PhantomReference<Object> {
+        private final AtomicReference<Runnable> action;
+
+        private Registration(Object owner, Runnable action) {
+            super(owner, QUEUE);
+            this.action = new AtomicReference<>(action);
+        }
+
+        /**
+         * Runs the cleanup action unless it has already run.
+         */
+        void clean() {
+            Runnable pending = action.getAndSet(null);
+            if (pending != null) {
+                REGISTERED.remove(this);
+                pending.run();
+            }
+        }
+    }
+
+    private NativeResources() {
+    }
+
+    /**
+     * Registers an action that releases the native resources of an owner.
+     *
+     * @param owner The object holding the resources.
+     * @param action The cleanup action; it must not refer to the owner.
+     * @return The registration, whose clean() runs the action.
+     */
+    static Registration register(Object owner, Runnable action) {
+        Registration registration = new Registration(owner, action);
+        REGISTERED.add(registration);
+        return registration;
+    }
+
+    /**
+     * Counts newly allocated direct buffer bytes.
+     *
+     * @param bytes The number of bytes.
+     */
+    static void reserve(long bytes) {
+        DIRECT_BYTES.addAndGet(bytes);
+    }
+
+    /**
+     * Counts direct buffer bytes that are no longer held.
+     *
+     * @param bytes The number of bytes.
+     */
+    static void release(long bytes) {
+        DIRECT_BYTES.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns the bytes of direct buffers held by open DEFCoN predictors.
+     *
+     * @return The number of bytes.
+     */
+    public static long getDirectBytes() {
+        return DIRECT_BYTES.get();
+    }
+
+    /**
+     * Returns the number of TensorFlow sessions open in the model cache.
+     *
+     * @return The number of sessions.
+     */
+    public static int getOpenSessions() {
+        return ModelCache.size();
+    }
+
+    /**
+     * Returns the number of owners whose resources have not been released.
+     *
+     * @return The number of owners.
+     */
+    public static int getOpenOwners() {
+        return REGISTERED.size();
+    }
+}
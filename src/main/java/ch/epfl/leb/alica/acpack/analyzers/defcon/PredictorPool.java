@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ch.epfl.leb.defcon.predictors.Predictor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of DEFCoN predictors leased to concurrent callers.
+ *
+ * A predictor keeps the density map of its last frame, so it can only
+ * serve one frame at a time. The pool hands each caller a predictor of its
+ * own, with its own buffers, and blocks callers while all are in use.
+ */
+public class PredictorPool {
+
+    private final List<Predictor> predictors;
+
+    private final BlockingQueue<Predictor> idle;
+
+    /**
+     * Initializes the pool.
+     *
+     * @param predictors The predictors of the pool, already set up.
+     */
+    public PredictorPool(List<? extends Predictor> predictors) {
+        if (predictors.isEmpty()) {
+            throw new IllegalArgumentException("The pool needs at least one predictor.");
+        }
+        this.predictors = new ArrayList<Predictor>(predictors);
+        this.idle = new ArrayBlockingQueue<>(predictors.size(), false, predictors);
+    }
+
+    /**
+     * Returns the number of predictors in the pool.
+     *
+     * @return The number of predictors.
+     */
+    public int size() {
+        return predictors.size();
+    }
+
+    /**
+     * Takes a predictor, waiting until one is free.
+     *
+     * @return A predictor for the exclusive use of the caller.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Predictor lease() throws InterruptedException {
+        return idle.take();
+    }
+
+    /**
+     * Returns a predictor obtained from lease().
+     *
+     * @param predictor The predictor to return.
+     */
+    public void release(Predictor predictor) {
+        if (!idle.offer(predictor)) {
+            throw new IllegalStateException("The predictor does not belong to the pool.");
+        }
+    }
+
+    /**
+     * Closes all predictors of the pool.
+     */
+    public void close() {
+        for (Predictor predictor : predictors) {
+            predictor.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Puts the results of frames analyzed concurrently back in timestamp order.
+ *
+ * Each frame is registered with begin() before its analysis and handed back
+ * with complete() afterwards, or with cancel() if it is never analyzed. A
+ * result is passed on once no frame with an earlier timestamp is still being
+ * analyzed, so the results reach the sink in timestamp order whatever order
+ * the analyses finish in.
+ */
+final class ReorderBuffer {
+
+    /**
+     * Receives the results in timestamp order.
+     */
+    interface Sink {
+        void accept(long timeMs, double value);
+    }
+
+    /**
+     * A finished result waiting for earlier frames.
+     */
+    private static final class Result implements Comparable<Result> {
+        final long timeMs;
+        final long sequence;
+        final double value;
+
+        Result(long timeMs, long sequence, double value) {
+            this.timeMs = timeMs;
+            this.sequence = sequence;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Result other) {
+            if (timeMs != other.timeMs) {
+                return Long.compare(timeMs, other.timeMs);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Sink sink;
+
+    /**
+     * The number of frames being analyzed for each timestamp.
+     */
+    private final TreeMap<Long, Integer> inFlight = new TreeMap<>();
+
+    private final PriorityQueue<Result> finished = new PriorityQueue<>();
+
+    private long sequence = 0;
+
+    /**
+     * Initializes the buffer.
+     *
+     * @param sink The receiver of the ordered results.
+     */
+    ReorderBuffer(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Registers a frame whose analysis is starting.
+     *
+     * @param timeMs The acquisition time of the frame.
+     */
+    synchronized void begin(long timeMs) {
+        Integer n = inFlight.get(timeMs);
+        inFlight.put(timeMs, n == null ? 1 : n + 1);
+    }
+
+    /**
+     * Hands back the result of a frame registered with begin() and passes
+     * on all results that are no longer preceded by a running analysis.
+     *
+     * @param timeMs The acquisition time of the frame.
+     * @param value The result of the frame.
+     */
+    synchronized void complete(long timeMs, double value) {
+        unregister(timeMs);
+        finished.add(new Result(timeMs, sequence++, value));
+        flush();
+    }
+
+    /**
+     * Forgets a frame registered with begin() whose analysis will not run,
+     * and passes on the results that were only waiting for it.
+     *
+     * @param timeMs The acquisition time of the frame.
+     */
+    synchronized void cancel(long timeMs) {
+        unregister(timeMs);
+        flush();
+    }
+
+    private void unregister(long timeMs) {
+        Integer n = inFlight.get(timeMs);
+        if (n == null) {
+            throw new IllegalStateException("Frame " + timeMs + " was not registered.");
+        } else if (n == 1) {
+            inFlight.remove(timeMs);
+        } else {
+            inFlight.put(timeMs, n - 1);
+        }
+    }
+
+    /**
+     * Passes on all results that are no longer preceded by a running
+     * analysis.
+     */
+    private void flush() {
+        while (!finished.isEmpty()
+                && (inFlight.isEmpty() || finished.peek().timeMs <= inFlight.firstKey())) {
+            Result result = finished.poll();
+            sink.accept(result.timeMs, result.value);
+        }
+    }
+
+    /**
+     * Returns the number of results waiting for earlier frames.
+     *
+     * @return The number of waiting results.
+     */
+    synchronized int getWaiting() {
+        return finished.size();
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes the TensorFlow session options used by DEFCoN.
+ *
+ * The TensorFlow Java API takes the session options as a serialized
+ * ConfigProto message. Only the few fields below are needed, so they are
+ * written directly in the protocol buffer wire format instead of depending
+ * on the generated protocol buffer classes.
+ */
+final class SessionConfig {
+
+    /**
+     * ConfigProto.intra_op_parallelism_threads, field 2, varint.
+     */
+    private static final int INTRA_OP_THREADS_TAG = (2 << 3);
+
+    /**
+     * ConfigProto.inter_op_parallelism_threads, field 5, varint.
+     */
+    private static final int INTER_OP_THREADS_TAG = (5 << 3);
+
+    /**
+     * ConfigProto.graph_options, field 10, message.
+     */
+    private static final int GRAPH_OPTIONS_TAG = (10 << 3) | 2;
+
+    /**
+     * GraphOptions.optimizer_options, field 3, message.
+     */
+    private static final int OPTIMIZER_OPTIONS_TAG = (3 << 3) | 2;
+
+    /**
+     * OptimizerOptions.opt_level, field 3, enum.
+     */
+    private static final int OPT_LEVEL_TAG = (3 << 3);
+
+    /**
+     * OptimizerOptions.Level.L0, which turns off the graph optimizations
+     * such as common subexpression elimination and constant folding.
+     */
+    private static final int OPT_LEVEL_L0 = -1;
+
+    private SessionConfig() {
+    }
+
+    /**
+     * Encodes session options as a serialized ConfigProto.
+     *
+     * @param intraOpThreads Threads used within an operation; 0 for the
+     *                       TensorFlow default of one per core.
+     * @param interOpThreads Threads used to run independent operations; 0
+     *                       for the TensorFlow default.
+     * @param optimizeGraph Apply the default graph optimizations?
+     * @return The serialized ConfigProto, or null for the default options.
+     */
+    static byte[] encode(int intraOpThreads, int interOpThreads,
+                         boolean optimizeGraph) {
+        if (intraOpThreads == 0 && interOpThreads == 0 && optimizeGraph) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (intraOpThreads > 0) {
+            writeVarint(out, INTRA_OP_THREADS_TAG);
+            writeVarint(out, intraOpThreads);
+        }
+        if (interOpThreads > 0) {
+            writeVarint(out, INTER_OP_THREADS_TAG);
+            writeVarint(out, interOpThreads);
+        }
+        if (!optimizeGraph) {
+            ByteArrayOutputStream optimizer = new ByteArrayOutputStream();
+            writeVarint(optimizer, OPT_LEVEL_TAG);
+            writeVarint(optimizer, OPT_LEVEL_L0);
+            ByteArrayOutputStream graph = new ByteArrayOutputStream();
+            writeMessage(graph, OPTIMIZER_OPTIONS_TAG, optimizer.toByteArray());
+            writeMessage(out, GRAPH_OPTIONS_TAG, graph.toByteArray());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a length-delimited field.
+     */
+    private static void writeMessage(ByteArrayOutputStream out, int tag,
+                                     byte[] message) {
+        writeVarint(out, tag);
+        writeVarint(out, message.length);
+        out.write(message, 0, message.length);
+    }
+
+    /**
+     * Writes a varint; negative values take ten bytes, as for int64.
+     */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
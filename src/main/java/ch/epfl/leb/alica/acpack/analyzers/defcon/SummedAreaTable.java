@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Summed-area table of a density map for computing local counts.
+ *
+ * Each entry holds the sum of the map above and to the left of it, so the
+ * count within any box is obtained from four entries. Computing the local
+ * counts of a whole map therefore costs the same for any box size. The table
+ * is kept between maps and only grows with the map size.
+ */
+public final class SummedAreaTable {
+
+    /**
+     * The table, with one more row and column than the map. The first row
+     * and column are zero.
+     */
+    private double[] table = new double[0];
+
+    /**
+     * The size of the map.
+     */
+    private int width = 0;
+    private int height = 0;
+
+    /**
+     * Builds the table of a density map.
+     *
+     * @param map The density map.
+     */
+    public void build(FloatProcessor map) {
+        build((float[]) map.getPixels(), 0, map.getWidth(), map.getHeight());
+    }
+
+    /**
+     * Builds the table of a density map stored in an array.
+     *
+     * @param map The array containing the density map.
+     * @param offset The index of the first pixel of the map in the array.
+     * @param width The width of the map.
+     * @param height The height of the map.
+     */
+    public void build(float[] map, int offset, int width, int height) {
+        int stride = width + 1;
+        int size = stride * (height + 1);
+        if (table.length < size) {
+            table = new double[size];
+        }
+        this.width = width;
+        this.height = height;
+        for (int x = 0; x < stride; x++) {
+            table[x] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            int row = (y + 1) * stride;
+            int src = offset + y * width;
+            double rowSum = 0;
+            table[row] = 0;
+            for (int x = 0; x < width; x++) {
+                rowSum += map[src + x];
+                table[row + x + 1] = table[row - stride + x + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * Returns the width of the map of the table.
+     *
+     * @return The width of the map.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the map of the table.
+     *
+     * @return The height of the map.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the sum of the map over a rectangle, clipped at the map
+     * borders.
+     *
+     * @param x0 The first column of the rectangle.
+     * @param y0 The first row of the rectangle.
+     * @param x1 The last column of the rectangle, inclusive.
+     * @param y1 The last row of the rectangle, inclusive.
+     * @return The sum over the rectangle.
+     */
+    public double sum(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width - 1) + 1;
+        y1 = Math.min(y1, height - 1) + 1;
+        if (x1 <= x0 || y1 <= y0) {
+            return 0;
+        }
+        int stride = width + 1;
+        return table[y1 * stride + x1] - table[y0 * stride + x1]
+             - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+
+    /**
+     * Computes the count within the box centered on each pixel, clipped at
+     * the map borders, and returns the maximum.
+     *
+     * @param boxSize The odd side length of the box in pixels.
+     * @param counts The local count map, at least width * height long, or
+     *               null if only the maximum is needed.
+     * @return The maximum local count.
+     */
+    public double maximumLocalCount(int boxSize, float[] counts) {
+        checkBoxSize(boxSize);
+        int half = boxSize / 2;
+        double max = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double count = sum(x - half, y - half, x + half, y + half);
+                if (counts != null) {
+                    counts[y * width + x] = (float) count;
+                }
+                if (count > max) {
+                    max = count;
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Computes the maximum local counts for several box sizes in one pass
+     * over the map.
+     *
+     * @param boxSizes The odd side lengths of the boxes in pixels.
+     * @param max Receives the maximum local count of each box size.
+     */
+    public void maximumLocalCounts(int[] boxSizes, double[] max) {
+        if (max.length < boxSizes.length) {
+            throw new IllegalArgumentException(
+                    "The result array is shorter than the box sizes.");
+        }
+        for (int k = 0; k < boxSizes.length; k++) {
+            checkBoxSize(boxSizes[k]);
+            max[k] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int k = 0; k < boxSizes.length; k++) {
+                    int half = boxSizes[k] / 2;
+                    double count = sum(x - half, y - half, x + half, y + half);
+                    if (count > max[k]) {
+                        max[k] = count;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void checkBoxSize(int boxSize) {
+        if (boxSize < 1) {
+            String msg = "boxSize must be at least 1. Received: " +
+                         String.valueOf(boxSize);
+            throw new IllegalArgumentException(msg);
+        }
+    }
+}
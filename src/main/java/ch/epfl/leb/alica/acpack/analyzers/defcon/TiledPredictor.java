@@ -0,0 +1,497 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ch.epfl.leb.defcon.predictors.ImageBitDepthException;
+import ch.epfl.leb.defcon.predictors.NoLocalCountMapException;
+import ch.epfl.leb.defcon.predictors.SessionClosedException;
+import ch.epfl.leb.defcon.predictors.UninitializedPredictorException;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+/**
+ * A DEFCoN predictor that splits large frames into overlapping tiles.
+ *
+ * Each tile is the core region that it contributes to the density map plus a
+ * margin on every side that covers the receptive field of the network. The
+ * tiles are predicted in parallel and only their cores are copied into the
+ * density map, so the stitched map matches whole-frame inference up to the
+ * context beyond the receptive field. Only a few tiles are in memory at a
+ * time, whatever the size of the frame.
+ *
+ * The network normalizes its input by the minimum and maximum of each image.
+ * The frame is therefore normalized once as a whole and the tiles are fed
+ * after the normalization layer, so that all tiles share the same scale.
+ */
+public class TiledPredictor implements DirectPredictor {
+
+    private final static Logger LOGGER = Logger.getLogger(TiledPredictor.class.getName());
+
+    /**
+     * The name of the normalized input of the network layers.
+     */
+    static final String NORMALIZED_TENSOR = "model_5/hist_norm/truediv";
+
+    /**
+     * The margin in pixels added around each tile.
+     *
+     * The receptive field of the network extends 36 pixels from its center.
+     */
+    static final int MARGIN = 40;
+
+    /**
+     * The network downsamples by this factor, so tiles start at multiples of
+     * it to keep the same sampling grid as the whole frame.
+     */
+    static final int ALIGNMENT = 4;
+
+    /**
+     * The side length of the tile cores in pixels.
+     */
+    private final int tileSize;
+
+    /**
+     * The number of tiles predicted at the same time.
+     */
+    private final int threads;
+
+    /**
+     * The serialized session options, or null for the defaults.
+     */
+    private final byte[] sessionConfig;
+
+    /**
+     * The session of the model, or null before setup or after closing.
+     */
+    private Session session;
+
+    /**
+     * The path of the saved model, used to release it from the cache.
+     */
+    private String modelPath;
+
+    /**
+     * The threads predicting the tiles.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The normalized frame.
+     */
+    private float[] input = new float[0];
+
+    /**
+     * A view of the input array that the frame is written to.
+     */
+    private FloatBuffer inputBuffer = FloatBuffer.wrap(input);
+
+    /**
+     * The stitched density map of the last frame.
+     */
+    private float[] density = new float[0];
+
+    /**
+     * The local count map of the last frame.
+     */
+    private float[] localCounts = new float[0];
+
+    /**
+     * The size of the last frame.
+     */
+    private int width = 0;
+    private int height = 0;
+
+    /**
+     * Is the density map up to date?
+     */
+    private boolean predicted = false;
+
+    /**
+     * Is the local count map up to date?
+     */
+    private boolean localCountsValid = false;
+
+    /**
+     * The summed-area table of the last density map.
+     */
+    private final SummedAreaTable table = new SummedAreaTable();
+
+    /**
+     * Is the summed-area table up to date?
+     */
+    private boolean tableValid = false;
+
+    /**
+     * The bytes of the direct input buffers of the tiling threads.
+     */
+    private final AtomicLong tileBytes = new AtomicLong();
+
+    /**
+     * The input and output buffers of each tiling thread.
+     */
+    private final ThreadLocal<TileBuffers> buffers = new ThreadLocal<TileBuffers>() {
+        @Override
+        protected TileBuffers initialValue() {
+            return new TileBuffers();
+        }
+    };
+
+    /**
+     * Reused buffers for the tensors of one tile.
+     */
+    private static class TileBuffers {
+        FloatBuffer input = BatchPredictor.allocateDirect(0);
+        float[] output = new float[0];
+        FloatBuffer outputBuffer = FloatBuffer.wrap(output);
+    }
+
+    /**
+     * Initializes the predictor; call setup() to load a model.
+     *
+     * @param tileSize The side length of the tile cores in pixels; it is
+     *                 rounded up to a multiple of 4.
+     * @param threads The number of tiles predicted at the same time.
+     */
+    public TiledPredictor(int tileSize, int threads) {
+        this(tileSize, threads, null);
+    }
+
+    /**
+     * Initializes the predictor with the given TensorFlow session options;
+     * call setup() to load a model.
+     *
+     * @param tileSize The side length of the tile cores in pixels; it is
+     *                 rounded up to a multiple of 4.
+     * @param threads The number of tiles predicted at the same time.
+     * @param sessionConfig The serialized ConfigProto of the session, or null
+     *                      for the default options.
+     */
+    public TiledPredictor(int tileSize, int threads, byte[] sessionConfig) {
+        if (tileSize < 1) {
+            String msg = "tileSize must be at least 1. Received: " +
+                         String.valueOf(tileSize);
+            throw new IllegalArgumentException(msg);
+        }
+        if (threads < 1) {
+            String msg = "threads must be at least 1. Received: " +
+                         String.valueOf(threads);
+            throw new IllegalArgumentException(msg);
+        }
+        this.tileSize = align(tileSize);
+        this.threads = threads;
+        this.sessionConfig = sessionConfig;
+    }
+
+    /**
+     * Loads the saved DEFCoN model, or shares it if it is already loaded, and
+     * starts the tiling threads.
+     *
+     * @param pathToModel The path to the saved model directory.
+     */
+    @Override
+    public void setup(String pathToModel) {
+        close();
+        session = ModelCache.acquire(pathToModel, sessionConfig);
+        modelPath = pathToModel;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DEFCoN tile");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Stops the tiling threads and releases the model.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (session != null) {
+            session = null;
+            ModelCache.release(modelPath, sessionConfig);
+        }
+        // The tile buffers go away with the stopped threads.
+        NativeResources.release(tileBytes.getAndSet(0));
+        predicted = false;
+        localCountsValid = false;
+    }
+
+    /**
+     * Returns the side length of the tile cores.
+     *
+     * @return The side length of the tile cores in pixels.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Predicts the density map of a frame tile by tile.
+     *
+     * @param ip The 8-bit or 16-bit frame.
+     * @throws ImageBitDepthException If the frame is not 8-bit or 16-bit.
+     * @throws SessionClosedException If no model is loaded.
+     */
+    @Override
+    public void predict(ImageProcessor ip)
+            throws ImageBitDepthException, SessionClosedException {
+        predict(ip.getPixels(), ip.getWidth(), ip.getHeight(), null);
+    }
+
+    /**
+     * Predicts the density map of a region of a frame tile by tile, without
+     * copying the frame first.
+     *
+     * @param pixels The short[] or byte[] pixels of the frame.
+     * @param frameWidth The width of the frame.
+     * @param frameHeight The height of the frame.
+     * @param region The region to analyze, or null for the whole frame.
+     * @throws ImageBitDepthException If the frame is not 8-bit or 16-bit.
+     * @throws SessionClosedException If no model is loaded.
+     */
+    @Override
+    public void predict(Object pixels, int frameWidth, int frameHeight,
+                        Rectangle region)
+            throws ImageBitDepthException, SessionClosedException {
+        if (session == null) {
+            throw new SessionClosedException("The predictor is not set up.");
+        }
+        predicted = false;
+        localCountsValid = false;
+        tableValid = false;
+        Rectangle r = BatchPredictor.clip(region, frameWidth, frameHeight);
+        width = r.width;
+        height = r.height;
+        int size = width * height;
+        if (input.length < size) {
+            input = new float[size];
+            inputBuffer = FloatBuffer.wrap(input);
+            density = new float[size];
+        }
+        inputBuffer.clear();
+        BatchPredictor.putRegion(pixels, frameWidth, r.x, r.y, width, height,
+                                 inputBuffer);
+        normalize(input, size);
+
+        List<Future<Void>> results = new ArrayList<>();
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                final int x0 = x;
+                final int y0 = y;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        predictTile(x0, y0);
+                        return null;
+                    }
+                }));
+            }
+        }
+        try {
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            for (Future<Void> result : results) {
+                result.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Tiled DEFCoN inference was interrupted.");
+            return;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Error predicting a DEFCoN tile.", ex.getCause());
+        }
+        predicted = true;
+    }
+
+    @Override
+    public double getCount() throws UninitializedPredictorException {
+        checkInitialized();
+        double count = 0;
+        for (int k = 0; k < width * height; k++) {
+            count += density[k];
+        }
+        return count;
+    }
+
+    @Override
+    public FloatProcessor getDensityMap() throws UninitializedPredictorException {
+        checkInitialized();
+        float[] map = new float[width * height];
+        System.arraycopy(density, 0, map, 0, map.length);
+        return new FloatProcessor(width, height, map);
+    }
+
+    @Override
+    public FloatProcessor getLocalCountMap() throws NoLocalCountMapException {
+        if (!localCountsValid) {
+            throw new NoLocalCountMapException(
+                    "The maximum local count has not been computed.");
+        }
+        float[] map = new float[width * height];
+        System.arraycopy(localCounts, 0, map, 0, map.length);
+        return new FloatProcessor(width, height, map);
+    }
+
+    /**
+     * Returns the maximum count within a square box anywhere in the frame.
+     *
+     * @param boxSize The odd side length of the box in pixels.
+     * @return The maximum local count.
+     * @throws UninitializedPredictorException If nothing was predicted yet.
+     */
+    @Override
+    public double getMaximumLocalCount(int boxSize)
+            throws UninitializedPredictorException {
+        checkInitialized();
+        if (localCounts.length < width * height) {
+            localCounts = new float[width * height];
+        }
+        if (!tableValid) {
+            table.build(density, 0, width, height);
+            tableValid = true;
+        }
+        double max = table.maximumLocalCount(boxSize, localCounts);
+        localCountsValid = true;
+        return max;
+    }
+
+    @Override
+    public void buildSummedAreaTable(SummedAreaTable table)
+            throws UninitializedPredictorException {
+        checkInitialized();
+        table.build(density, 0, width, height);
+    }
+
+    /**
+     * Scales values from their minimum and maximum to [0, 1] as done by the
+     * first layer of the network.
+     *
+     * @param values The values to scale in place.
+     * @param size The number of values to scale.
+     */
+    static void normalize(float[] values, int size) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int k = 0; k < size; k++) {
+            min = Math.min(min, values[k]);
+            max = Math.max(max, values[k]);
+        }
+        // A constant frame is mapped to zero instead of NaN.
+        float scale = max > min ? 1f / (max - min) : 0f;
+        for (int k = 0; k < size; k++) {
+            values[k] = (values[k] - min) * scale;
+        }
+    }
+
+    /**
+     * Predicts the tile whose core starts at the given position and copies
+     * the core into the density map.
+     */
+    private void predictTile(int x0, int y0) {
+        int x1 = Math.min(x0 + tileSize, width);
+        int y1 = Math.min(y0 + tileSize, height);
+        int tx0 = Math.max(x0 - MARGIN, 0);
+        int ty0 = Math.max(y0 - MARGIN, 0);
+        int tx1 = Math.min(x1 + MARGIN, width);
+        int ty1 = Math.min(y1 + MARGIN, height);
+        int tw = tx1 - tx0;
+        int th = ty1 - ty0;
+
+        TileBuffers tile = buffers.get();
+        if (tile.input.capacity() < tw * th) {
+            int side = tileSize + 2 * MARGIN;
+            int capacity = Math.max(side * side, tw * th);
+            long bytes = 4L * (capacity - tile.input.capacity());
+            tile.input = BatchPredictor.allocateDirect(capacity);
+            tileBytes.addAndGet(bytes);
+            NativeResources.reserve(bytes);
+        }
+        tile.input.clear();
+        for (int y = ty0; y < ty1; y++) {
+            tile.input.put(input, y * width + tx0, tw);
+        }
+        tile.input.flip();
+
+        long[] shape = {1, th, tw, 1};
+        int outWidth;
+        try (Tensor<Float> in = Tensor.create(shape, tile.input)) {
+            List<Tensor<?>> results = session.runner()
+                                            .feed(NORMALIZED_TENSOR, in)
+                                            .fetch(BatchPredictor.OUTPUT_TENSOR)
+                                            .run();
+            try (Tensor<?> out = results.get(0)) {
+                // The output is padded to a multiple of 4 at the far edges.
+                outWidth = (int) out.shape()[2];
+                int size = out.numElements();
+                if (tile.output.length < size) {
+                    tile.output = new float[size];
+                    tile.outputBuffer = FloatBuffer.wrap(tile.output);
+                }
+                tile.outputBuffer.clear();
+                tile.outputBuffer.limit(size);
+                out.writeTo(tile.outputBuffer);
+            }
+        }
+
+        // The cores do not overlap, so the threads write disjoint regions.
+        for (int y = y0; y < y1; y++) {
+            System.arraycopy(tile.output, (y - ty0) * outWidth + (x0 - tx0),
+                             density, y * width + x0, x1 - x0);
+        }
+    }
+
+    private void checkInitialized() throws UninitializedPredictorException {
+        if (!predicted) {
+            throw new UninitializedPredictorException(
+                    "No density map has been predicted.");
+        }
+    }
+
+    /**
+     * Rounds a length up to a multiple of the alignment.
+     */
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.IJ;
+import ij.ImagePlus;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds images written by a running acquisition into the analysis.
+ *
+ * A prefetch thread watches the acquisition directory with a WatchService
+ * and decodes the images in the order of their frame numbers as soon as
+ * they appear. Decoded frames are handed over through a bounded queue, so
+ * that file I/O and decoding overlap with particle detection and nothing
+ * spins while waiting for the camera.
+ *
+ * A frame file is only decoded once it is complete: either the file of the
+ * next frame exists, or its size has not changed for STABLE_SIZE_MS. If a
+ * frame does not arrive within the wait time while a later frame exists,
+ * the missing frames are skipped, so that a dropped camera frame does not
+ * stop the analysis. While no later frame exists, e.g. after the end of the
+ * acquisition, the time between two such scans is doubled.
+ */
+class AcquisitionImageSource {
+
+    private final static Logger LOGGER =
+            Logger.getLogger(AcquisitionImageSource.class.getName());
+
+    /**
+     * Maximum time between two checks of the directory, in case the file
+     * system does not deliver change events (e.g. network shares).
+     */
+    private static final long RESCAN_INTERVAL_MS = 100;
+
+    /**
+     * Time for which the size of the newest frame file must not change
+     * before it is decoded.
+     */
+    static final long STABLE_SIZE_MS = 50;
+
+    /**
+     * Number of frames after a missing one that are looked for before the
+     * missing frame is given up.
+     */
+    static final int MAX_SKIPPED_FRAMES = 1000;
+
+    /**
+     * Maximum time between two scans for frames after a missing one.
+     */
+    static final long MAX_SCAN_INTERVAL_MS = 10000;
+
+    /**
+     * A decoded frame and its number in the acquisition.
+     */
+    static class Frame {
+        final int number;
+        final ImagePlus image;
+
+        Frame(int number, ImagePlus image) {
+            this.number = number;
+            this.image = image;
+        }
+    }
+
+    private final Path directory;
+    private final String prefix;
+    private final String sufix;
+    private final int nimchars;
+    private final long skip_timeout_ns;
+    private final BlockingQueue<Frame> queue;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private Frame unread = null; // frame given back by the caller
+    private int nextFrame;
+
+    // prefetch thread state of the file of nextFrame
+    private long waitingSince;
+    private long scan_interval_ns;
+    private long lastSize = -1;
+    private long sizeStableSince;
+
+    /**
+     * Starts watching the acquisition directory given in the dialog.
+     *
+     * @param dg dialog manager holding the directory and file name pattern
+     * @param capacity maximum number of decoded frames held in memory
+     * @throws IOException if the directory cannot be watched
+     */
+    AcquisitionImageSource(MyDialogs dg, int capacity) throws IOException {
+        if (dg.imagedir == null)
+            throw new IllegalArgumentException("No acquisition directory set.");
+        directory = Paths.get(dg.imagedir);
+        prefix = dg.prefix;
+        sufix = dg.sufix;
+        nimchars = dg.nimchars;
+        skip_timeout_ns = TimeUnit.MILLISECONDS.toNanos(Math.max(dg.waittime, 0));
+        nextFrame = dg.nimstart;
+        queue = new ArrayBlockingQueue<Frame>(capacity);
+
+        watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                           StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "QuickPALM image prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the file name of a frame of the acquisition.
+     *
+     * @param frame frame number
+     * @return file name, relative to the acquisition directory
+     */
+    String getFileName(int frame) {
+        String imname = "" + frame;
+        while (imname.length() < nimchars) {
+            imname = "0" + imname;
+        }
+        return prefix + imname + sufix;
+    }
+
+    /**
+     * Returns a given frame, waiting for it if it has not been written yet.
+     *
+     * Frames before the requested one that have not been taken are
+     * discarded. If the requested frame was skipped, the next available
+     * frame is returned; its number tells the caller where to resume.
+     *
+     * @param frame frame number to return
+     * @param timeout_ms maximum time to wait for the frame
+     * @return the frame, or null if it did not arrive in time
+     */
+    Frame next(int frame, long timeout_ms) {
+        if (unread != null) {
+            Frame f = unread;
+            unread = null;
+            if (f.number >= frame)
+                return f;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+        try {
+            while (true) {
+                long wait = Math.max(deadline - System.nanoTime(), 0);
+                Frame f = queue.poll(wait, TimeUnit.NANOSECONDS);
+                if (f == null)
+                    return null;
+                // if the requested frame was skipped, hand out the next one
+                if (f.number >= frame)
+                    return f;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Gives back the frame last returned by next(), so that the next call
+     * returns it again.
+     *
+     * @param frame frame returned by next()
+     */
+    void unread(Frame frame) {
+        unread = frame;
+    }
+
+    /**
+     * Stops the prefetch thread and releases the directory watch.
+     */
+    void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            watcher.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not close directory watch.", ex);
+        }
+        queue.clear();
+        unread = null;
+    }
+
+    private void prefetch() {
+        startWaiting(nextFrame);
+        try {
+            while (running) {
+                Path file = directory.resolve(getFileName(nextFrame));
+                boolean pending = false;
+                if (Files.isRegularFile(file)) {
+                    if (isComplete(file)) {
+                        ImagePlus imp = IJ.openImage(file.toString());
+                        if (imp != null) {
+                            queue.put(new Frame(nextFrame, imp));
+                            startWaiting(nextFrame + 1);
+                            continue;
+                        }
+                    } else {
+                        pending = true;
+                    }
+                }
+                if (!pending && System.nanoTime() - waitingSince > scan_interval_ns) {
+                    int later = findLaterFrame();
+                    if (later > nextFrame) {
+                        LOGGER.log(Level.WARNING, "Frames {0} to {1} did not arrive and are skipped.",
+                                   new Object[]{nextFrame, later - 1});
+                        startWaiting(later);
+                        continue;
+                    }
+                    // back off until the next scan
+                    waitingSince = System.nanoTime();
+                    scan_interval_ns = Math.min(2 * Math.max(scan_interval_ns,
+                            TimeUnit.MILLISECONDS.toNanos(RESCAN_INTERVAL_MS)),
+                            TimeUnit.MILLISECONDS.toNanos(MAX_SCAN_INTERVAL_MS));
+                }
+                long wait = pending ? STABLE_SIZE_MS : RESCAN_INTERVAL_MS;
+                WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // closed
+        } catch (ClosedWatchServiceException ex) {
+            // closed
+        }
+    }
+
+    private void startWaiting(int frame) {
+        nextFrame = frame;
+        waitingSince = System.nanoTime();
+        scan_interval_ns = skip_timeout_ns;
+        lastSize = -1;
+    }
+
+    /**
+     * Checks whether a frame file has been completely written: the file of
+     * the next frame exists, or the size has been stable for STABLE_SIZE_MS.
+     */
+    private boolean isComplete(Path file) {
+        if (Files.isRegularFile(directory.resolve(getFileName(nextFrame + 1))))
+            return true;
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException ex) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (size != lastSize) {
+            lastSize = size;
+            sizeStableSince = now;
+            return false;
+        }
+        return now - sizeStableSince >= TimeUnit.MILLISECONDS.toNanos(STABLE_SIZE_MS);
+    }
+
+    /**
+     * @return number of the first existing frame file after nextFrame, or
+     * nextFrame if there is none
+     */
+    private int findLaterFrame() {
+        for (int frame = nextFrame + 1; frame <= nextFrame + MAX_SKIPPED_FRAMES; frame++) {
+            if (Files.isRegularFile(directory.resolve(getFileName(frame))))
+                return frame;
+        }
+        return nextFrame;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the astigmatism Z-calibration of QuickPALM from a z-scan of beads.
+ *
+ * The slices of the stack are analyzed in parallel with
+ * getParticleForCalibration, once per bead. The width-minus-height values of
+ * all beads are averaged per slice, smoothed with a moving mean and cut to
+ * the strictly monotone part around the focal plane, where width minus
+ * height is zero. The z positions are relative to this plane. The result can
+ * be saved to a file that is loaded for 3D analysis.
+ */
+public class CalibrationBuilder {
+
+    /**
+     * Column headings of the calibration table. The first two columns are
+     * read by MyFunctions.initialize3d.
+     */
+    static final String[] COLUMNS = {"Z (nm)", "Width minus Height (px)",
+        "Raw Width minus Height (px)", "Beads"};
+
+    private final MyDialogs dg;
+    private final MyFunctions f;
+    private final double zstep;
+    private final int window;
+    private final int threads;
+
+    /**
+     * Initializes the calibration builder.
+     *
+     * @param params analysis parameters; the local threshold and minimum
+     *        symmetry are used to select bead images
+     * @param zstep distance between slices of the z-scan in nm
+     * @param window half-width of the moving mean in slices
+     */
+    public CalibrationBuilder(QuickPalmParameters params, double zstep, int window) {
+        if (zstep <= 0 || window < 0)
+            throw new IllegalArgumentException("Invalid calibration parameter.");
+        dg = new MyDialogs();
+        dg.setParameters(params);
+        f = new MyFunctions(false);
+        this.zstep = zstep;
+        this.window = window;
+        this.threads = Math.min(params.threads,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Analyzes a z-scan and returns the calibration table.
+     *
+     * @param stack z-scan, one slice per z step
+     * @param beads regions around each bead, or null to use the whole image
+     *        as a single bead
+     * @return calibration table with the columns in COLUMNS
+     * @throws IllegalArgumentException if no monotone calibration is found
+     */
+    public ResultsTable build(final ImageStack stack, Roi[] beads) {
+        final Rectangle[] regions;
+        if (beads == null || beads.length == 0) {
+            regions = new Rectangle[]{
+                new Rectangle(0, 0, stack.getWidth(), stack.getHeight())};
+        } else {
+            regions = new Rectangle[beads.length];
+            for (int b = 0; b < beads.length; b++) {
+                regions[b] = beads[b].getBounds();
+            }
+        }
+
+        int nslices = stack.getSize();
+        double[] raw = new double[nslices];
+        int[] nbeads = new int[nslices];
+        analyze(stack, regions, raw, nbeads);
+
+        // slices without a single good bead image are left out
+        int n = 0;
+        for (int s = 0; s < nslices; s++) {
+            if (nbeads[s] > 0)
+                n++;
+        }
+        if (n < 3)
+            throw new IllegalArgumentException("Too few slices with beads for a calibration.");
+        double[] z = new double[n];
+        double[] wmh_raw = new double[n];
+        int[] count = new int[n];
+        n = 0;
+        for (int s = 0; s < nslices; s++) {
+            if (nbeads[s] > 0) {
+                z[n] = s * zstep;
+                wmh_raw[n] = raw[s];
+                count[n] = nbeads[s];
+                n++;
+            }
+        }
+        double[] wmh = f.movingMean(wmh_raw, window);
+
+        // strictly monotone segment containing the zero crossing
+        int focus = 0;
+        for (int i = 1; i < n; i++) {
+            if (Math.abs(wmh[i]) < Math.abs(wmh[focus]))
+                focus = i;
+        }
+        double sign = focus + 1 < n
+                ? Math.signum(wmh[focus + 1] - wmh[focus])
+                : Math.signum(wmh[focus] - wmh[focus - 1]);
+        int first = focus;
+        while (first > 0 && Math.signum(wmh[first] - wmh[first - 1]) == sign)
+            first--;
+        int last = focus;
+        while (last < n - 1 && Math.signum(wmh[last + 1] - wmh[last]) == sign)
+            last++;
+        if (sign == 0 || last - first < 2)
+            throw new IllegalArgumentException("Width minus height is not monotone around the focus.");
+
+        // interpolated z of the zero crossing becomes z = 0
+        double z0 = z[focus];
+        int other = (focus < last && wmh[focus] * wmh[focus + 1] <= 0) ? focus + 1
+                : (focus > first ? focus - 1 : focus);
+        if (other != focus && wmh[other] != wmh[focus]) {
+            z0 = z[focus] - wmh[focus] * (z[other] - z[focus]) / (wmh[other] - wmh[focus]);
+        }
+
+        ResultsTable table = new ResultsTable();
+        table.setPrecision(3);
+        double[] cal_z = new double[last - first + 1];
+        double[] cal_wmh = new double[last - first + 1];
+        for (int i = first; i <= last; i++) {
+            cal_z[i - first] = z[i] - z0;
+            cal_wmh[i - first] = wmh[i];
+            table.incrementCounter();
+            table.addValue(COLUMNS[0], cal_z[i - first]);
+            table.addValue(COLUMNS[1], wmh[i]);
+            table.addValue(COLUMNS[2], wmh_raw[i]);
+            table.addValue(COLUMNS[3], count[i]);
+        }
+        MyFunctions.validateCalibration(cal_z, cal_wmh);
+        return table;
+    }
+
+    /**
+     * Saves the first two columns of a calibration table as a CSV file.
+     *
+     * @param table calibration table returned by build
+     * @param path path to the file
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(ResultsTable table, String path) throws IOException {
+        double[] z = table.getColumnAsDoubles(0);
+        double[] wmh = table.getColumnAsDoubles(1);
+        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+            out.println(COLUMNS[0] + "," + COLUMNS[1]);
+            for (int i = 0; i < z.length; i++) {
+                out.println(z[i] + "," + wmh[i]);
+            }
+        }
+    }
+
+    /**
+     * Averages the width minus height of all good bead images of each slice.
+     */
+    private void analyze(final ImageStack stack, final Rectangle[] regions,
+                         double[] wmh, int[] nbeads) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<double[]>> results = new ArrayList<>();
+            for (int s = 0; s < stack.getSize(); s++) {
+                final int slice = s + 1;
+                results.add(pool.submit(new Callable<double[]>() {
+                    @Override
+                    public double[] call() {
+                        return analyzeSlice(stack.getProcessor(slice), regions);
+                    }
+                }));
+            }
+            for (int s = 0; s < results.size(); s++) {
+                double[] r = results.get(s).get();
+                wmh[s] = r[0];
+                nbeads[s] = (int) r[1];
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Calibration was interrupted.", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Error analyzing the calibration stack.", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private double[] analyzeSlice(ImageProcessor ip, Rectangle[] regions) {
+        double sum = 0;
+        int n = 0;
+        for (Rectangle r : regions) {
+            int xstart = Math.max(r.x, 0);
+            int ystart = Math.max(r.y, 0);
+            int xend = Math.min(r.x + r.width, ip.getWidth()) - 1;
+            int yend = Math.min(r.y + r.height, ip.getHeight()) - 1;
+            double[] p = f.getParticleForCalibration(ip, dg, xstart, xend, ystart, yend);
+            // results: intensity, x, y, 4 widths, wmh, symmetry
+            if (!Double.isNaN(p[7]) && !Double.isInfinite(p[7]) && p[8] >= dg.symmetry) {
+                sum += p[7];
+                n++;
+            }
+        }
+        return new double[]{n > 0 ? sum / n : Double.NaN, n};
+    }
+}
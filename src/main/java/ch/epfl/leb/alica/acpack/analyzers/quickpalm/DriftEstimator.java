@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.measure.ResultsTable;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Online drift estimation from the localizations of QuickPALM.
+ *
+ * Localizations of consecutive windows of frames are rendered into small
+ * images. When a window is complete, it is cross-correlated with the first
+ * window using a fast Hartley transform on a background thread, and the
+ * sub-pixel position of the correlation peak gives the drift since the
+ * start of the acquisition. The drift of each window is written to the
+ * drift table, and the latest estimate can be subtracted from new
+ * localizations.
+ */
+class DriftEstimator {
+
+    private final static Logger LOGGER =
+            Logger.getLogger(DriftEstimator.class.getName());
+
+    /**
+     * Maximum side length of the rendered images.
+     */
+    static final int MAX_RENDER_SIZE = 256;
+
+    /**
+     * Width of the Gaussian applied to the rendered images, in render bins.
+     */
+    private static final double RENDER_SIGMA = 1.0;
+
+    private final int window;
+    private final int size;
+    private final double scale;
+    private final double pixelsize;
+    private final ResultsTable dtable;
+
+    // render buffers, swapped between the analysis and the correlation
+    private final BlockingQueue<float[]> free_buffers;
+    private float[] current;
+    private int frames_in_window = 0;
+    private int nframes = 0;
+    private int nwindows = 0;
+
+    private final ExecutorService worker;
+    private FHT reference = null;
+    private volatile double drift_x = 0;
+    private volatile double drift_y = 0;
+
+    /**
+     * Initializes the drift estimator.
+     *
+     * @param image_width width of the analyzed images in pixels
+     * @param image_height height of the analyzed images in pixels
+     * @param window number of frames per drift estimate
+     * @param pixelsize image pixel size in nm
+     * @param dtable drift table the estimates are written to
+     */
+    DriftEstimator(int image_width, int image_height, int window,
+                   double pixelsize, ResultsTable dtable) {
+        if (window < 1)
+            throw new IllegalArgumentException("Drift window must be at least one frame.");
+        this.window = window;
+        this.pixelsize = pixelsize;
+        this.dtable = dtable;
+
+        // power of two for the FHT, with up to two bins per image pixel
+        int longest = Math.max(image_width, image_height);
+        int s = 2;
+        while (s < 2 * longest && s < MAX_RENDER_SIZE)
+            s <<= 1;
+        this.size = s;
+        this.scale = (double) size / longest;
+
+        free_buffers = new ArrayBlockingQueue<float[]>(2);
+        free_buffers.add(new float[size * size]);
+        free_buffers.add(new float[size * size]);
+        current = new float[size * size];
+
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "QuickPALM drift estimation");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Adds an uncorrected localization to the current window.
+     *
+     * @param x x position in image pixels
+     * @param y y position in image pixels
+     */
+    void add(double x, double y) {
+        int i = (int) (x * scale);
+        int j = (int) (y * scale);
+        if (i >= 0 && i < size && j >= 0 && j < size)
+            current[j * size + i]++;
+    }
+
+    /**
+     * Closes the current frame and, at the end of a window, hands the window
+     * over to the correlation thread.
+     */
+    void endFrame() {
+        nframes++;
+        if (++frames_in_window < window)
+            return;
+        frames_in_window = 0;
+        final float[] image = current;
+        final int last_frame = nframes;
+        float[] next = free_buffers.poll();
+        if (next == null) {
+            // previous correlations are still running
+            LOGGER.log(Level.WARNING, "Drift estimation is falling behind, skipping a window.");
+            Arrays.fill(image, 0);
+            return;
+        }
+        current = next;
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                correlate(image, last_frame);
+            }
+        });
+    }
+
+    /**
+     * @return latest x drift in image pixels
+     */
+    double getDriftX() {
+        return drift_x;
+    }
+
+    /**
+     * @return latest y drift in image pixels
+     */
+    double getDriftY() {
+        return drift_y;
+    }
+
+    /**
+     * Stops the correlation thread.
+     */
+    void dispose() {
+        worker.shutdownNow();
+    }
+
+    private void correlate(float[] image, int last_frame) {
+        FloatProcessor fp = new FloatProcessor(size, size, image);
+        new GaussianBlur().blurGaussian(fp, RENDER_SIGMA, RENDER_SIGMA, 0.01);
+        FHT fht = new FHT(fp); // works on a copy of the image
+        Arrays.fill(image, 0);
+        free_buffers.offer(image);
+
+        fht.transform();
+        nwindows++;
+        if (reference == null) {
+            reference = fht;
+        } else {
+            FHT corr = fht.conjugateMultiply(reference);
+            corr.inverseTransform();
+            corr.swapQuadrants();
+            double[] peak = findPeak(corr);
+            drift_x = (peak[0] - size / 2) / scale;
+            drift_y = (peak[1] - size / 2) / scale;
+        }
+        synchronized (dtable) {
+            dtable.incrementCounter();
+            dtable.addValue("Window", nwindows);
+            dtable.addValue("Last Frame", last_frame);
+            dtable.addValue("X Drift (px)", drift_x);
+            dtable.addValue("Y Drift (px)", drift_y);
+            dtable.addValue("X Drift (nm)", drift_x * pixelsize);
+            dtable.addValue("Y Drift (nm)", drift_y * pixelsize);
+        }
+    }
+
+    /**
+     * Finds the maximum of an image with sub-pixel precision by fitting a
+     * parabola through the maximum and its neighbours along each axis.
+     */
+    private double[] findPeak(FloatProcessor fp) {
+        int xmax = 0;
+        int ymax = 0;
+        float vmax = -Float.MAX_VALUE;
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                float v = fp.getf(i, j);
+                if (v > vmax) {
+                    vmax = v;
+                    xmax = i;
+                    ymax = j;
+                }
+            }
+        }
+        double x = xmax;
+        double y = ymax;
+        if (xmax > 0 && xmax < size - 1) {
+            x += parabolicOffset(fp.getf(xmax - 1, ymax), vmax, fp.getf(xmax + 1, ymax));
+        }
+        if (ymax > 0 && ymax < size - 1) {
+            y += parabolicOffset(fp.getf(xmax, ymax - 1), vmax, fp.getf(xmax, ymax + 1));
+        }
+        return new double[]{x, y};
+    }
+
+    private static double parabolicOffset(double left, double center, double right) {
+        double denom = left - 2 * center + right;
+        if (denom == 0)
+            return 0;
+        return 0.5 * (left - right) / denom;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Levenberg-Marquardt fit of a symmetric 2D Gaussian on a constant
+ * background to the pixels of a single particle.
+ *
+ * The model is A * exp(-((x-x0)^2 + (y-y0)^2) / (2 s^2)) + B. Either the sum
+ * of squared residuals is minimized, or the Poisson negative log-likelihood
+ * (Laurence and Chromy, Nat. Methods 7, 2010). The number of iterations is
+ * capped, and all work arrays are allocated once and only grow with the
+ * region size, so a fitter may be reused for every particle. A fitter is
+ * not thread-safe; use one per analysis thread.
+ */
+class GaussianFitter {
+
+    /**
+     * Fitting methods, in the order of the dialog choices.
+     */
+    static final String[] METHODS = {"Centroid", "Least-squares", "Poisson MLE"};
+    static final int CENTROID = 0;
+    static final int LEAST_SQUARES = 1;
+    static final int POISSON_MLE = 2;
+
+    private static final int NPARAMS = 5;
+    private static final int A = 0, X0 = 1, Y0 = 2, S = 3, B = 4;
+
+    // relative change of the cost below which the fit has converged
+    private static final double TOLERANCE = 1e-6;
+    private static final double LAMBDA_START = 1e-3;
+    private static final double LAMBDA_MAX = 1e10;
+
+    private final int method;
+    private final int max_iterations;
+
+    private double[] pixels = new double[0];
+    private double[] model = new double[0];
+    private double[] jacobian = new double[0];
+    private final double[] params = new double[NPARAMS];
+    private final double[] trial = new double[NPARAMS];
+    private final double[] alpha = new double[NPARAMS * NPARAMS];
+    private final double[] beta = new double[NPARAMS];
+    private final double[] step = new double[NPARAMS];
+    private final double[] lu = new double[NPARAMS * NPARAMS];
+
+    private int iterations;
+
+    /**
+     * Creates a new fitter.
+     *
+     * @param method LEAST_SQUARES or POISSON_MLE
+     * @param max_iterations maximum number of LM iterations per fit
+     */
+    GaussianFitter(int method, int max_iterations) {
+        if (method != LEAST_SQUARES && method != POISSON_MLE)
+            throw new IllegalArgumentException("Unknown fitting method.");
+        if (max_iterations < 1)
+            throw new IllegalArgumentException("At least one iteration is required.");
+        this.method = method;
+        this.max_iterations = max_iterations;
+    }
+
+    /**
+     * Fits a region of an image. The bounds are inclusive.
+     *
+     * @param ip image to fit
+     * @param xstart first column of the region
+     * @param xend last column of the region
+     * @param ystart first row of the region
+     * @param yend last row of the region
+     * @param x0 initial x position in image pixels, e.g. the centroid
+     * @param y0 initial y position in image pixels
+     * @param sigma0 initial Gaussian width in pixels
+     * @return true if the fit converged inside the region
+     */
+    boolean fit(ImageProcessor ip, int xstart, int xend, int ystart, int yend,
+                double x0, double y0, double sigma0) {
+        return fit(ip, xstart, xend, ystart, yend, x0, y0, sigma0, 0, 1);
+    }
+
+    /**
+     * Fits a region of a raw camera image in photons, so that the amplitude
+     * and the background are photon numbers. The bounds are inclusive.
+     *
+     * @param ip raw camera image
+     * @param xstart first column of the region
+     * @param xend last column of the region
+     * @param ystart first row of the region
+     * @param yend last row of the region
+     * @param x0 initial x position in image pixels, e.g. the centroid
+     * @param y0 initial y position in image pixels
+     * @param sigma0 initial Gaussian width in pixels
+     * @param offset camera offset in counts
+     * @param adu_per_photon camera counts per photon
+     * @return true if the fit converged inside the region
+     */
+    boolean fit(ImageProcessor ip, int xstart, int xend, int ystart, int yend,
+                double x0, double y0, double sigma0, double offset,
+                double adu_per_photon) {
+        int nx = xend - xstart + 1;
+        int ny = yend - ystart + 1;
+        ensureCapacity(nx * ny);
+        for (int j = 0; j < ny; j++) {
+            for (int i = 0; i < nx; i++) {
+                double v = (ip.get(xstart + i, ystart + j) - offset) / adu_per_photon;
+                // read noise can push counts below the offset
+                pixels[j * nx + i] = method == POISSON_MLE ? Math.max(v, 0) : v;
+            }
+        }
+        boolean ok = fit(pixels, nx, ny, x0 - xstart, y0 - ystart, sigma0);
+        params[X0] += xstart;
+        params[Y0] += ystart;
+        return ok;
+    }
+
+    /**
+     * Fits a region stored row by row. Positions are relative to the first
+     * pixel of the region.
+     *
+     * @param data pixel values, at least nx * ny
+     * @param nx width of the region
+     * @param ny height of the region
+     * @param x0 initial x position
+     * @param y0 initial y position
+     * @param sigma0 initial Gaussian width
+     * @return true if the fit converged inside the region
+     */
+    boolean fit(double[] data, int nx, int ny, double x0, double y0, double sigma0) {
+        int n = nx * ny;
+        ensureCapacity(n);
+
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int k = 0; k < n; k++) {
+            min = Math.min(min, data[k]);
+            max = Math.max(max, data[k]);
+        }
+        params[A] = Math.max(max - min, 1);
+        params[X0] = x0;
+        params[Y0] = y0;
+        params[S] = sigma0 > 0 ? sigma0 : 1;
+        params[B] = Math.max(min, method == POISSON_MLE ? 1e-3 : min);
+
+        double cost = evaluate(data, nx, ny, params, true);
+        double lambda = LAMBDA_START;
+        boolean converged = false;
+        for (iterations = 0; iterations < max_iterations && !converged; iterations++) {
+            boolean improved = false;
+            while (!improved && lambda < LAMBDA_MAX) {
+                for (int k = 0; k < NPARAMS * NPARAMS; k++) {
+                    lu[k] = alpha[k];
+                }
+                for (int k = 0; k < NPARAMS; k++) {
+                    lu[k * NPARAMS + k] *= 1 + lambda;
+                    step[k] = beta[k];
+                }
+                if (!solve()) {
+                    lambda *= 10;
+                    continue;
+                }
+                for (int k = 0; k < NPARAMS; k++) {
+                    trial[k] = params[k] + step[k];
+                }
+                if (trial[A] <= 0 || trial[S] <= 0
+                        || (method == POISSON_MLE && trial[B] <= 0)) {
+                    lambda *= 10;
+                    continue;
+                }
+                double trial_cost = evaluate(data, nx, ny, trial, false);
+                if (trial_cost < cost) {
+                    converged = (cost - trial_cost) <= TOLERANCE * Math.abs(cost);
+                    System.arraycopy(trial, 0, params, 0, NPARAMS);
+                    cost = evaluate(data, nx, ny, params, true);
+                    lambda = Math.max(lambda / 10, 1e-12);
+                    improved = true;
+                } else {
+                    lambda *= 10;
+                }
+            }
+            if (!improved) {
+                // no step decreases the cost anymore
+                converged = true;
+            }
+        }
+        return converged && params[X0] >= 0 && params[X0] <= nx - 1
+                && params[Y0] >= 0 && params[Y0] <= ny - 1;
+    }
+
+    /**
+     * @return fitted x position
+     */
+    double getX() {
+        return params[X0];
+    }
+
+    /**
+     * @return fitted y position
+     */
+    double getY() {
+        return params[Y0];
+    }
+
+    /**
+     * @return fitted Gaussian width
+     */
+    double getSigma() {
+        return params[S];
+    }
+
+    /**
+     * @return fitted peak amplitude above background
+     */
+    double getAmplitude() {
+        return params[A];
+    }
+
+    /**
+     * @return fitted background per pixel
+     */
+    double getBackground() {
+        return params[B];
+    }
+
+    /**
+     * @return number of iterations of the last fit
+     */
+    int getIterations() {
+        return iterations;
+    }
+
+    private void ensureCapacity(int n) {
+        if (model.length < n) {
+            pixels = new double[n];
+            model = new double[n];
+            jacobian = new double[n * NPARAMS];
+        }
+    }
+
+    /**
+     * Computes the cost of the parameters p, and if requested the curvature
+     * matrix alpha and the gradient vector beta of the LM step.
+     */
+    private double evaluate(double[] data, int nx, int ny, double[] p, boolean curvature) {
+        double inv_s2 = 1 / (p[S] * p[S]);
+        double cost = 0;
+        for (int j = 0; j < ny; j++) {
+            double dy = j - p[Y0];
+            for (int i = 0; i < nx; i++) {
+                int k = j * nx + i;
+                double dx = i - p[X0];
+                double r2 = dx * dx + dy * dy;
+                double g = Math.exp(-0.5 * r2 * inv_s2);
+                double m = p[A] * g + p[B];
+                model[k] = m;
+                double d = data[k];
+                if (method == LEAST_SQUARES) {
+                    cost += (d - m) * (d - m);
+                } else {
+                    cost += 2 * (m - d);
+                    if (d > 0)
+                        cost -= 2 * d * Math.log(m / d);
+                }
+                if (curvature) {
+                    int o = k * NPARAMS;
+                    double ag = p[A] * g;
+                    jacobian[o + A] = g;
+                    jacobian[o + X0] = ag * dx * inv_s2;
+                    jacobian[o + Y0] = ag * dy * inv_s2;
+                    jacobian[o + S] = ag * r2 * inv_s2 / p[S];
+                    jacobian[o + B] = 1;
+                }
+            }
+        }
+        if (!curvature)
+            return cost;
+
+        for (int k = 0; k < NPARAMS * NPARAMS; k++) {
+            alpha[k] = 0;
+        }
+        for (int k = 0; k < NPARAMS; k++) {
+            beta[k] = 0;
+        }
+        int n = nx * ny;
+        for (int k = 0; k < n; k++) {
+            double weight, residual;
+            if (method == LEAST_SQUARES) {
+                weight = 1;
+                residual = data[k] - model[k];
+            } else {
+                weight = data[k] / (model[k] * model[k]);
+                residual = data[k] / model[k] - 1;
+            }
+            int o = k * NPARAMS;
+            for (int a = 0; a < NPARAMS; a++) {
+                double ja = jacobian[o + a];
+                beta[a] += residual * ja;
+                for (int b = 0; b <= a; b++) {
+                    alpha[a * NPARAMS + b] += weight * ja * jacobian[o + b];
+                }
+            }
+        }
+        for (int a = 0; a < NPARAMS; a++) {
+            for (int b = 0; b < a; b++) {
+                alpha[b * NPARAMS + a] = alpha[a * NPARAMS + b];
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Solves lu * x = step in place by Gaussian elimination with partial
+     * pivoting; the solution replaces step.
+     */
+    private boolean solve() {
+        for (int c = 0; c < NPARAMS; c++) {
+            int pivot = c;
+            for (int r = c + 1; r < NPARAMS; r++) {
+                if (Math.abs(lu[r * NPARAMS + c]) > Math.abs(lu[pivot * NPARAMS + c]))
+                    pivot = r;
+            }
+            if (lu[pivot * NPARAMS + c] == 0)
+                return false;
+            if (pivot != c) {
+                for (int k = 0; k < NPARAMS; k++) {
+                    double t = lu[c * NPARAMS + k];
+                    lu[c * NPARAMS + k] = lu[pivot * NPARAMS + k];
+                    lu[pivot * NPARAMS + k] = t;
+                }
+                double t = step[c];
+                step[c] = step[pivot];
+                step[pivot] = t;
+            }
+            for (int r = c + 1; r < NPARAMS; r++) {
+                double f = lu[r * NPARAMS + c] / lu[c * NPARAMS + c];
+                for (int k = c; k < NPARAMS; k++) {
+                    lu[r * NPARAMS + k] -= f * lu[c * NPARAMS + k];
+                }
+                step[r] -= f * step[c];
+            }
+        }
+        for (int r = NPARAMS - 1; r >= 0; r--) {
+            double s = step[r];
+            for (int k = r + 1; k < NPARAMS; k++) {
+                s -= lu[r * NPARAMS + k] * step[k];
+            }
+            step[r] = s / lu[r * NPARAMS + r];
+        }
+        return true;
+    }
+}
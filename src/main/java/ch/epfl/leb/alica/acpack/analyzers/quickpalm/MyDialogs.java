@@ -30,6 +30,8 @@ class MyDialogs
 	
 	int snr;
 	double pixelsize;
+	double adu_per_photon;
+	double camera_offset;
 	
 	double fwhm;
 	//int roirad;
@@ -47,6 +49,8 @@ class MyDialogs
 	double symmetry;
 	int maxpart; //maximum particles
 	int threads;
+	int fit_method;
+	int fit_iterations;
 
 	// used on calib
 	java.lang.String model;
@@ -64,6 +68,12 @@ class MyDialogs
 	int viewer_update;
 	double saturation;
 	
+	// used on drift estimation
+	int drift_window;
+	
+	// used on stream
+	boolean stream;
+	
 	// used on attach
 	boolean attach;
 	java.lang.String imagedir;
@@ -98,11 +108,95 @@ class MyDialogs
 	//int viewer_accumulate;
 	
 
+	/**
+	 * Sets all analysis settings from a parameter object; this is what the
+	 * dialog does once it is closed, and can be used without a display.
+	 *
+	 * @param p analysis parameters
+	 */
+	void setParameters(QuickPalmParameters p) {
+		p.validate();
+		snr = p.snr;
+		fwhm = p.fwhm;
+		pixelsize = p.pixelsize;
+		adu_per_photon = p.adu_per_photon;
+		camera_offset = p.camera_offset;
+		smartsnr = p.smartsnr;
+		is3d = p.is3d;
+		calfile = p.calfile;
+		view = p.view;
+		viewer_tpixelsize = p.viewer_tpixelsize;
+		magn = pixelsize/viewer_tpixelsize;
+		viewer_accumulate = p.viewer_accumulate;
+		viewer_update = p.viewer_update;
+		attach = p.attach;
+		imagedir = p.imagedir;
+		pattern = p.pattern;
+		prefix = pattern.substring(0, pattern.indexOf("N"));
+		sufix = pattern.substring(pattern.lastIndexOf("N")+1, pattern.length());
+		nimchars = pattern.split("N").length-1;
+		nimstart = p.nimstart;
+		waittime = p.waittime;
+		drift_window = p.drift_window;
+		stream = p.stream;
+		ptablefile = p.ptablefile;
+		symmetry = p.symmetry;
+		pthrsh = p.pthrsh;
+		maxpart = p.maxpart;
+		threads = p.threads;
+		fit_method = p.fit_method;
+		fit_iterations = p.fit_iterations;
+	}
+	
+	/**
+	 * Collects the current analysis settings into a parameter object.
+	 *
+	 * @return analysis parameters
+	 */
+	QuickPalmParameters getParameters() {
+		QuickPalmParameters p = new QuickPalmParameters();
+		p.snr = snr;
+		p.fwhm = fwhm;
+		p.pixelsize = pixelsize;
+		p.adu_per_photon = adu_per_photon;
+		p.camera_offset = camera_offset;
+		p.smartsnr = smartsnr;
+		p.is3d = is3d;
+		p.calfile = calfile;
+		p.view = view;
+		p.viewer_tpixelsize = viewer_tpixelsize;
+		p.viewer_accumulate = viewer_accumulate;
+		p.viewer_update = viewer_update;
+		p.attach = attach;
+		p.imagedir = imagedir;
+		p.pattern = pattern;
+		p.nimstart = nimstart;
+		p.waittime = waittime;
+		p.drift_window = drift_window;
+		p.stream = stream;
+		p.ptablefile = ptablefile;
+		p.symmetry = symmetry;
+		p.pthrsh = pthrsh;
+		p.maxpart = maxpart;
+		p.threads = threads;
+		p.fit_method = fit_method;
+		p.fit_iterations = fit_iterations;
+		return p;
+	}
+	
+	/**
+	 * Asks for the analysis settings with a modal dialog.
+	 *
+	 * @param f functions the analysis will run with
+	 * @return false if the dialog was cancelled
+	 */
 	public boolean analyseParticles(MyFunctions f) {	
 		GenericDialog gd = new GenericDialog("Analyse PALM/STORM Particles");
 		gd.addNumericField("Minimum SNR", prefs.get("QuickPALM.snr", 5), 2);
 		gd.addNumericField("Maximum FWHM (in px)", prefs.get("QuickPALM.fwhm", 4), 0);
 		gd.addNumericField("Image plane pixel size (nm)", prefs.get("QuickPALM.pixelsize", 106), 2);
+		gd.addNumericField("Camera gain (ADU per photon)", prefs.get("QuickPALM.gain", 1), 2);
+		gd.addNumericField("Camera offset (ADU)", prefs.get("QuickPALM.offset", 0), 0);
 		gd.addCheckbox("Smart SNR", prefs.get("QuickPALM.smartsnr", false));
 		gd.addCheckbox("3D PALM (astigmatism) - will require calibration file", prefs.get("QuickPALM.is3d", false));
 		gd.addCheckbox("Online rendering", prefs.get("QuickPALM.view", false));
@@ -125,65 +219,104 @@ class MyDialogs
 		gd.addNumericField("In acquisition max. wait time for new image (ms)", 50, 0);
 		gd.addMessage("\n");
 		// -----------------------------------------
+		gd.addMessage("-- Drift estimation settings --");
+		gd.addMessage("\n");
+		gd.addNumericField("Estimate drift every (frames, 0 to disable)", prefs.get("QuickPALM.driftwindow", 0), 0);
+		gd.addMessage("\n");
+		// -----------------------------------------
 		gd.addMessage("-- Advanced settings (don't normally need to be changed) --");
 		gd.addMessage("\n");
 		gd.addNumericField("_Minimum symmetry (%)", prefs.get("QuickPALM.symmetry", 50), 0);
 		gd.addNumericField("Local threshold (% maximum intensity)", prefs.get("QuickPALM.lthreshold", 20), 0);
 		gd.addNumericField("_Maximum iterations per frame", prefs.get("QuickPALM.maxiter", 1000), 0);
 		gd.addNumericField("Threads (each takes ~3*[frame size] in memory)", prefs.get("QuickPALM.nthreads", 50), 0);
+		gd.addChoice("Localization method", GaussianFitter.METHODS, prefs.get("QuickPALM.fitmethod", GaussianFitter.METHODS[0]));
+		gd.addNumericField("Maximum fit iterations", prefs.get("QuickPALM.fititer", 20), 0);
 		gd.addMessage("\n\nDon't forget to save the table in the end...");
 		
 		gd.showDialog();
 		if (gd.wasCanceled())
                     return false;
 
-		snr = (int) gd.getNextNumber();
-		prefs.set("QuickPALM.snr", snr);
-		fwhm = gd.getNextNumber();
-		prefs.set("QuickPALM.fwhm", fwhm);
-		pixelsize = gd.getNextNumber();
-		prefs.set("QuickPALM.pixelsize", pixelsize);
+		QuickPalmParameters p = new QuickPalmParameters();
+		p.snr = (int) gd.getNextNumber();
+		prefs.set("QuickPALM.snr", p.snr);
+		p.fwhm = gd.getNextNumber();
+		prefs.set("QuickPALM.fwhm", p.fwhm);
+		p.pixelsize = gd.getNextNumber();
+		prefs.set("QuickPALM.pixelsize", p.pixelsize);
+		p.adu_per_photon = gd.getNextNumber();
+		prefs.set("QuickPALM.gain", p.adu_per_photon);
+		p.camera_offset = gd.getNextNumber();
+		prefs.set("QuickPALM.offset", p.camera_offset);
 		
-		smartsnr = gd.getNextBoolean();
-		prefs.set("QuickPALM.smartsnr", smartsnr);
-		is3d = gd.getNextBoolean();
-		prefs.set("QuickPALM.is3d", is3d);
-		view = gd.getNextBoolean();
-		prefs.set("QuickPALM.view", view);
-		attach = gd.getNextBoolean();
-		prefs.set("QuickPALM.attach", attach);
+		p.smartsnr = gd.getNextBoolean();
+		prefs.set("QuickPALM.smartsnr", p.smartsnr);
+		p.is3d = gd.getNextBoolean();
+		prefs.set("QuickPALM.is3d", p.is3d);
+		p.view = gd.getNextBoolean();
+		prefs.set("QuickPALM.view", p.view);
+		p.attach = gd.getNextBoolean();
+		prefs.set("QuickPALM.attach", p.attach);
+		p.stream = gd.getNextBoolean();
+		prefs.set("QuickPALM.stream", p.stream);
 		
-		if (gd.getNextBoolean())
-		{
-			prefs.set("QuickPALM.stream", true);
-		}
-		else prefs.set("QuickPALM.stream", false);
 		//--
 		
-		magn = pixelsize/gd.getNextNumber();
-		viewer_accumulate = (int) gd.getNextNumber();
-		viewer_update = (int) gd.getNextNumber();
+		p.viewer_tpixelsize = gd.getNextNumber();
+		p.viewer_accumulate = (int) gd.getNextNumber();
+		p.viewer_update = (int) gd.getNextNumber();
 		
 		//--
-		pattern = gd.getNextString().trim();
-		prefs.set("QuickPALM.pattern", pattern);
-		prefix = pattern.substring(0, pattern.indexOf("N"));
-		sufix = pattern.substring(pattern.lastIndexOf("N")+1, pattern.length());
-		nimchars = pattern.split("N").length-1;
-		nimstart = (int) gd.getNextNumber();
-		waittime = (int) gd.getNextNumber();
+		p.pattern = gd.getNextString().trim();
+		prefs.set("QuickPALM.pattern", p.pattern);
+		p.nimstart = (int) gd.getNextNumber();
+		p.waittime = (int) gd.getNextNumber();
 		
 		//--
 		
-		symmetry = gd.getNextNumber()/100;
-		prefs.set("QuickPALM.symmetry", symmetry);
-		pthrsh = gd.getNextNumber()/100;
-		prefs.set("QuickPALM.lthreshold", pthrsh*100);
-		maxpart = (int) gd.getNextNumber();
-		prefs.set("QuickPALM.maxiter", maxpart);
-		threads = (int) gd.getNextNumber();
-		prefs.set("QuickPALM.nthreads", threads);
+		p.drift_window = (int) gd.getNextNumber();
+		prefs.set("QuickPALM.driftwindow", p.drift_window);
+		
+		//--
+		
+		p.symmetry = gd.getNextNumber()/100;
+		prefs.set("QuickPALM.symmetry", p.symmetry*100);
+		p.pthrsh = gd.getNextNumber()/100;
+		prefs.set("QuickPALM.lthreshold", p.pthrsh*100);
+		p.maxpart = (int) gd.getNextNumber();
+		prefs.set("QuickPALM.maxiter", p.maxpart);
+		p.threads = (int) gd.getNextNumber();
+		prefs.set("QuickPALM.nthreads", p.threads);
+		p.fit_method = gd.getNextChoiceIndex();
+		prefs.set("QuickPALM.fitmethod", GaussianFitter.METHODS[p.fit_method]);
+		p.fit_iterations = (int) gd.getNextNumber();
+		prefs.set("QuickPALM.fititer", p.fit_iterations);
+		
+		if (p.is3d)
+		{
+			OpenDialog od = new OpenDialog("Open Z-calibration table", null);
+			if (od.getFileName() == null)
+				return false;
+			p.calfile = od.getDirectory() + od.getFileName();
+		}
+		
+		if (p.attach)
+		{
+			p.imagedir = IJ.getDirectory("Choose the acquisition directory");
+			if (p.imagedir == null)
+				return false;
+		}
+		
+		if (p.stream)
+		{
+			SaveDialog sd = new SaveDialog("Stream particle info into...", "particles", ".qpb");
+			if (sd.getFileName() == null)
+				return false;
+			p.ptablefile = sd.getDirectory() + sd.getFileName();
+		}
 		
+		setParameters(p);
 		return true;
 	}
 }
\ No newline at end of file
@@ -5,6 +5,7 @@
  */
 package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
 
+import ch.epfl.leb.alica.acpack.analyzers.LiveViewPublisher;
 import ij.*;
 import ij.measure.*;
 import ij.plugin.*;
@@ -17,7 +18,7 @@ import java.awt.*;
 
 class MyFunctions {
 
-    ImagePlus live_view;
+    LiveViewPublisher live_view; // null if there is no live view
     GaussianBlur gblur = new GaussianBlur();
     //ResultsTable ptable = new ResultsTable(); // Particle table
     ResultsTable ptable = Analyzer.getResultsTable(); // Particle table
@@ -27,15 +28,55 @@ class MyFunctions {
     double[] cal3d_z; // z positions
     double[] cal3d_wmh; // width minus height
     int cal3d_center; // closest index to the center value of the cal3d_* arrays
+    boolean cal3d_ascending; // true if cal3d_wmh increases with z
 
     java.util.concurrent.locks.Lock ptable_lock = new java.util.concurrent.locks.ReentrantLock();
 
+    /**
+     * Column names of the particle table, in the order of the values passed
+     * to addParticle.
+     */
+    static final String[] PARTICLE_COLUMNS = {"Intensity", "X (px)", "Y (px)",
+        "X (nm)", "Y (nm)", "Z (nm)", "Left-Width (px)", "Right-Width (px)",
+        "Up-Height (px)", "Down-Height (px)", "X Symmetry (%)",
+        "Y Symmetry (%)", "Width minus Height (px)", "Frame Number",
+        "Photons", "Background (photons)", "Precision (nm)"};
+
+    /**
+     * Number of particles the stream writer can buffer before dropping.
+     */
+    static final int STREAM_CAPACITY = 1 << 16;
+
+    ParticleStreamWriter stream = null; // particle stream, if streaming
+
+    /**
+     * Number of decoded frames prefetched when attached to an acquisition.
+     */
+    static final int PREFETCH_FRAMES = 8;
+
+    AcquisitionImageSource image_source = null; // attached acquisition, if any
+
+    OnlineRenderer renderer = null; // online rendering, if enabled
+
+    DriftEstimator drift = null; // online drift estimation, if enabled
+
+    ThreadLocal<GaussianFitter> fitters = null; // Gaussian fitting, if enabled
+
+    // per-frame medians of the particle quality, updated in getParticle
+    StreamingQuantile photons_median = new StreamingQuantile(0.5);
+    StreamingQuantile background_median = new StreamingQuantile(0.5);
+    StreamingQuantile precision_median = new StreamingQuantile(0.5);
+    double frame_photons = Double.NaN; // medians of the last analyzed frame
+    double frame_background = Double.NaN;
+    double frame_precision = Double.NaN;
+
     boolean debug = false;
 
     public MyFunctions(boolean live_view) {
         if (live_view) {
-            this.live_view = new ImagePlus("QuickPALM live view.");
-            this.live_view.show();
+            this.live_view = new LiveViewPublisher("QuickPALM live view.",
+                    LiveViewPublisher.DEFAULT_MAX_FPS);
+            this.live_view.setEnabled(true);
         } else {
             this.live_view = null;
         }
@@ -54,14 +95,97 @@ class MyFunctions {
      * Loads values from the calibration table into the cal3d_* arrays.
      */
     void initialize3d() {
-        cal3d_z = caltable.getColumnAsDoubles(0);
-        cal3d_wmh = caltable.getColumnAsDoubles(1);
+        setCalibration(caltable.getColumnAsDoubles(0), caltable.getColumnAsDoubles(1));
+    }
+
+    /**
+     * Loads a calibration table, e.g. one saved by CalibrationBuilder, and
+     * initializes the 3D analysis from it.
+     *
+     * @param path path to the calibration table
+     * @throws java.io.IOException if the table cannot be read
+     */
+    void loadCalibration(java.lang.String path) throws java.io.IOException {
+        caltable = ResultsTable.open(path);
+        initialize3d();
+    }
+
+    /**
+     * Sets the Z-calibration curve after checking that it can be inverted.
+     *
+     * @param z z positions
+     * @param wmh width-minus-height at each z position
+     * @throws IllegalArgumentException if the curve is not strictly monotone
+     */
+    void setCalibration(double[] z, double[] wmh) {
+        validateCalibration(z, wmh);
+        cal3d_z = z;
+        cal3d_wmh = wmh;
         cal3d_center = (int) Math.round(cal3d_z.length / 2);
+        cal3d_ascending = wmh[1] > wmh[0];
+    }
+
+    /**
+     * Checks that a Z-calibration curve has strictly increasing z positions
+     * and a strictly monotone width-minus-height, which is required for
+     * getZ to give a unique answer.
+     *
+     * @param z z positions
+     * @param wmh width-minus-height at each z position
+     * @throws IllegalArgumentException if the curve cannot be used
+     */
+    static void validateCalibration(double[] z, double[] wmh) {
+        if (z == null || wmh == null || z.length != wmh.length) {
+            throw new IllegalArgumentException("Calibration table must have matching z and width-minus-height columns.");
+        }
+        if (z.length < 3) {
+            throw new IllegalArgumentException("Calibration table must have at least 3 entries.");
+        }
+        double sign = Math.signum(wmh[1] - wmh[0]);
+        for (int n = 1; n < z.length; n++) {
+            if (!(z[n] > z[n - 1])) {
+                throw new IllegalArgumentException("Calibration z positions must be strictly increasing (row " + n + ").");
+            }
+            if (sign == 0 || Math.signum(wmh[n] - wmh[n - 1]) != sign) {
+                throw new IllegalArgumentException("Calibration width-minus-height must be strictly monotone (row " + n + ").");
+            }
+        }
     }
     
+    /**
+     * Streams all further particles into a file instead of the particle
+     * table.
+     *
+     * @param path file to stream the particles into
+     * @throws java.io.IOException if the file cannot be created
+     */
+    void startStream(java.lang.String path) throws java.io.IOException {
+        stream = new ParticleStreamWriter(path, PARTICLE_COLUMNS, STREAM_CAPACITY);
+    }
+
     public void dispose() {
         if (this.live_view!= null) {
-            this.live_view.hide();
+            this.live_view.dispose();
+        }
+        if (renderer != null) {
+            renderer.dispose();
+            renderer = null;
+        }
+        if (drift != null) {
+            drift.dispose();
+            drift = null;
+        }
+        if (image_source != null) {
+            image_source.close();
+            image_source = null;
+        }
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (java.io.IOException e) {
+                IJ.error("Error writing particle stream: " + e.getMessage());
+            }
+            stream = null;
         }
     }
 
@@ -76,7 +200,7 @@ class MyFunctions {
      * limits
      */
     double getZ(double wmh) {
-        int n = getClosest(wmh, cal3d_wmh, cal3d_center);
+        int n = getClosestMonotone(wmh, cal3d_wmh, cal3d_ascending);
         if ((n == 0) || (n == (cal3d_z.length - 1))) {
             return 9999;
         }
@@ -92,34 +216,52 @@ class MyFunctions {
 
     /**
      * Grabs a new image on an observed folder on the case of the analysis being
-     * attached to the acquisition.
+     * attached to the acquisition. Images are decoded ahead of time by an
+     * AcquisitionImageSource watching the folder.
+     *
+     * If the requested frame was skipped because it never arrived, a later
+     * frame is returned; particles must be labelled with its number.
      *
      * @param dg dialog manager
      * @param frame frame index to search for on the folder
-     * @return found image
+     * @return found frame with its number, or null
      */
-    ImagePlus getNextImage(MyDialogs dg, int frame) {
-        java.lang.String imname = "" + frame;
-        while (imname.length() < dg.nimchars) {
-            imname = "0" + imname;
-        }
-        imname = dg.imagedir + dg.prefix + imname + dg.sufix;
-
-        long start = java.lang.System.currentTimeMillis();
-        ImagePlus imp = ij.IJ.openImage(imname);
-        while ((imp == null) && ((java.lang.System.currentTimeMillis() - start) < dg.waittime)) {
-            imp = ij.IJ.openImage(imname);
+    AcquisitionImageSource.Frame getNextFrame(MyDialogs dg, int frame) {
+        if (image_source == null) {
             try {
-                Thread.currentThread().sleep(1);
-            } catch (Exception e) {
-                IJ.error("" + e);
+                image_source = new AcquisitionImageSource(dg, PREFETCH_FRAMES);
+            } catch (java.io.IOException e) {
+                IJ.error("Cannot watch acquisition directory: " + e.getMessage());
+                return null;
             }
         }
-        if (imp != null && imp.getType() != ImagePlus.GRAY8 && imp.getType() != ImagePlus.GRAY16) {
+        AcquisitionImageSource.Frame f = image_source.next(frame, dg.waittime);
+        if (f != null && f.image.getType() != ImagePlus.GRAY8 && f.image.getType() != ImagePlus.GRAY16) {
             IJ.error("8 or 16 bit greyscale image required");
         }
 
-        return imp;
+        return f;
+    }
+
+    /**
+     * Grabs a given image on an observed folder on the case of the analysis
+     * being attached to the acquisition.
+     *
+     * @param dg dialog manager
+     * @param frame frame index to search for on the folder
+     * @return found image, or null if it did not arrive or was skipped; use
+     * getNextFrame to resume after skipped frames
+     */
+    ImagePlus getNextImage(MyDialogs dg, int frame) {
+        AcquisitionImageSource.Frame f = getNextFrame(dg, frame);
+        if (f == null)
+            return null;
+        if (f.number != frame) {
+            // keep the later frame for the caller to resync
+            image_source.unread(f);
+            return null;
+        }
+        return f.image;
     }
 
     /**
@@ -137,10 +279,34 @@ class MyFunctions {
 
         boolean mask[][] = new boolean[width][height];
 
+        if (dg.view && renderer == null) {
+            renderer = new OnlineRenderer(width, height, dg.magn,
+                    dg.viewer_accumulate, dg.viewer_update);
+        }
+        if (dg.drift_window > 0 && drift == null) {
+            drift = new DriftEstimator(width, height, dg.drift_window,
+                    dg.pixelsize, dtable);
+        }
+        if (dg.fit_method != GaussianFitter.CENTROID && fitters == null) {
+            final int method = dg.fit_method;
+            final int iterations = dg.fit_iterations;
+            fitters = new ThreadLocal<GaussianFitter>() {
+                @Override
+                protected GaussianFitter initialValue() {
+                    return new GaussianFitter(method, iterations);
+                }
+            };
+        }
+
+        photons_median.reset();
+        background_median.reset();
+        precision_median.reset();
+
         int xmin = 0;
         int ymin = 0;
         int smin = 99999;
         double saturation = ip.getMax();
+        ImageProcessor raw = ip.duplicate(); // unfiltered counts, for fitting
 
         for (i = 0; i < width; i++) {
             for (j = 0; j < height; j++) {
@@ -218,7 +384,7 @@ class MyFunctions {
             
             if (ip.get(maxs[1], maxs[2]) < snrthresh) {
                 break;
-            } else if (getParticle(ip, mask, maxs, dg, ptable, nframe)) {
+            } else if (getParticle(ip, raw, mask, maxs, dg, ptable, nframe)) {
                 ok_nparticles++;
                 Roi roi = new Roi(maxs[1]-1,maxs[2]-1,3,3);
                 roi.setStrokeColor(Color.RED);
@@ -239,11 +405,17 @@ class MyFunctions {
             }
         }
         //IJ.log("Processed frame: "+nframe);
+        frame_photons = photons_median.getQuantile();
+        frame_background = background_median.getQuantile();
+        frame_precision = precision_median.getQuantile();
+        if (renderer != null) {
+            renderer.endFrame();
+        }
+        if (drift != null) {
+            drift.endFrame();
+        }
         if (live_view != null) {
-            live_view.setProcessor(ip);
-            live_view.setOverlay(ov);
-            live_view.updateAndDraw();
-            live_view.show();
+            live_view.publish(ip, ov);
         }
         return ok_nparticles;
     }
@@ -253,10 +425,12 @@ class MyFunctions {
      * detectParticles.
      *
      * @param ip image to search for particles on
+     * @param raw unfiltered copy of the image, used for fitting and for
+     * the photon counts
      * @param dg dialog manager
      * @param nframe the frame index corresponding to this image
      */
-    boolean getParticle(ImageProcessor ip, boolean[][] mask, int[] maxs, MyDialogs dg, ResultsTable ptable, int nframe) {
+    boolean getParticle(ImageProcessor ip, ImageProcessor raw, boolean[][] mask, int[] maxs, MyDialogs dg, ResultsTable ptable, int nframe) {
         int roirad = (int) Math.round(dg.fwhm);
         int xmax = maxs[1];
         int ymax = maxs[2];
@@ -422,6 +596,42 @@ class MyFunctions {
             }
         }
 
+        // mean absolute deviations are about 0.8 sigma
+        double sigma = (xlstd + xrstd + ylstd + yrstd) / 3.2;
+        double[] counts = measurePhotons(raw, xmax - roirad, xmax + roirad,
+                ymax - roirad, ymax + roirad, dg.camera_offset, dg.adu_per_photon);
+        double photons = counts[0];
+        double background = counts[1];
+
+        // refine the centroid with a Gaussian fit on a constant background,
+        // on the raw image in photons
+        if (fitters != null) {
+            GaussianFitter fitter = fitters.get();
+            if (fitter.fit(raw, xmax - roirad, xmax + roirad, ymax - roirad,
+                    ymax + roirad, xm, ym, sigma, dg.camera_offset,
+                    dg.adu_per_photon)) {
+                xm = fitter.getX();
+                ym = fitter.getY();
+                sigma = fitter.getSigma();
+                photons = 2 * Math.PI * fitter.getAmplitude() * sigma * sigma;
+                background = Math.max(fitter.getBackground(), 0);
+            } else {
+                log("fit did not converge, keeping centroid");
+            }
+        }
+
+        double precision = getPrecision(sigma * dg.pixelsize, dg.pixelsize,
+                photons, background);
+        photons_median.add(photons);
+        background_median.add(background);
+        precision_median.add(precision);
+
+        if (drift != null) {
+            drift.add(xm, ym);
+            xm -= drift.getDriftX();
+            ym -= drift.getDriftY();
+        }
+
         double s_ = sSum / npixels;
         double xm_ = xm * dg.pixelsize;
         double ym_ = ym * dg.pixelsize;
@@ -431,27 +641,95 @@ class MyFunctions {
         double yrstd_ = yrstd * 1.177;
         double frame_ = nframe + 1;
 
-        ptable_lock.lock();
-        ptable.incrementCounter();
-        ptable.addValue("Intensity", s_);
-        ptable.addValue("X (px)", xm);
-        ptable.addValue("Y (px)", ym);
-        ptable.addValue("X (nm)", xm_);
-        ptable.addValue("Y (nm)", ym_);
-        ptable.addValue("Z (nm)", z);
-        ptable.addValue("Left-Width (px)", xlstd_);
-        ptable.addValue("Right-Width (px)", xrstd_);
-        ptable.addValue("Up-Height (px)", ylstd_);
-        ptable.addValue("Down-Height (px)", yrstd_);
-        ptable.addValue("X Symmetry (%)", xsym);
-        ptable.addValue("Y Symmetry (%)", ysym);
-        ptable.addValue("Width minus Height (px)", wmh);
-        ptable.addValue("Frame Number", frame_);
-        ptable_lock.unlock();
+        if (renderer != null) {
+            renderer.add(xm, ym);
+        }
+        addParticle(ptable, new double[]{s_, xm, ym, xm_, ym_, z, xlstd_,
+            xrstd_, ylstd_, yrstd_, xsym, ysym, wmh, frame_, photons,
+            background, precision});
         clearRegion(thrsh, ip, mask, xstart, xend, ystart, yend);
         return true;
     }
 
+    /**
+     * Measures a particle on the raw image. The background is the mean of the
+     * pixels on the border of the region, and the photons are the counts of
+     * the region above that background. The bounds are inclusive.
+     *
+     * @param raw unfiltered image
+     * @param xstart first column of the region
+     * @param xend last column of the region
+     * @param ystart first row of the region
+     * @param yend last row of the region
+     * @param offset camera offset in counts
+     * @param adu_per_photon camera counts per photon
+     * @return photons of the particle and background photons per pixel
+     */
+    static double[] measurePhotons(ImageProcessor raw, int xstart, int xend,
+                                   int ystart, int yend, double offset,
+                                   double adu_per_photon) {
+        double sum = 0;
+        double border = 0;
+        int nborder = 0;
+        for (int i = xstart; i <= xend; i++) {
+            for (int j = ystart; j <= yend; j++) {
+                double v = raw.get(i, j) - offset;
+                sum += v;
+                if (i == xstart || i == xend || j == ystart || j == yend) {
+                    border += v;
+                    nborder++;
+                }
+            }
+        }
+        int npixels = (xend - xstart + 1) * (yend - ystart + 1);
+        double background = Math.max(border / nborder, 0);
+        double photons = Math.max(sum - background * npixels, 0);
+        return new double[]{photons / adu_per_photon, background / adu_per_photon};
+    }
+
+    /**
+     * Localization precision of a Gaussian spot fitted by least squares
+     * (Mortensen et al., Nat. Methods 7, 2010, eq. 6).
+     *
+     * @param sigma standard deviation of the PSF in nm
+     * @param pixelsize pixel size in nm
+     * @param photons number of photons in the spot
+     * @param background background photons per pixel
+     * @return precision in nm, or NaN without photons
+     */
+    static double getPrecision(double sigma, double pixelsize, double photons,
+                               double background) {
+        if (photons <= 0)
+            return Double.NaN;
+        double sa2 = sigma * sigma + pixelsize * pixelsize / 12;
+        double var = sa2 / photons * (16.0 / 9 + 8 * Math.PI * sa2 * background
+                / (photons * pixelsize * pixelsize));
+        return Math.sqrt(var);
+    }
+
+    /**
+     * Stores a particle either in the particle stream, if one is open, or in
+     * the given table.
+     *
+     * @param ptable particle table used when not streaming
+     * @param values one value per entry of PARTICLE_COLUMNS
+     */
+    void addParticle(ResultsTable ptable, double[] values) {
+        if (stream != null) {
+            stream.offer(values);
+            return;
+        }
+        ptable_lock.lock();
+        try {
+            ptable.incrementCounter();
+            for (int i = 0; i < PARTICLE_COLUMNS.length; i++) {
+                ptable.addValue(PARTICLE_COLUMNS[i], values[i]);
+            }
+        } finally {
+            ptable_lock.unlock();
+        }
+    }
+
     double[] getParticleForCalibration(ImageProcessor ip, MyDialogs dg, int xstart, int xend, int ystart, int yend) {
         int i, j;
 
@@ -534,7 +812,7 @@ class MyFunctions {
 
         // symmetricity
         double xsym = 1 - Math.abs((xlstd - xrstd) / (xlstd + xrstd));
-        double ysym = 1 - Math.abs((ylstd - xrstd) / (ylstd + xrstd));
+        double ysym = 1 - Math.abs((ylstd - yrstd) / (ylstd + yrstd));
         double sym = (xsym < ysym) ? xsym : ysym;
 
         double[] results = new double[9];
@@ -636,6 +914,32 @@ class MyFunctions {
         return closest;
     }
 
+    /**
+     * Binary search for the index of the value closest to the given one in a
+     * strictly monotone array.
+     *
+     * @param value value to look for
+     * @param arr strictly monotone array
+     * @param ascending true if arr is increasing, false if decreasing
+     * @return index of the closest value
+     */
+    static int getClosestMonotone(double value, double[] arr, boolean ascending) {
+        int lo = 0;
+        int hi = arr.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ascending ? arr[mid] < value : arr[mid] > value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo > 0 && Math.abs(value - arr[lo - 1]) <= Math.abs(value - arr[lo])) {
+            return lo - 1;
+        }
+        return lo;
+    }
+
     double[] movingMean(double[] arr, int window) {
         int nvalues = arr.length;
         double[] amean = new double[nvalues];
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ch.epfl.leb.alica.acpack.analyzers.LiveViewPublisher;
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+
+/**
+ * Incremental super-resolution rendering of QuickPALM localizations.
+ *
+ * Each localization increments one bin of a fixed-size histogram image. If
+ * only the last N frames are to be accumulated, the bins of each frame are
+ * remembered and subtracted again once the frame leaves the window. Every
+ * few frames a copy of the histogram is handed to a LiveViewPublisher, which
+ * draws it on the event dispatch thread, so painting never delays the
+ * analysis.
+ */
+class OnlineRenderer {
+
+    private final int width;
+    private final int height;
+    private final double magn;
+    private final int update;
+
+    private final int[] counts;
+
+    // bins of the frames in the accumulation window, as a ring of frames
+    private final int[][] frame_bins;
+    private final int[] frame_sizes;
+    private int current = 0;
+    private int nframes = 0;
+
+    private final LiveViewPublisher view;
+
+    /**
+     * Creates a new renderer and shows its display.
+     *
+     * @param image_width width of the analyzed images in pixels
+     * @param image_height height of the analyzed images in pixels
+     * @param magn ratio of the image pixel size to the rendered pixel size
+     * @param accumulate number of frames to accumulate, 0 for all frames
+     * @param update number of frames between display updates
+     */
+    OnlineRenderer(int image_width, int image_height, double magn,
+                   int accumulate, int update) {
+        if (magn <= 0 || accumulate < 0 || update < 1)
+            throw new IllegalArgumentException("Invalid rendering parameter.");
+        this.magn = magn;
+        this.width = (int) Math.ceil(image_width * magn);
+        this.height = (int) Math.ceil(image_height * magn);
+        this.update = update;
+
+        counts = new int[width * height];
+        if (accumulate > 0) {
+            // one extra slot for the frame being analyzed
+            frame_bins = new int[accumulate + 1][64];
+            frame_sizes = new int[accumulate + 1];
+        } else {
+            frame_bins = null;
+            frame_sizes = null;
+        }
+
+        view = new LiveViewPublisher("QuickPALM rendering",
+                                     LiveViewPublisher.DEFAULT_MAX_FPS);
+        view.setEnabled(true);
+    }
+
+    /**
+     * Adds a localization to the current frame.
+     *
+     * @param x x position in image pixels
+     * @param y y position in image pixels
+     */
+    void add(double x, double y) {
+        int i = (int) (x * magn);
+        int j = (int) (y * magn);
+        if (i < 0 || i >= width || j < 0 || j >= height)
+            return;
+        int bin = j * width + i;
+        counts[bin]++;
+        if (frame_bins != null) {
+            int n = frame_sizes[current];
+            if (n == frame_bins[current].length) {
+                frame_bins[current] = Arrays.copyOf(
+                        frame_bins[current], 2 * n);
+            }
+            frame_bins[current][n] = bin;
+            frame_sizes[current] = n + 1;
+        }
+    }
+
+    /**
+     * Closes the current frame, expires the oldest frame of the window and
+     * publishes the histogram if a display update is due.
+     */
+    void endFrame() {
+        nframes++;
+        if (frame_bins != null) {
+            current = (current + 1) % frame_bins.length;
+            // the slot of the oldest frame is reused for the next one
+            int[] bins = frame_bins[current];
+            for (int n = 0; n < frame_sizes[current]; n++) {
+                counts[bins[n]]--;
+            }
+            frame_sizes[current] = 0;
+        }
+        if (nframes % update == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Returns the number of localizations accumulated in the bin of a
+     * position.
+     *
+     * @param x x position in image pixels
+     * @param y y position in image pixels
+     * @return number of localizations, 0 outside of the image
+     */
+    int getCount(double x, double y) {
+        int i = (int) (x * magn);
+        int j = (int) (y * magn);
+        if (i < 0 || i >= width || j < 0 || j >= height)
+            return 0;
+        return counts[j * width + i];
+    }
+
+    /**
+     * Closes the display.
+     */
+    void dispose() {
+        view.dispose();
+    }
+
+    private void publish() {
+        // the publisher draws the copy later, while the counts go on changing
+        float[] pixels = new float[counts.length];
+        for (int n = 0; n < pixels.length; n++) {
+            pixels[n] = counts[n];
+        }
+        view.publish(new FloatProcessor(width, height, pixels), null);
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.measure.ResultsTable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams QuickPALM localizations to a binary file on a background thread.
+ *
+ * Detection threads hand records over through a bounded lock-free ring
+ * buffer and never touch the disk. A single writer thread drains the ring
+ * into a large direct buffer and writes it out with a FileChannel.
+ *
+ * The file starts with a fixed-size header followed by the column names and
+ * the records themselves, each stored as little-endian float32 values. The
+ * header holds the number of committed records, which is only updated after
+ * the corresponding data has been written, so the file can be read at any
+ * time during the acquisition (and after a crash) up to the last commit.
+ */
+class ParticleStreamWriter {
+
+    private final static Logger LOGGER =
+            Logger.getLogger(ParticleStreamWriter.class.getName());
+
+    /**
+     * Magic bytes identifying a QuickPALM particle stream.
+     */
+    static final byte[] MAGIC = "QPALMSTR".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the file format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Size of the fixed header in bytes.
+     *
+     * Layout: magic (8), version (4), number of columns (4), committed
+     * records (8), dropped records (8), offset of the first record (8).
+     */
+    static final int HEADER_SIZE = 64;
+
+    private static final int COMMITTED_OFFSET = 16;
+    private static final int DATA_OFFSET_OFFSET = 32;
+
+    /**
+     * Size of the direct write buffer in bytes.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Minimum time between two forced flushes to the storage device.
+     */
+    private static final long FORCE_INTERVAL_NS = 1000000000L;
+
+    /**
+     * Number of records read from the file at once.
+     */
+    private static final int READ_CHUNK_RECORDS = 4096;
+
+    private final String[] columns;
+    private final int ncolumns;
+
+    // bounded multi-producer single-consumer ring
+    private final int capacity;
+    private final int mask;
+    private final float[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteBuffer header;
+    private final long dataOffset;
+
+    private final AtomicLong dropped = new AtomicLong(0);
+    /**
+     * Number of offer() calls that have passed the running check; close()
+     * waits for them before the final drain.
+     */
+    private final AtomicInteger offering = new AtomicInteger(0);
+    private long committed = 0;
+    private long lastForce;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private IOException failure = null;
+
+    /**
+     * Opens a new particle stream and starts the writer thread.
+     *
+     * @param path file to write the particles into; will be overwritten
+     * @param columns names of the record columns
+     * @param capacity number of records the ring can hold, rounded up to a
+     *                 power of two
+     * @throws IOException if the file cannot be created
+     */
+    ParticleStreamWriter(String path, String[] columns, int capacity)
+            throws IOException {
+        if (columns.length == 0 || capacity < 1)
+            throw new IllegalArgumentException("Invalid particle stream parameter.");
+        this.columns = columns.clone();
+        this.ncolumns = columns.length;
+
+        int c = 1;
+        while (c < capacity)
+            c <<= 1;
+        this.capacity = c;
+        this.mask = c - 1;
+        this.slots = new float[c * ncolumns];
+        this.sequences = new AtomicLongArray(c);
+        for (int i = 0; i < c; i++)
+            sequences.set(i, i);
+
+        channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(
+                Math.max(WRITE_BUFFER_SIZE, 4 * ncolumns))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+        dataOffset = writeHeader();
+        lastForce = System.nanoTime();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "QuickPALM particle stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hands a record over to the writer thread without blocking.
+     *
+     * If the ring is full the record is dropped and counted, so that the
+     * analysis never waits for the disk.
+     *
+     * @param record one value per column
+     * @return false if the record had to be dropped
+     */
+    boolean offer(double[] record) {
+        if (record.length != ncolumns)
+            throw new IllegalArgumentException("Record has wrong number of columns.");
+        offering.incrementAndGet();
+        try {
+            if (!running) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            return publish(record);
+        } finally {
+            offering.decrementAndGet();
+        }
+    }
+
+    private boolean publish(double[] record) {
+        long pos = tail.get();
+        int idx;
+        while (true) {
+            idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if (dif < 0) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        int base = idx * ncolumns;
+        for (int i = 0; i < ncolumns; i++)
+            slots[base + i] = (float) record[i];
+        sequences.lazySet(idx, pos + 1);
+        return true;
+    }
+
+    /**
+     * @return number of records dropped because the ring was full
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the writer thread, writes out all pending records and closes the
+     * file.
+     *
+     * @throws IOException if writing to the file failed at any point
+     */
+    void close() throws IOException {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // records offered concurrently with close() are either published
+        // before the final drain or counted as dropped
+        while (offering.get() > 0)
+            Thread.yield();
+        try {
+            if (failure == null) {
+                drain();
+                flush(true);
+            }
+        } catch (IOException ex) {
+            failure = ex;
+        } finally {
+            channel.close();
+        }
+        if (dropped.get() > 0)
+            LOGGER.log(Level.WARNING, "Particle stream dropped {0} records.",
+                       dropped.get());
+        if (failure != null)
+            throw failure;
+    }
+
+    private void writeLoop() {
+        try {
+            while (running) {
+                if (drain() == 0) {
+                    flush(false);
+                    LockSupport.parkNanos(1000000L);
+                }
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            running = false;
+            LOGGER.log(Level.SEVERE, "Particle stream failed.", ex);
+        }
+    }
+
+    /**
+     * Moves all available records from the ring into the write buffer.
+     *
+     * @return number of records moved
+     */
+    private int drain() throws IOException {
+        int n = 0;
+        while (true) {
+            int idx = (int) (head & mask);
+            if (sequences.get(idx) != head + 1)
+                return n;
+            if (buffer.remaining() < 4 * ncolumns)
+                flush(false);
+            int base = idx * ncolumns;
+            for (int i = 0; i < ncolumns; i++)
+                buffer.putFloat(slots[base + i]);
+            sequences.lazySet(idx, head + capacity);
+            head++;
+            n++;
+        }
+    }
+
+    /**
+     * Writes the buffer to the file and commits the records in the header.
+     */
+    private void flush(boolean force) throws IOException {
+        if (buffer.position() > 0) {
+            int records = buffer.position() / (4 * ncolumns);
+            buffer.flip();
+            long pos = dataOffset + committed * 4 * ncolumns;
+            while (buffer.hasRemaining())
+                pos += channel.write(buffer, pos);
+            buffer.clear();
+            committed += records;
+            writeLong(COMMITTED_OFFSET, committed);
+            writeLong(COMMITTED_OFFSET + 8, dropped.get());
+        }
+        long now = System.nanoTime();
+        if (force || now - lastForce > FORCE_INTERVAL_NS) {
+            channel.force(false);
+            lastForce = now;
+        }
+    }
+
+    private void writeLong(long position, long value) throws IOException {
+        header.clear();
+        header.putLong(value);
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header, position + header.position());
+    }
+
+    private long writeHeader() throws IOException {
+        int namesSize = 0;
+        byte[][] names = new byte[ncolumns][];
+        for (int i = 0; i < ncolumns; i++) {
+            names[i] = columns[i].getBytes(StandardCharsets.UTF_8);
+            namesSize += 2 + names[i].length;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + namesSize)
+                                  .order(ByteOrder.LITTLE_ENDIAN);
+        bb.put(MAGIC);
+        bb.putInt(VERSION);
+        bb.putInt(ncolumns);
+        bb.putLong(0); // committed records
+        bb.putLong(0); // dropped records
+        bb.putLong(HEADER_SIZE + namesSize);
+        bb.position(HEADER_SIZE);
+        for (byte[] name: names) {
+            bb.putShort((short) name.length);
+            bb.put(name);
+        }
+        bb.flip();
+        while (bb.hasRemaining())
+            channel.write(bb);
+        channel.force(false);
+        return HEADER_SIZE + namesSize;
+    }
+
+    /**
+     * Reads all committed records of a particle stream.
+     *
+     * This may be called while the stream is still being written. The
+     * records are read in chunks; streams with more records than fit into
+     * an array are rejected.
+     *
+     * @param path file written by a ParticleStreamWriter
+     * @return records as [record][column]
+     * @throws IOException if the file cannot be read, is not a stream or is
+     *                     too large to be loaded at once
+     */
+    static float[][] readRecords(String path) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(path),
+                                               StandardOpenOption.READ)) {
+            ByteBuffer bb = readHeader(ch);
+            int ncols = bb.getInt(12);
+            long committed = bb.getLong(COMMITTED_OFFSET);
+            long offset = bb.getLong(DATA_OFFSET_OFFSET);
+            long available = (ch.size() - offset) / (4L * ncols);
+            long total = Math.min(committed, available);
+            if (total > Integer.MAX_VALUE - 8)
+                throw new IOException("Particle stream has too many records to load at once: "
+                                      + total + ".");
+            int n = (int) total;
+
+            float[][] records = new float[n][ncols];
+            ByteBuffer data = ByteBuffer.allocate(READ_CHUNK_RECORDS * 4 * ncols)
+                                        .order(ByteOrder.LITTLE_ENDIAN);
+            long pos = offset;
+            int i = 0;
+            while (i < n) {
+                int chunk = Math.min(READ_CHUNK_RECORDS, n - i);
+                data.clear();
+                data.limit(chunk * 4 * ncols);
+                while (data.hasRemaining()) {
+                    int r = ch.read(data, pos);
+                    if (r < 0)
+                        throw new IOException("Particle stream is truncated.");
+                    pos += r;
+                }
+                data.flip();
+                for (int k = 0; k < chunk; k++, i++) {
+                    for (int j = 0; j < ncols; j++)
+                        records[i][j] = data.getFloat();
+                }
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Reads the column names of a particle stream.
+     *
+     * @param path file written by a ParticleStreamWriter
+     * @return column names
+     * @throws IOException if the file cannot be read or is not a stream
+     */
+    static String[] readColumns(String path) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(path),
+                                               StandardOpenOption.READ)) {
+            ByteBuffer bb = readHeader(ch);
+            int ncols = bb.getInt(12);
+            long offset = bb.getLong(DATA_OFFSET_OFFSET);
+            ByteBuffer names = ByteBuffer.allocate((int) (offset - HEADER_SIZE))
+                                         .order(ByteOrder.LITTLE_ENDIAN);
+            ch.read(names, HEADER_SIZE);
+            names.flip();
+            String[] cols = new String[ncols];
+            for (int i = 0; i < ncols; i++) {
+                byte[] name = new byte[names.getShort()];
+                names.get(name);
+                cols[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            return cols;
+        }
+    }
+
+    /**
+     * Loads all committed records of a particle stream into a results table.
+     *
+     * @param path file written by a ParticleStreamWriter
+     * @return table with one row per particle
+     * @throws IOException if the file cannot be read or is not a stream
+     */
+    static ResultsTable readTable(String path) throws IOException {
+        String[] cols = readColumns(path);
+        float[][] records = readRecords(path);
+        ResultsTable rt = new ResultsTable();
+        rt.setPrecision(3);
+        for (float[] record: records) {
+            rt.incrementCounter();
+            for (int j = 0; j < cols.length; j++)
+                rt.addValue(cols[j], record[j]);
+        }
+        return rt;
+    }
+
+    private static ByteBuffer readHeader(FileChannel ch) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE)
+                                  .order(ByteOrder.LITTLE_ENDIAN);
+        ch.read(bb, 0);
+        byte[] magic = new byte[MAGIC.length];
+        bb.flip();
+        if (bb.remaining() < HEADER_SIZE)
+            throw new IOException("Not a QuickPALM particle stream.");
+        bb.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a QuickPALM particle stream.");
+        if (bb.getInt(8) != VERSION)
+            throw new IOException("Unsupported particle stream version.");
+        return bb;
+    }
+}
@@ -28,10 +28,21 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
- * Produces a localization count per area using QuickPALM.
+ * Produces a localization count per area using QuickPALM, or alternatively a
+ * per-frame median of the localization quality.
  * @author Marcel Stefko
  */
 public class QuickPalm implements Analyzer {
+    /**
+     * Available outputs, in the order of the setup panel choices.
+     */
+    public static final String[] OUTPUTS = {"Localizations per area",
+        "Median photons", "Median background", "Median precision"};
+    public static final int OUTPUT_COUNT = 0;
+    public static final int OUTPUT_PHOTONS = 1;
+    public static final int OUTPUT_BACKGROUND = 2;
+    public static final int OUTPUT_PRECISION = 3;
+    
     /**
      * Scaling factor for the density.
      * 
@@ -41,6 +52,7 @@ public class QuickPalm implements Analyzer {
     private final double SCALEFACTOR = 100;
     
     private final QuickPalmCore core;
+    private final int output;
     private final ArrayList<Double> intermittent_outputs;
     
     private Roi roi;
@@ -53,7 +65,47 @@ public class QuickPalm implements Analyzer {
      * @param live_view if true, live view of particle positions is shown
      */
     public QuickPalm(boolean live_view) {
-        core = new QuickPalmCore(live_view);
+        this(new QuickPalmCore(live_view), OUTPUT_COUNT);
+    }
+    
+    /**
+     * Implementation of the QuickPALM algorithm as an analyzer, which produces
+     * the selected output.
+     * @param live_view if true, live view of particle positions is shown
+     * @param output one of the OUTPUT_* constants
+     */
+    public QuickPalm(boolean live_view, int output) {
+        this(new QuickPalmCore(live_view), output);
+    }
+    
+    /**
+     * Implementation of the QuickPALM algorithm as an analyzer, set up from
+     * given parameters instead of the parameter dialog.
+     * @param params analysis parameters
+     * @param live_view if true, live view of particle positions is shown
+     */
+    public QuickPalm(QuickPalmParameters params, boolean live_view) {
+        this(new QuickPalmCore(params, live_view), OUTPUT_COUNT);
+    }
+    
+    /**
+     * Implementation of the QuickPALM algorithm as an analyzer, set up from
+     * given parameters, which produces the selected output.
+     * @param params analysis parameters
+     * @param live_view if true, live view of particle positions is shown
+     * @param output one of the OUTPUT_* constants
+     */
+    public QuickPalm(QuickPalmParameters params, boolean live_view, int output) {
+        this(new QuickPalmCore(params, live_view), output);
+    }
+    
+    private QuickPalm(QuickPalmCore core, int output) {
+        if (output < 0 || output >= OUTPUTS.length) {
+            core.dispose();
+            throw new IllegalArgumentException("Unknown QuickPALM output.");
+        }
+        this.core = core;
+        this.output = output;
         intermittent_outputs = new ArrayList<Double>();
     }
     
@@ -79,9 +131,26 @@ public class QuickPalm implements Analyzer {
             sp = sp.crop();
         }
         synchronized(this) {
-            intermittent_output = core.processImage(sp.duplicate(), counter++) /
-                                  fov_area * SCALEFACTOR;
-            intermittent_outputs.add(intermittent_output);
+            int count = core.processImage(sp.duplicate(), counter++);
+            double value;
+            switch (output) {
+                case OUTPUT_PHOTONS:
+                    value = core.getMedianPhotons();
+                    break;
+                case OUTPUT_BACKGROUND:
+                    value = core.getMedianBackground();
+                    break;
+                case OUTPUT_PRECISION:
+                    value = core.getMedianPrecision();
+                    break;
+                default:
+                    value = count / fov_area * SCALEFACTOR;
+            }
+            // frames without particles have no quality to report
+            if (!Double.isNaN(value)) {
+                intermittent_output = value;
+                intermittent_outputs.add(value);
+            }
         }
     }
 
@@ -126,8 +195,16 @@ public class QuickPalm implements Analyzer {
     
     @Override
     public String getShortReturnDescription() {
-        String descr = "counts/" + String.valueOf((int) SCALEFACTOR) + "um^2";
-        return descr;
+        switch (output) {
+            case OUTPUT_PHOTONS:
+                return "median photons";
+            case OUTPUT_BACKGROUND:
+                return "median background photons/px";
+            case OUTPUT_PRECISION:
+                return "median precision nm";
+            default:
+                return "counts/" + String.valueOf((int) SCALEFACTOR) + "um^2";
+        }
     }
     
 }
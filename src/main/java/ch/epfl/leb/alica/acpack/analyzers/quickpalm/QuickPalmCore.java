@@ -20,6 +20,7 @@
 package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
 
 import ij.process.ImageProcessor;
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -44,6 +45,46 @@ public class QuickPalmCore {
         f.ptable.reset(); // erase particle table
         if (!dg.analyseParticles(f))
             throw new RuntimeException("Error in analysis setup.");
+        startAnalysis();
+    }
+    
+    /**
+     * Initializes the core from given parameters, without any dialog.
+     * @param params analysis parameters
+     * @param live_view if true, live view of particle positions will be shown
+     */
+    public QuickPalmCore(QuickPalmParameters params, boolean live_view) {
+        dg = new MyDialogs();
+        f = new MyFunctions(live_view);
+        
+        f.ptable.reset(); // erase particle table
+        dg.setParameters(params);
+        startAnalysis();
+    }
+    
+    private void startAnalysis() {
+        if (dg.is3d) {
+            try {
+                f.loadCalibration(dg.calfile);
+            } catch (IOException ex) {
+                throw new RuntimeException("Error loading Z-calibration.", ex);
+            }
+        }
+        if (dg.stream) {
+            try {
+                f.startStream(dg.ptablefile);
+            } catch (IOException ex) {
+                throw new RuntimeException("Error opening particle stream.", ex);
+            }
+        }
+    }
+    
+    /**
+     * Returns the parameters the analysis is running with.
+     * @return copy of the analysis parameters
+     */
+    public QuickPalmParameters getParameters() {
+        return dg.getParameters();
     }
         
     /**
@@ -61,7 +102,32 @@ public class QuickPalmCore {
     }
     
     /**
-     * Close preview window if opened.
+     * Returns the median photon count of the particles of the last frame.
+     * @return median photons, or NaN if no particle was found
+     */
+    public double getMedianPhotons() {
+        return f.frame_photons;
+    }
+    
+    /**
+     * Returns the median background of the particles of the last frame.
+     * @return median background photons per pixel, or NaN if no particle was
+     *         found
+     */
+    public double getMedianBackground() {
+        return f.frame_background;
+    }
+    
+    /**
+     * Returns the median localization precision of the last frame.
+     * @return median precision in nm, or NaN if no particle was found
+     */
+    public double getMedianPrecision() {
+        return f.frame_precision;
+    }
+    
+    /**
+     * Close preview window if opened and finish the particle stream.
      */
     public void dispose() {
         f.dispose();
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Analysis parameters of QuickPALM.
+ *
+ * This allows QuickPALM to be set up without the modal parameter dialog,
+ * e.g. in batch jobs or benchmarks. Parameters can be loaded from and saved
+ * to a properties file whose keys are the names of the fields below; missing
+ * keys keep their default values, which are the defaults of the dialog.
+ */
+public class QuickPalmParameters {
+
+    /**
+     * Minimum signal-to-noise ratio of a particle.
+     */
+    public int snr = 5;
+
+    /**
+     * Maximum FWHM of a particle in pixels.
+     */
+    public double fwhm = 4;
+
+    /**
+     * Image plane pixel size in nm.
+     */
+    public double pixelsize = 106;
+
+    /**
+     * Camera gain in ADU per photon, used for photon counts and precision.
+     */
+    public double adu_per_photon = 1;
+
+    /**
+     * Camera offset in ADU, subtracted from the background.
+     */
+    public double camera_offset = 0;
+
+    /**
+     * Stop searching a frame once no new particles are found for a while.
+     */
+    public boolean smartsnr = false;
+
+    /**
+     * 3D analysis using astigmatism; requires calfile.
+     */
+    public boolean is3d = false;
+
+    /**
+     * Path to the astigmatism Z-calibration table.
+     */
+    public String calfile = null;
+
+    /**
+     * Online rendering of the localizations.
+     */
+    public boolean view = false;
+
+    /**
+     * Pixel size of the rendered image in nm.
+     */
+    public double viewer_tpixelsize = 30;
+
+    /**
+     * Number of frames to accumulate in the rendered image, 0 for all.
+     */
+    public int viewer_accumulate = 0;
+
+    /**
+     * Number of frames between updates of the rendered image.
+     */
+    public int viewer_update = 10;
+
+    /**
+     * Read images from a running acquisition.
+     */
+    public boolean attach = false;
+
+    /**
+     * Directory of the running acquisition.
+     */
+    public String imagedir = null;
+
+    /**
+     * Image name pattern, NN...NN represents the frame number.
+     */
+    public String pattern = "imgNNNNNNNNN.tif";
+
+    /**
+     * Frame number of the first image of the acquisition.
+     */
+    public int nimstart = 0;
+
+    /**
+     * Maximum time to wait for a new image of the acquisition in ms.
+     */
+    public int waittime = 50;
+
+    /**
+     * Number of frames per drift estimate, 0 to disable drift estimation.
+     */
+    public int drift_window = 0;
+
+    /**
+     * Stream the particles into ptablefile instead of the particle table.
+     */
+    public boolean stream = false;
+
+    /**
+     * File to stream the particles into.
+     */
+    public String ptablefile = null;
+
+    /**
+     * Minimum symmetry of a particle (0 to 1).
+     */
+    public double symmetry = 0.5;
+
+    /**
+     * Local threshold as a fraction of the maximum intensity (0 to 1).
+     */
+    public double pthrsh = 0.2;
+
+    /**
+     * Maximum number of particle candidates per frame.
+     */
+    public int maxpart = 1000;
+
+    /**
+     * Number of analysis threads.
+     */
+    public int threads = 50;
+
+    /**
+     * Localization method, an index into GaussianFitter.METHODS.
+     */
+    public int fit_method = 0;
+
+    /**
+     * Maximum number of iterations of a Gaussian fit.
+     */
+    public int fit_iterations = 20;
+
+    /**
+     * Checks that the parameters can be used for an analysis.
+     *
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    public void validate() {
+        if (snr <= 0 || fwhm <= 0 || pixelsize <= 0 || adu_per_photon <= 0
+                || viewer_tpixelsize <= 0
+                || viewer_accumulate < 0 || viewer_update < 1 || waittime < 0
+                || drift_window < 0 || fit_method < 0
+                || fit_method >= GaussianFitter.METHODS.length || fit_iterations < 1
+                || symmetry < 0 || symmetry > 1 || pthrsh < 0 || pthrsh > 1
+                || maxpart < 0 || threads < 1)
+            throw new IllegalArgumentException("Invalid QuickPALM parameter.");
+        if (pattern == null || pattern.indexOf('N') < 0)
+            throw new IllegalArgumentException("Image name pattern must contain NN...NN.");
+        if (attach && imagedir == null)
+            throw new IllegalArgumentException("Attaching to an acquisition requires an image directory.");
+        if (is3d && calfile == null)
+            throw new IllegalArgumentException("3D analysis requires a calibration file.");
+        if (stream && ptablefile == null)
+            throw new IllegalArgumentException("Streaming requires a particle table file.");
+    }
+
+    /**
+     * Reads parameters from properties, keeping defaults for missing keys.
+     *
+     * @param props properties keyed by field name
+     * @return the parameters
+     * @throws IllegalArgumentException if a value cannot be parsed
+     */
+    public static QuickPalmParameters fromProperties(Properties props) {
+        QuickPalmParameters p = new QuickPalmParameters();
+        try {
+            p.snr = getInt(props, "snr", p.snr);
+            p.fwhm = getDouble(props, "fwhm", p.fwhm);
+            p.pixelsize = getDouble(props, "pixelsize", p.pixelsize);
+            p.adu_per_photon = getDouble(props, "adu_per_photon", p.adu_per_photon);
+            p.camera_offset = getDouble(props, "camera_offset", p.camera_offset);
+            p.smartsnr = getBoolean(props, "smartsnr", p.smartsnr);
+            p.is3d = getBoolean(props, "is3d", p.is3d);
+            p.calfile = props.getProperty("calfile", p.calfile);
+            p.view = getBoolean(props, "view", p.view);
+            p.viewer_tpixelsize = getDouble(props, "viewer_tpixelsize", p.viewer_tpixelsize);
+            p.viewer_accumulate = getInt(props, "viewer_accumulate", p.viewer_accumulate);
+            p.viewer_update = getInt(props, "viewer_update", p.viewer_update);
+            p.attach = getBoolean(props, "attach", p.attach);
+            p.imagedir = props.getProperty("imagedir", p.imagedir);
+            p.pattern = props.getProperty("pattern", p.pattern).trim();
+            p.nimstart = getInt(props, "nimstart", p.nimstart);
+            p.waittime = getInt(props, "waittime", p.waittime);
+            p.drift_window = getInt(props, "drift_window", p.drift_window);
+            p.stream = getBoolean(props, "stream", p.stream);
+            p.ptablefile = props.getProperty("ptablefile", p.ptablefile);
+            p.symmetry = getDouble(props, "symmetry", p.symmetry);
+            p.pthrsh = getDouble(props, "pthrsh", p.pthrsh);
+            p.maxpart = getInt(props, "maxpart", p.maxpart);
+            p.threads = getInt(props, "threads", p.threads);
+            p.fit_method = getInt(props, "fit_method", p.fit_method);
+            p.fit_iterations = getInt(props, "fit_iterations", p.fit_iterations);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Error parsing QuickPALM parameters.", ex);
+        }
+        return p;
+    }
+
+    /**
+     * Writes the parameters into properties keyed by field name.
+     *
+     * @return the properties
+     */
+    public Properties toProperties() {
+        Properties props = new Properties();
+        props.setProperty("snr", "" + snr);
+        props.setProperty("fwhm", "" + fwhm);
+        props.setProperty("pixelsize", "" + pixelsize);
+        props.setProperty("adu_per_photon", "" + adu_per_photon);
+        props.setProperty("camera_offset", "" + camera_offset);
+        props.setProperty("smartsnr", "" + smartsnr);
+        props.setProperty("is3d", "" + is3d);
+        if (calfile != null)
+            props.setProperty("calfile", calfile);
+        props.setProperty("view", "" + view);
+        props.setProperty("viewer_tpixelsize", "" + viewer_tpixelsize);
+        props.setProperty("viewer_accumulate", "" + viewer_accumulate);
+        props.setProperty("viewer_update", "" + viewer_update);
+        props.setProperty("attach", "" + attach);
+        if (imagedir != null)
+            props.setProperty("imagedir", imagedir);
+        props.setProperty("pattern", pattern);
+        props.setProperty("nimstart", "" + nimstart);
+        props.setProperty("waittime", "" + waittime);
+        props.setProperty("drift_window", "" + drift_window);
+        props.setProperty("stream", "" + stream);
+        if (ptablefile != null)
+            props.setProperty("ptablefile", ptablefile);
+        props.setProperty("symmetry", "" + symmetry);
+        props.setProperty("pthrsh", "" + pthrsh);
+        props.setProperty("maxpart", "" + maxpart);
+        props.setProperty("threads", "" + threads);
+        props.setProperty("fit_method", "" + fit_method);
+        props.setProperty("fit_iterations", "" + fit_iterations);
+        return props;
+    }
+
+    /**
+     * Loads parameters from a properties file.
+     *
+     * @param path path to the properties file
+     * @return the parameters
+     * @throws IOException if the file cannot be read
+     */
+    public static QuickPalmParameters load(String path) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            props.load(in);
+        }
+        return fromProperties(props);
+    }
+
+    /**
+     * Saves the parameters into a properties file.
+     *
+     * @param path path to the properties file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(String path) throws IOException {
+        try (OutputStream out = new FileOutputStream(path)) {
+            toProperties().store(out, "QuickPALM parameters");
+        }
+    }
+
+    private static double getDouble(Properties props, String key, double def) {
+        String value = props.getProperty(key);
+        return value == null ? def : Double.parseDouble(value.trim());
+    }
+
+    private static int getInt(Properties props, String key, int def) {
+        String value = props.getProperty(key);
+        return value == null ? def : Integer.parseInt(value.trim());
+    }
+
+    private static boolean getBoolean(Properties props, String key, boolean def) {
+        String value = props.getProperty(key);
+        return value == null ? def : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -44,35 +44,51 @@ public class QuickPalmSetupPanel extends AnalyzerSetupPanel {
     private void initComponents() {
 
         cb_live_view = new javax.swing.JCheckBox();
+        jLabel1 = new javax.swing.JLabel();
+        cb_output = new javax.swing.JComboBox<>();
 
         cb_live_view.setText("Live view");
 
+        jLabel1.setText("Output:");
+
+        cb_output.setModel(new javax.swing.DefaultComboBoxModel<>(QuickPalm.OUTPUTS));
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(this);
         this.setLayout(layout);
         layout.setHorizontalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(layout.createSequentialGroup()
                 .addContainerGap()
-                .addComponent(cb_live_view)
-                .addContainerGap(75, Short.MAX_VALUE))
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(cb_live_view)
+                    .addComponent(jLabel1)
+                    .addComponent(cb_output, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
         layout.setVerticalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(layout.createSequentialGroup()
                 .addContainerGap()
                 .addComponent(cb_live_view)
-                .addContainerGap(120, Short.MAX_VALUE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                .addComponent(jLabel1)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cb_output, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addContainerGap(60, Short.MAX_VALUE))
         );
     }// </editor-fold>//GEN-END:initComponents
 
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JCheckBox cb_live_view;
+    private javax.swing.JComboBox<String> cb_output;
+    private javax.swing.JLabel jLabel1;
     // End of variables declaration//GEN-END:variables
 
     @Override
     public Analyzer initAnalyzer() {
-        return new QuickPalm(cb_live_view.isSelected());
+        return new QuickPalm(cb_live_view.isSelected(),
+                             cb_output.getSelectedIndex());
     }
 
     @Override
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import java.util.Arrays;
+
+/**
+ * Streaming estimate of a quantile in constant memory.
+ *
+ * This is the P-square algorithm of Jain and Chlamtac (Commun. ACM 28, 1985),
+ * which tracks five markers whose heights are adjusted by piecewise-parabolic
+ * interpolation as values arrive. Up to five values the quantile is exact.
+ */
+class StreamingQuantile {
+
+    private final double p;
+    private final double[] heights = new double[5];
+    private final double[] positions = new double[5];
+    private final double[] desired = new double[5];
+    private final double[] increments = new double[5];
+    private int count = 0;
+
+    /**
+     * Creates a new estimator.
+     *
+     * @param p quantile to estimate, between 0 and 1, e.g. 0.5 for the median
+     */
+    StreamingQuantile(double p) {
+        if (p < 0 || p > 1)
+            throw new IllegalArgumentException("Quantile must be between 0 and 1.");
+        this.p = p;
+        increments[0] = 0;
+        increments[1] = p / 2;
+        increments[2] = p;
+        increments[3] = (1 + p) / 2;
+        increments[4] = 1;
+        reset();
+    }
+
+    /**
+     * Forgets all values.
+     */
+    void reset() {
+        count = 0;
+        for (int i = 0; i < 5; i++) {
+            positions[i] = i;
+        }
+        desired[0] = 0;
+        desired[1] = 2 * p;
+        desired[2] = 4 * p;
+        desired[3] = 2 + 2 * p;
+        desired[4] = 4;
+    }
+
+    /**
+     * Adds a value; NaN values are ignored.
+     *
+     * @param x value
+     */
+    void add(double x) {
+        if (Double.isNaN(x))
+            return;
+        if (count < 5) {
+            heights[count++] = x;
+            if (count == 5)
+                Arrays.sort(heights);
+            return;
+        }
+        count++;
+
+        // find the cell of x and update the extreme markers
+        int k;
+        if (x < heights[0]) {
+            heights[0] = x;
+            k = 0;
+        } else if (x >= heights[4]) {
+            heights[4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= heights[k + 1])
+                k++;
+        }
+        for (int i = k + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increments[i];
+        }
+
+        // adjust the heights of the middle markers
+        for (int i = 1; i < 4; i++) {
+            double d = desired[i] - positions[i];
+            if ((d >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (d <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int s = d > 0 ? 1 : -1;
+                double h = parabolic(i, s);
+                if (heights[i - 1] < h && h < heights[i + 1]) {
+                    heights[i] = h;
+                } else {
+                    heights[i] += s * (heights[i + s] - heights[i])
+                            / (positions[i + s] - positions[i]);
+                }
+                positions[i] += s;
+            }
+        }
+    }
+
+    /**
+     * @return number of values added since the last reset
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the quantile estimate, or NaN if no value was added
+     */
+    double getQuantile() {
+        if (count == 0)
+            return Double.NaN;
+        if (count < 5) {
+            // exact quantile of the few values seen so far
+            double[] sorted = Arrays.copyOf(heights, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.round(p * (count - 1))];
+        }
+        return heights[2];
+    }
+
+    private double parabolic(int i, int s) {
+        double n0 = positions[i - 1];
+        double n1 = positions[i];
+        double n2 = positions[i + 1];
+        return heights[i] + s / (n2 - n0)
+                * ((n1 - n0 + s) * (heights[i + 1] - heights[i]) / (n2 - n1)
+                + (n2 - n1 - s) * (heights[i] - heights[i - 1]) / (n1 - n0));
+    }
+}
@@ -20,7 +20,7 @@ package ch.epfl.leb.alica.acpack.analyzers.spotcounter;
 
 ///////////////////////////////////////////////////////////////////////////////
 
-import ij.ImagePlus;
+import ch.epfl.leb.alica.acpack.analyzers.LiveViewPublisher;
 import ij.gui.Overlay;
 import ij.gui.Roi;
 import ij.measure.ResultsTable;
@@ -39,8 +39,7 @@ import java.util.LinkedHashMap;
  * @author Nico Stuurman
  */
 public class SpotCounterCore {
-    private boolean live_mode;
-    private final ImagePlus live_view;
+    private final LiveViewPublisher live_view;
     private final int nPasses_ = 1;
     private int pasN_ = 0;
     private final String preFilterChoice_ = "";
@@ -63,21 +62,17 @@ public class SpotCounterCore {
     public SpotCounterCore(int noiseTolerance, int boxSize, boolean live_mode) {
         boxSize_ = boxSize;
         noiseTolerance_ = noiseTolerance;
-        this.live_mode = live_mode;
         
-        this.live_view = new ImagePlus("SpotCounter live view");
-        if (live_mode) {
-            this.live_view.show();
-        }
+        this.live_view = new LiveViewPublisher("SpotCounter live view",
+                LiveViewPublisher.DEFAULT_MAX_FPS);
+        this.live_view.setEnabled(live_mode);
     }
     
     /**
      * Hide live view window if it exists.
      */
     public void dispose() {
-        if (this.live_view != null) {
-            this.live_view.hide();
-        }
+        live_view.dispose();
     }
     
     /**
@@ -106,16 +101,7 @@ public class SpotCounterCore {
      */
     public HashMap<String,Double> analyze(ImageProcessor ip) {
         Overlay ov = getSpotOverlay(ip);
-        synchronized(live_view) {
-            if (live_mode) {
-                live_view.setProcessor(ip);
-                live_view.setOverlay(ov);
-                live_view.updateAndDraw();
-                if (!live_view.isVisible()) {
-                    live_view.show();
-                }
-            }
-        }
+        live_view.publish(ip, ov);
         return getFrameStats(ov);
 
     }
@@ -205,19 +191,14 @@ public class SpotCounterCore {
      * Turns on live viewing of SpotCounter analysis.
      */
     public void liveModeOn() {
-        synchronized(live_view) {
-            live_mode = true;
-        }
+        live_view.setEnabled(true);
     }
     
     /**
      * Turns off live viewing of SpotCounter analysis.
      */
     public void liveModeOff() {
-        synchronized(live_view) {
-            live_mode = false;
-            live_view.hide();
-        }
+        live_view.setEnabled(false);
     }
     
     /**
@@ -225,6 +206,6 @@ public class SpotCounterCore {
      * @return true if live mode is on, false otherwise
      */
     public boolean isLiveModeOn() {
-        return live_mode;
+        return live_view.isEnabled();
     }
 }
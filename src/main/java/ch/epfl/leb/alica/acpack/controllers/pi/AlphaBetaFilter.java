@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.controllers.pi;
+
+/**
+ * Adaptive alpha-beta filter that estimates the level and the slope of a
+ * noisy signal.
+ *
+ * The gains are those of the steady-state Kalman filter for a signal with
+ * a randomly changing slope, given by the tracking index, i.e. the ratio of
+ * the process to the measurement noise (Kalata). The tracking index is
+ * adapted online from the residuals of the filter: the residuals of an
+ * optimal filter are white, a filter that lags makes consecutive residuals
+ * correlate, and a filter that follows the noise makes them anti-correlate.
+ * The index is therefore raised or lowered by the lag-one correlation of the
+ * residuals, estimated with exponential moving averages. The measurement
+ * noise then follows from the residual variance, and the process noise from
+ * the tracking index. A noisy, steady signal is smoothed strongly, and the
+ * filter speeds up when the signal starts to move.
+ *
+ * The derivative is given per tick; the gains assume nominal ticks, while
+ * the prediction uses the actual time step.
+ */
+public class AlphaBetaFilter {
+    /**
+     * Weight of a new sample in the residual statistics
+     */
+    public static final double DEFAULT_FORGETTING = 0.05;
+
+    /**
+     * Lower limit of the level gain, so that steps are always followed
+     */
+    public static final double MIN_ALPHA = 0.1;
+
+    /**
+     * Change of the logarithm of the tracking index per tick at a residual
+     * correlation of one
+     */
+    private static final double ADAPTATION_RATE = 0.2;
+
+    private static final double MAX_LOG_TRACKING_INDEX = Math.log(100.0);
+
+    private static final double MIN_LOG_TRACKING_INDEX = Math.log(
+            betaOf(MIN_ALPHA) / Math.sqrt(1.0 - MIN_ALPHA));
+
+    private final double forgetting;
+
+    private double estimate = Double.NaN;
+    private double derivative = 0.0;
+    private double log_tracking_index = 0.0;
+    private double alpha;
+    private double beta;
+
+    private double residual_var = 0.0;
+    private double residual_cov = 0.0;
+    private double last_residual = 0.0;
+    private int samples = 0;
+
+    /**
+     * Initialize the filter with the default forgetting factor.
+     */
+    public AlphaBetaFilter() {
+        this(DEFAULT_FORGETTING);
+    }
+
+    /**
+     * Initialize the filter.
+     * @param forgetting weight of a new sample in the residual statistics,
+     * between 0 (exclusive) and 1
+     */
+    public AlphaBetaFilter(double forgetting) {
+        if (!(forgetting > 0.0 && forgetting <= 1.0))
+            throw new IllegalArgumentException("Invalid filter parameter!");
+        this.forgetting = forgetting;
+        updateGains();
+    }
+
+    /**
+     * Takes in a new measurement.
+     * @param value measured value
+     * @param ticks time since the last measurement, in ticks
+     */
+    public void update(double value, double ticks) {
+        if (samples == 0) {
+            estimate = value;
+            derivative = 0.0;
+            samples++;
+            return;
+        }
+
+        final double step = Math.max(0.0, ticks);
+        final double residual = value - (estimate + derivative * step);
+        if (samples == 1 && step > 0.0) {
+            // the first two samples define the line
+            estimate = value;
+            derivative = residual / step;
+            samples++;
+            return;
+        }
+        estimate += derivative * step + alpha * residual;
+        if (step > 0.0) {
+            derivative += beta * residual / step;
+        }
+
+        residual_var += forgetting * (residual * residual - residual_var);
+        if (samples >= 3) {
+            residual_cov += forgetting * (residual * last_residual - residual_cov);
+            if (residual_var > 0.0) {
+                log_tracking_index += ADAPTATION_RATE * residual_cov / residual_var;
+                log_tracking_index = Math.max(MIN_LOG_TRACKING_INDEX,
+                        Math.min(MAX_LOG_TRACKING_INDEX, log_tracking_index));
+                updateGains();
+            }
+        }
+        last_residual = residual;
+        samples++;
+    }
+
+    private static double betaOf(double alpha) {
+        return 2.0 * (2.0 - alpha) - 4.0 * Math.sqrt(1.0 - alpha);
+    }
+
+    private void updateGains() {
+        final double lambda = Math.exp(log_tracking_index);
+        final double r = (4.0 + lambda - Math.sqrt(8.0 * lambda + lambda * lambda)) / 4.0;
+        alpha = Math.max(MIN_ALPHA, 1.0 - r * r);
+        beta = betaOf(alpha);
+    }
+
+    /**
+     * Forgets all measurements and residual statistics.
+     */
+    public void reset() {
+        estimate = Double.NaN;
+        derivative = 0.0;
+        log_tracking_index = 0.0;
+        residual_var = 0.0;
+        residual_cov = 0.0;
+        last_residual = 0.0;
+        samples = 0;
+        updateGains();
+    }
+
+    /**
+     * @return filtered value, or NaN before the first measurement
+     */
+    public double getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @return filtered slope of the signal, per tick
+     */
+    public double getDerivative() {
+        return derivative;
+    }
+
+    /**
+     * @param ticks time after the last measurement, in ticks
+     * @return filtered value extrapolated by the given time
+     */
+    public double getPrediction(double ticks) {
+        return estimate + derivative * ticks;
+    }
+
+    /**
+     * @return current gain of the level
+     */
+    public double getAlpha() {
+        return alpha;
+    }
+
+    /**
+     * @return current gain of the slope
+     */
+    public double getBeta() {
+        return beta;
+    }
+
+    /**
+     * @return ratio of the process to the measurement noise standard
+     * deviations
+     */
+    public double getTrackingIndex() {
+        return Math.exp(log_tracking_index);
+    }
+
+    /**
+     * @return estimated variance of the measurement noise
+     */
+    public double getMeasurementNoise() {
+        // residual variance of the steady-state filter
+        return (1.0 - alpha) * residual_var;
+    }
+
+    /**
+     * @return estimated variance of the change of slope per tick
+     */
+    public double getProcessNoise() {
+        final double lambda = getTrackingIndex();
+        return lambda * lambda * getMeasurementNoise();
+    }
+}
@@ -50,6 +50,8 @@ public class PI_SetupPanel extends ControllerSetupPanel {
         e_I_per_s = new javax.swing.JTextField();
         jLabel3 = new javax.swing.JLabel();
         jLabel4 = new javax.swing.JLabel();
+        cb_variable_dt = new javax.swing.JCheckBox();
+        cb_filter = new javax.swing.JCheckBox();
 
         jLabel1.setText("P:");
 
@@ -65,6 +67,12 @@ public class PI_SetupPanel extends ControllerSetupPanel {
 
         jLabel4.setText("-");
 
+        cb_variable_dt.setText("Measure tick interval");
+        cb_variable_dt.setToolTipText("Integrate over the measured time between valid samples");
+
+        cb_filter.setText("Filter signal");
+        cb_filter.setToolTipText("Smooth the analyzer output with an adaptive alpha-beta filter");
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(this);
         this.setLayout(layout);
         layout.setHorizontalGroup(
@@ -72,16 +80,20 @@ public class PI_SetupPanel extends ControllerSetupPanel {
             .addGroup(layout.createSequentialGroup()
                 .addGap(42, 42, 42)
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
-                    .addComponent(jLabel1, javax.swing.GroupLayout.PREFERRED_SIZE, 22, javax.swing.GroupLayout.PREFERRED_SIZE)
-                    .addComponent(jLabel2))
-                .addGap(18, 18, 18)
-                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING, false)
-                    .addComponent(e_P, javax.swing.GroupLayout.DEFAULT_SIZE, 53, Short.MAX_VALUE)
-                    .addComponent(e_I_per_s))
-                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
-                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
-                    .addComponent(jLabel3)
-                    .addComponent(jLabel4))
+                    .addComponent(cb_variable_dt)
+                    .addComponent(cb_filter)
+                    .addGroup(layout.createSequentialGroup()
+                        .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                            .addComponent(jLabel1, javax.swing.GroupLayout.PREFERRED_SIZE, 22, javax.swing.GroupLayout.PREFERRED_SIZE)
+                            .addComponent(jLabel2))
+                        .addGap(18, 18, 18)
+                        .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING, false)
+                            .addComponent(e_P, javax.swing.GroupLayout.DEFAULT_SIZE, 53, Short.MAX_VALUE)
+                            .addComponent(e_I_per_s))
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                        .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                            .addComponent(jLabel3)
+                            .addComponent(jLabel4))))
                 .addContainerGap(40, Short.MAX_VALUE))
         );
         layout.setVerticalGroup(
@@ -97,12 +109,18 @@ public class PI_SetupPanel extends ControllerSetupPanel {
                     .addComponent(jLabel2)
                     .addComponent(e_I_per_s, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                     .addComponent(jLabel3))
-                .addContainerGap(93, Short.MAX_VALUE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cb_variable_dt)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cb_filter)
+                .addContainerGap(43, Short.MAX_VALUE))
         );
     }// </editor-fold>//GEN-END:initComponents
 
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JCheckBox cb_filter;
+    private javax.swing.JCheckBox cb_variable_dt;
     private javax.swing.JTextField e_I_per_s;
     private javax.swing.JTextField e_P;
     private javax.swing.JLabel jLabel1;
@@ -120,7 +138,8 @@ public class PI_SetupPanel extends ControllerSetupPanel {
         } catch (NumberFormatException ex) {
             throw new RuntimeException("Error parsing PI controller parameters.");
         }
-        return new PI_controller(P, I_per_s, max_controller_output, tick_rate_ms/1000.0);
+        return new PI_controller(P, I_per_s, max_controller_output, tick_rate_ms/1000.0,
+                cb_variable_dt.isSelected(), cb_filter.isSelected());
     }
 
     @Override
@@ -25,9 +25,34 @@ import ch.epfl.leb.alica.interfaces.controllers.ControllerStatusPanel;
 /**
  * Simple implementation of PI controller with output constraining and windup
  * prevention.
+ * 
+ * By default every tick integrates over the sampling period given at
+ * construction. With a variable time step, each tick integrates over the
+ * time measured since the last valid sample instead, so that late or skipped
+ * ticks do not change the integral gain. The measured step is limited to
+ * MAX_TIME_STEP_FACTOR sampling periods.
+ * 
+ * Optionally, the measured values pass through an adaptive alpha-beta
+ * filter, and the error is taken from the filtered value projected one tick
+ * ahead along the filtered slope. The last value averages the analyzer
+ * output over the previous tick, and the new output acts over the next one,
+ * so their centers are one tick apart. This rejects noise without a longer
+ * averaging window in the analyzer.
  * @author Marcel Stefko
  */
 public class PI_controller implements Controller {
+    /**
+     * Longest time step integrated in one tick, in sampling periods
+     */
+    public static final double MAX_TIME_STEP_FACTOR = 4.0;
+    
+    /**
+     * Time by which the filtered value is projected ahead, in ticks
+     */
+    public static final double FILTER_LEAD_TICKS = 1.0;
+    
+    private static final long NO_SAMPLE = Long.MIN_VALUE;
+    
     /**
      * Proportional component
      */
@@ -52,6 +77,25 @@ public class PI_controller implements Controller {
     
     private double integral = 0.0;
     
+    private final double sampling_period_s;
+    
+    private boolean variable_time_step = false;
+    
+    /**
+     * Time of the last valid sample in nanoseconds, or NO_SAMPLE
+     */
+    private long last_sample_ns = NO_SAMPLE;
+    
+    /**
+     * True if last_sample_ns is a timestamp rather than a time of the clock
+     */
+    private boolean last_sample_timestamped = false;
+    
+    /**
+     * Filter of the measured values, or null if they are used directly
+     */
+    private AlphaBetaFilter signal_filter = null;
+    
     private final PI_StatusPanel status_panel;
     
     /**
@@ -66,12 +110,79 @@ public class PI_controller implements Controller {
             throw new IllegalArgumentException("Invalid PI controller parameter.");
         this.P = P;
         this.I = I_per_second * sampling_period_s;
+        this.sampling_period_s = sampling_period_s;
         this.max_output = max_output;
         this.min_output = 0.0;
         this.status_panel = new PI_StatusPanel(this);
         this.status_panel.setValuesDisplay(P, I_per_second);
     }
     
+    /**
+     * Initialize the PI controller.
+     * @param P proportional component
+     * @param I_per_second integral component (per second)
+     * @param max_output maximal output value
+     * @param sampling_period_s nominal controller tick rate in seconds
+     * @param variable_time_step if true, integrate over the measured time
+     * between valid samples instead of the nominal tick rate
+     */
+    public PI_controller(double P, double I_per_second, double max_output,
+            double sampling_period_s, boolean variable_time_step) {
+        this(P, I_per_second, max_output, sampling_period_s);
+        setVariableTimeStep(variable_time_step);
+    }
+    
+    /**
+     * Initialize the PI controller.
+     * @param P proportional component
+     * @param I_per_second integral component (per second)
+     * @param max_output maximal output value
+     * @param sampling_period_s nominal controller tick rate in seconds
+     * @param variable_time_step if true, integrate over the measured time
+     * between valid samples instead of the nominal tick rate
+     * @param filter_signal if true, filter the measured values
+     */
+    public PI_controller(double P, double I_per_second, double max_output,
+            double sampling_period_s, boolean variable_time_step, boolean filter_signal) {
+        this(P, I_per_second, max_output, sampling_period_s, variable_time_step);
+        setSignalFilter(filter_signal);
+    }
+    
+    /**
+     * Chooses between integrating over the nominal tick rate and over the
+     * measured time between valid samples.
+     * @param variable_time_step true to integrate over the measured time
+     */
+    public final void setVariableTimeStep(boolean variable_time_step) {
+        if (variable_time_step && sampling_period_s <= 0.0)
+            throw new IllegalArgumentException("A variable time step requires a positive sampling period.");
+        this.variable_time_step = variable_time_step;
+        resetSampleTime();
+    }
+    
+    /**
+     * @return true if the controller integrates over the measured time
+     */
+    public boolean isVariableTimeStep() {
+        return variable_time_step;
+    }
+    
+    /**
+     * Turns the filter of the measured values on or off. Turning it on
+     * starts a new filter.
+     * @param filter_signal true to filter the measured values
+     */
+    public final void setSignalFilter(boolean filter_signal) {
+        this.signal_filter = filter_signal ? new AlphaBetaFilter() : null;
+    }
+    
+    /**
+     * @return filter of the measured values, or null if it is off
+     */
+    public AlphaBetaFilter getSignalFilter() {
+        return signal_filter;
+    }
+    
     @Override
     public void setSetpoint(double new_setpoint) {
         if (new_setpoint < 0.0 || Double.isNaN(new_setpoint)) {
@@ -95,11 +206,89 @@ public class PI_controller implements Controller {
         }
         if (Double.isNaN(value) || Double.isInfinite(value))
             return current_output;
+        return update(value, sampleTicks());
+    }
+    
+    /**
+     * Calculates the next output from a value measured at a known time,
+     * such as the acquisition time of the analyzed frame. The integral is
+     * taken over the time since the last valid sample, whether or not the
+     * variable time step is on. Timestamps are not compared with the clock:
+     * the first sample after switching between the two integrates over one
+     * sampling period.
+     * @param value measured value
+     * @param time_ms time of the measurement in milliseconds
+     * @return new controller output
+     */
+    public double nextValue(double value, long time_ms) {
+        if (is_blocked) {
+            return 0.0;
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return current_output;
+        if (sampling_period_s <= 0.0)
+            throw new IllegalStateException("Timestamps require a positive sampling period.");
+        return update(value, elapsedTicks(time_ms * 1000000L, true));
+    }
+    
+    /**
+     * Returns the current time of the clock used for the variable time
+     * step; can be overridden, e.g. for testing.
+     * @return monotonic time in nanoseconds
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+    
+    /**
+     * Returns the time since the last valid sample, measured by the clock
+     * if the variable time step is on, and records the new sample time.
+     * @return time step in ticks; one if the variable time step is off
+     */
+    protected final double sampleTicks() {
+        return variable_time_step ? elapsedTicks(nanoTime(), false) : 1.0;
+    }
+    
+    /**
+     * Forgets the time of the last sample, so that the next tick integrates
+     * over one sampling period.
+     */
+    protected final void resetSampleTime() {
+        last_sample_ns = NO_SAMPLE;
+    }
+    
+    /**
+     * Returns the time since the last valid sample in sampling periods and
+     * records the new sample time, unless it is earlier than the last one.
+     */
+    private double elapsedTicks(long now_ns, boolean timestamped) {
+        if (timestamped != last_sample_timestamped) {
+            last_sample_ns = NO_SAMPLE;
+            last_sample_timestamped = timestamped;
+        }
+        if (last_sample_ns == NO_SAMPLE) {
+            last_sample_ns = now_ns;
+            return 1.0;
+        }
+        if (now_ns <= last_sample_ns)
+            // out-of-order samples add nothing and keep the last sample time
+            return 0.0;
+        double ticks = (now_ns - last_sample_ns) / 1e9 / sampling_period_s;
+        last_sample_ns = now_ns;
+        // long gaps are clamped
+        return Math.min(MAX_TIME_STEP_FACTOR, ticks);
+    }
+    
+    private double update(double value, double ticks) {
+        if (signal_filter != null) {
+            signal_filter.update(value, ticks);
+            value = signal_filter.getPrediction(FILTER_LEAD_TICKS);
+        }
         final double error = setpoint - value;
         
         final double P_output = P * error;
         
-        integral += I * error;
+        integral += I * error * ticks;
         // back-calculate integral so we don't have windup
         final double desiredMaxIoutput = max_output - P_output;
         if (integral > desiredMaxIoutput)
@@ -138,11 +327,14 @@ public class PI_controller implements Controller {
     }
     
     /**
-     * Resets integral before unblocking the output
+     * Resets integral and signal filter before unblocking the output
      */
     public void unblock() {
         is_blocked = false;
         integral = 0.0;
+        resetSampleTime();
+        if (signal_filter != null)
+            signal_filter.reset();
     }
     
     
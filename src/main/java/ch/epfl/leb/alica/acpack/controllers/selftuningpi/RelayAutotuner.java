@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.controllers.selftuningpi;
+
+/**
+ * Relay feedback autotuning of a PI controller (Astrom and Hagglund).
+ *
+ * The output switches between a low and a high level whenever the signal
+ * crosses the setpoint, which makes the loop oscillate at the frequency
+ * where the plant lags by half a period. The ultimate gain follows from
+ * the relay amplitude and the signal amplitude, and the ultimate period
+ * from the time between upward switches. The first cycle is discarded as
+ * a transient and the following cycles are averaged with running sums, so
+ * the memory does not depend on the length of the test.
+ *
+ * A hysteresis band around the setpoint keeps noise from switching the
+ * relay. Time is measured in ticks, which need not be whole: samples
+ * that were missed or arrived late still count towards the period.
+ */
+public class RelayAutotuner {
+
+    /**
+     * Tuning rules that turn the ultimate gain Ku and period Tu into PI
+     * gains, with P = gain_factor * Ku and an integral time of
+     * integral_time_factor * Tu.
+     */
+    public enum Rule {
+        /**
+         * Ziegler-Nichols: fast, with about 25% overshoot.
+         */
+        ZIEGLER_NICHOLS(0.45, 1.0 / 1.2),
+        /**
+         * Tyreus-Luyben: more damped and robust.
+         */
+        TYREUS_LUYBEN(1.0 / 3.2, 2.2);
+
+        final double gain_factor;
+        final double integral_time_factor;
+
+        Rule(double gain_factor, double integral_time_factor) {
+            this.gain_factor = gain_factor;
+            this.integral_time_factor = integral_time_factor;
+        }
+    }
+
+    private final double setpoint;
+    private final double low_output;
+    private final double high_output;
+    private final double hysteresis;
+    private final int cycles;
+    private final int max_ticks;
+    private final double sampling_period_s;
+    private final Rule rule;
+
+    private int samples = 0;
+    private double time_ticks = 0.0;
+    private boolean output_high = false;
+    private double last_switch_up = -1.0;
+    private boolean transient_done = false;
+    private double cycle_max = Double.NEGATIVE_INFINITY;
+    private double cycle_min = Double.POSITIVE_INFINITY;
+    private double sum_amplitude = 0.0;
+    private double sum_period_ticks = 0.0;
+    private int measured_cycles = 0;
+    private boolean finished = false;
+    private boolean failed = false;
+
+    private double ultimate_gain = Double.NaN;
+    private double ultimate_period_s = Double.NaN;
+
+    /**
+     * Initialize a relay test.
+     * @param setpoint signal value around which the loop oscillates
+     * @param low_output output while the signal is above the setpoint
+     * @param high_output output while the signal is below the setpoint
+     * @param hysteresis half width of the band around the setpoint in which
+     * the relay does not switch
+     * @param cycles number of oscillation periods averaged after the first
+     * @param max_ticks time in ticks after which the test fails
+     * @param sampling_period_s controller tick rate in seconds
+     * @param rule tuning rule for the PI gains
+     */
+    public RelayAutotuner(double setpoint, double low_output, double high_output,
+            double hysteresis, int cycles, int max_ticks, double sampling_period_s,
+            Rule rule) {
+        if (setpoint <= 0.0 || low_output < 0.0 || high_output <= low_output
+                || hysteresis < 0.0 || cycles < 1 || max_ticks < 1
+                || sampling_period_s <= 0.0 || rule == null)
+            throw new IllegalArgumentException("Invalid relay autotuning parameter!");
+        this.setpoint = setpoint;
+        this.low_output = low_output;
+        this.high_output = high_output;
+        this.hysteresis = hysteresis;
+        this.cycles = cycles;
+        this.max_ticks = max_ticks;
+        this.sampling_period_s = sampling_period_s;
+        this.rule = rule;
+    }
+
+    /**
+     * Takes in a new signal value, one tick after the previous one, and
+     * returns the relay output for the next tick. Once the test is over, it
+     * returns the low output.
+     * @param value signal value
+     * @return controller output
+     */
+    public double nextOutput(double value) {
+        return nextOutput(value, 1.0);
+    }
+
+    /**
+     * Takes in a new signal value and returns the relay output until the
+     * next sample. Once the test is over, it returns the low output.
+     * @param value signal value
+     * @param ticks time since the previous sample in ticks
+     * @return controller output
+     */
+    public double nextOutput(double value, double ticks) {
+        if (isDone()) {
+            return low_output;
+        }
+        samples++;
+        if (ticks > 0.0) {
+            time_ticks += ticks;
+        }
+        cycle_max = Math.max(cycle_max, value);
+        cycle_min = Math.min(cycle_min, value);
+
+        final double error = setpoint - value;
+        if (!output_high && error > hysteresis) {
+            output_high = true;
+            if (last_switch_up >= 0) {
+                // a full period ends at each upward switch
+                if (transient_done) {
+                    sum_period_ticks += time_ticks - last_switch_up;
+                    sum_amplitude += (cycle_max - cycle_min) / 2.0;
+                    measured_cycles++;
+                } else {
+                    transient_done = true;
+                }
+            }
+            last_switch_up = time_ticks;
+            cycle_max = value;
+            cycle_min = value;
+        } else if (output_high && error < -hysteresis) {
+            output_high = false;
+        }
+
+        if (measured_cycles >= cycles) {
+            finish();
+        } else if (time_ticks >= max_ticks) {
+            failed = true;
+        }
+        return isDone() ? low_output : (output_high ? high_output : low_output);
+    }
+
+    private void finish() {
+        final double amplitude = sum_amplitude / measured_cycles;
+        if (amplitude <= hysteresis) {
+            failed = true;
+            return;
+        }
+        final double relay_amplitude = (high_output - low_output) / 2.0;
+        ultimate_gain = 4.0 * relay_amplitude
+                / (Math.PI * Math.sqrt(amplitude * amplitude - hysteresis * hysteresis));
+        ultimate_period_s = sampling_period_s * sum_period_ticks / measured_cycles;
+        finished = true;
+    }
+
+    /**
+     * @return true if the test has succeeded or failed
+     */
+    public boolean isDone() {
+        return finished || failed;
+    }
+
+    /**
+     * @return true if the test timed out or the oscillation was too small
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * @return progress of the test between 0 and 1
+     */
+    public double getProgress() {
+        if (isDone()) {
+            return 1.0;
+        }
+        // the transient cycle counts as one of cycles + 1
+        return (double) (measured_cycles + (transient_done ? 1 : 0)) / (cycles + 1);
+    }
+
+    /**
+     * @return number of samples taken since the start of the test
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return time since the start of the test in ticks
+     */
+    public double getTicks() {
+        return time_ticks;
+    }
+
+    /**
+     * @return ultimate gain, or NaN if the test has not succeeded
+     */
+    public double getUltimateGain() {
+        return ultimate_gain;
+    }
+
+    /**
+     * @return ultimate period in seconds, or NaN if the test has not
+     * succeeded
+     */
+    public double getUltimatePeriod() {
+        return ultimate_period_s;
+    }
+
+    /**
+     * @return proportional gain, or NaN if the test has not succeeded
+     */
+    public double getP() {
+        return rule.gain_factor * ultimate_gain;
+    }
+
+    /**
+     * @return integral gain per second, or NaN if the test has not
+     * succeeded
+     */
+    public double getIPerSecond() {
+        return getP() / (rule.integral_time_factor * ultimate_period_s);
+    }
+}
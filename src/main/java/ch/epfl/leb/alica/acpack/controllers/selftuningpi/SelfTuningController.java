@@ -29,10 +29,23 @@ import java.util.logging.Logger;
  * A self-tuning implementation of the PI controller. It waits for 10 cycles,
  * and over next 20 cycles generates a step pulse and measures response. From
  * this response it estimates the P and I components of the PID controller.
+ * 
+ * Alternatively, a relay test around the setpoint measures the ultimate gain
+ * and period of the loop, from which the P and I components are computed
+ * with a tuning rule; see RelayAutotuner.
+ * 
+ * The calibration state is published as an immutable snapshot, which the
+ * status panel polls at a fixed rate; a new snapshot is only created when
+ * the displayed state changes, so that ticks do not allocate once the
+ * controller is calibrated.
  * @author Marcel Stefko
  */
 public class SelfTuningController extends PI_controller {
+    private static final Logger LOGGER = Logger.getLogger(SelfTuningController.class.getName());
+    
     private final SelfTuningStatusPanel status_panel;
+    private volatile TuningStatus status =
+            new TuningStatus(TuningStatus.Phase.UNCALIBRATED, 0, Double.NaN, Double.NaN);
     
     private double step_height;
     private final double sampling_period_s;
@@ -42,6 +55,23 @@ public class SelfTuningController extends PI_controller {
     private boolean init_sequence;
     private double zero_power_signal;
     private double with_power_signal;
+    private RelayAutotuner relay = null;
+    private int missed_relay_ticks = 0;
+    
+    /**
+     * Number of oscillation periods averaged by the relay test
+     */
+    public static final int RELAY_CYCLES = 2;
+    
+    /**
+     * Number of ticks after which the relay test is given up
+     */
+    public static final int RELAY_MAX_TICKS = 200;
+    
+    /**
+     * Half width of the relay hysteresis band, relative to the setpoint
+     */
+    public static final double RELAY_HYSTERESIS = 0.05;
     
     /**
      * Initialize a new SelfTuningController
@@ -67,38 +97,114 @@ public class SelfTuningController extends PI_controller {
             throw new IllegalArgumentException("Invalid self-tuning controller parameter!");
         this.with_power_signal = 0.0;
         this.zero_power_signal = 0.0;
+        this.relay = null;
         this.init_sequence = true;
         this.init_counter = -5;
         this.step_height = step_height;
         this.p_factor = p_factor;
         this.i_factor = i_factor;       
+        publishStatus(TuningStatus.Phase.STEP_TEST, 0, Double.NaN, Double.NaN);
+    }
+    
+    /**
+     * Starts a relay test that oscillates the output between 0 and
+     * relay_height around the current setpoint.
+     * @param relay_height high output of the relay
+     * @param rule tuning rule for the P and I components
+     */
+    public final void recalibrateRelay(double relay_height, RelayAutotuner.Rule rule) {
+        final double setpoint = getSetpoint();
+        if (setpoint <= 0.0)
+            throw new IllegalStateException("Relay tuning requires a positive setpoint!");
+        this.relay = new RelayAutotuner(setpoint, 0.0, relay_height,
+                RELAY_HYSTERESIS * setpoint, RELAY_CYCLES, RELAY_MAX_TICKS,
+                sampling_period_s, rule);
+        this.missed_relay_ticks = 0;
+        this.init_sequence = false;
+        resetSampleTime();
+        publishStatus(TuningStatus.Phase.RELAY_TEST, 0, Double.NaN, Double.NaN);
     }
     
+    /**
+     * Replaces the status snapshot if the state has changed.
+     */
+    private void publishStatus(TuningStatus.Phase phase, int progress_percent, double P, double I) {
+        if (!status.matches(phase, progress_percent, P, I)) {
+            status = new TuningStatus(phase, progress_percent, P, I);
+        }
+    }
+    
+    /**
+     * @return latest snapshot of the calibration state
+     */
+    TuningStatus getTuningStatus() {
+        return status;
+    }
 
     @Override
     public double nextValue(double value) {
         if (is_blocked) {
             return 0.0;
         }
-        if (Double.isNaN(value) || Double.isInfinite(value))
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // the relay period is measured in ticks, with or without a sample
+            if (relay != null)
+                missed_relay_ticks++;
             return current_output;
-        if (!init_sequence) {
+        }
+        if (relay != null) {
+            return relaySequence(value);
+        } else if (!init_sequence) {
             return super.nextValue(value);
         } else {
             return initSequence(value);
         }
     }
     
+    private double relaySequence(double value) {
+        final RelayAutotuner tuner = relay;
+        // the clock of the variable time step already covers missed ticks
+        double ticks = sampleTicks();
+        if (!isVariableTimeStep())
+            ticks += missed_relay_ticks;
+        missed_relay_ticks = 0;
+        current_output = tuner.nextOutput(value, ticks);
+        if (!tuner.isDone()) {
+            publishStatus(TuningStatus.Phase.RELAY_TEST,
+                    (int) (100 * tuner.getProgress()), Double.NaN, Double.NaN);
+            return current_output;
+        }
+        
+        if (tuner.hasFailed()) {
+            String message = "Relay tuning failed! No stable oscillation was measured. Turning laser off.";
+            IJ.showMessage(message);
+            LOGGER.log(Level.WARNING, message);
+            P = 0.0; I = 0.0;
+        } else {
+            P = tuner.getP();
+            I = tuner.getIPerSecond() * sampling_period_s;
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.log(Level.INFO,
+                 String.format("Relay tuning: ultimate gain %e, ultimate period %5.2f s after %d samples",
+                         tuner.getUltimateGain(), tuner.getUltimatePeriod(), tuner.getSamples()));
+                LOGGER.log(Level.INFO, "Controller calibrated:\n - P = " + P + "\n - I = " + I);
+            }
+        }
+        // set output to 0 and start normal operation
+        current_output = 0.0;
+        relay = null;
+        resetSampleTime();
+        publishStatus(tuner.hasFailed() ? TuningStatus.Phase.RELAY_FAILED : TuningStatus.Phase.CALIBRATED,
+                100, P, I);
+        return current_output;
+    }
+    
     private double initSequence(double value) {
         init_counter++;
-        Logger.getLogger(SelfTuningController.class.getName()).log(Level.INFO, "Counter: "+init_counter+"\nSignal value: "+value);
-        javax.swing.SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                status_panel.setCalibrationStatusDisplay(
-                   String.format("Calibrating... %d%%",100*(5 + init_counter)/21));
-            }
-        });
-        
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Counter: "+init_counter+"\nSignal value: "+value);
+        }
+        publishStatus(TuningStatus.Phase.STEP_TEST, 100*(5 + init_counter)/21, Double.NaN, Double.NaN);
         
         if (init_counter <= 0) {
             // just wait for sample stabilization
@@ -112,8 +218,10 @@ public class SelfTuningController extends PI_controller {
             // average out zero power signal
             zero_power_signal += value;
             zero_power_signal /= 7;
-            Logger.getLogger(SelfTuningController.class.getName()).log(Level.INFO,
-             String.format("Tuning: signal at zero power: %e", zero_power_signal));
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.log(Level.INFO,
+                 String.format("Tuning: signal at zero power: %e", zero_power_signal));
+            }
             // increase output to step height
             current_output = step_height;
         } else if (init_counter == 9) {
@@ -125,8 +233,10 @@ public class SelfTuningController extends PI_controller {
             // average out signal with power
             with_power_signal += value;
             with_power_signal /= 7;
-            Logger.getLogger(SelfTuningController.class.getName()).log(Level.INFO,
-             String.format("Tuning: signal at %5.2f power: %e", step_height, with_power_signal));
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.log(Level.INFO,
+                 String.format("Tuning: signal at %5.2f power: %e", step_height, with_power_signal));
+            }
             // calculate difference of signals with and without power
             double error =  with_power_signal - zero_power_signal;
             // calculate P and I according to coefficients
@@ -135,22 +245,19 @@ public class SelfTuningController extends PI_controller {
             if (P<0.0 || I<0.0) {
                 String message = "Self-tuning failed! Components were calculated to be negative. Turning laser off.";
                 IJ.showMessage(message);
-                Logger.getLogger(SelfTuningController.class.getName()).log(Level.WARNING, message);
+                LOGGER.log(Level.WARNING, message);
                 P = 0.0; I = 0.0;
-            } else {
-                Logger.getLogger(SelfTuningController.class.getName()).log(Level.INFO,"Self-tuning successful!\n - P = " + P + "\n - I = " + I);
+            } else if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.log(Level.INFO,"Self-tuning successful!\n - P = " + P + "\n - I = " + I);
+            }
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.log(Level.INFO, "Controller calibrated:\n - P = " + P + "\n - I = " + I);
             }
-            Logger.getLogger(SelfTuningController.class.getName()).log(Level.INFO,
-             "Controller calibrated:\n - P = " + P + "\n - I = " + I);
             // set output to 0 and start normal operation
             current_output = 0.0;
             init_sequence = false;
-            javax.swing.SwingUtilities.invokeLater(new Runnable() {
-                public void run() {
-                    status_panel.setCalibrationStatusDisplay("Calibrated.");
-                    status_panel.setValuesDisplay(P, I);
-                }
-            });
+            resetSampleTime();
+            publishStatus(TuningStatus.Phase.CALIBRATED, 100, P, I);
 
         } else {
             //skip
@@ -21,21 +21,67 @@ package ch.epfl.leb.alica.acpack.controllers.selftuningpi;
 
 import ch.epfl.leb.alica.interfaces.controllers.ControllerStatusPanel;
 import ij.IJ;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.Timer;
 
 /**
- *
+ * Status panel of the SelfTuningController. While the panel is displayed,
+ * a timer polls the calibration state of the controller at a fixed rate.
  * @author stefko
  */
 public class SelfTuningStatusPanel extends ControllerStatusPanel {
+    /**
+     * Period of the status refresh in milliseconds
+     */
+    public static final int REFRESH_PERIOD_MS = 200;
+    
     private final SelfTuningController controller;
+    private final Timer refresh_timer;
+    private TuningStatus shown_status;
     /**
      * Creates new form SeltTuningStatusPanel
      */
     public SelfTuningStatusPanel(SelfTuningController controller) {
         this.controller = controller;
         initComponents();
+        this.shown_status = controller.getTuningStatus();
+        this.refresh_timer = new Timer(REFRESH_PERIOD_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refreshStatus();
+            }
+        });
+        this.refresh_timer.setCoalesce(true);
+    }
+    
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refreshStatus();
+        refresh_timer.start();
+    }
+    
+    @Override
+    public void removeNotify() {
+        refresh_timer.stop();
+        super.removeNotify();
+    }
+    
+    /**
+     * Shows the latest calibration state of the controller if it has
+     * changed; runs on the event dispatch thread.
+     */
+    void refreshStatus() {
+        TuningStatus status = controller.getTuningStatus();
+        if (status == shown_status) {
+            return;
+        }
+        shown_status = status;
+        setCalibrationStatusDisplay(status.getText());
+        setValuesDisplay(status.P, status.I);
     }
 
     /**
@@ -48,6 +94,8 @@ public class SelfTuningStatusPanel extends ControllerStatusPanel {
     private void initComponents() {
 
         jPanel1 = new javax.swing.JPanel();
+        jLabel6 = new javax.swing.JLabel();
+        cb_method = new javax.swing.JComboBox<>();
         jLabel1 = new javax.swing.JLabel();
         e_init_step_size = new javax.swing.JTextField();
         jLabel2 = new javax.swing.JLabel();
@@ -64,10 +112,14 @@ public class SelfTuningStatusPanel extends ControllerStatusPanel {
         l_i_value = new javax.swing.JLabel();
         cb_block = new javax.swing.JCheckBox();
 
-        setPreferredSize(new java.awt.Dimension(200, 154));
+        setPreferredSize(new java.awt.Dimension(200, 180));
 
         jPanel1.setBorder(javax.swing.BorderFactory.createEtchedBorder());
 
+        jLabel6.setText("Method:");
+
+        cb_method.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "Step response", "Relay (Ziegler-Nichols)", "Relay (Tyreus-Luyben)" }));
+
         jLabel1.setText("Step:");
 
         e_init_step_size.setHorizontalAlignment(javax.swing.JTextField.TRAILING);
@@ -96,6 +148,12 @@ public class SelfTuningStatusPanel extends ControllerStatusPanel {
         jPanel1.setLayout(jPanel1Layout);
         jPanel1Layout.setHorizontalGroup(
             jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(jPanel1Layout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(jLabel6)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cb_method, 0, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                .addContainerGap())
             .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, jPanel1Layout.createSequentialGroup()
                 .addContainerGap()
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
@@ -122,6 +180,10 @@ public class SelfTuningStatusPanel extends ControllerStatusPanel {
             jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, jPanel1Layout.createSequentialGroup()
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(jLabel6)
+                    .addComponent(cb_method, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(jLabel4)
                     .addComponent(e_i_factor, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
@@ -221,8 +283,23 @@ public class SelfTuningStatusPanel extends ControllerStatusPanel {
             return;
         }
         try {
-            this.controller.recalibrate(init_step_size, p_factor, i_factor);
-            this.setValuesDisplay(Double.NaN, Double.NaN);
+            // the step height is the high output of the relay
+            switch (cb_method.getSelectedIndex()) {
+                case 1:
+                    this.controller.recalibrateRelay(init_step_size, RelayAutotuner.Rule.ZIEGLER_NICHOLS);
+                    break;
+                case 2:
+                    this.controller.recalibrateRelay(init_step_size, RelayAutotuner.Rule.TYREUS_LUYBEN);
+                    break;
+                default:
+                    this.controller.recalibrate(init_step_size, p_factor, i_factor);
+            }
+            refreshStatus();
+        } catch (IllegalStateException ex) {
+            String message = "Set a positive setpoint before relay tuning!";
+            Logger.getLogger(SelfTuningController.class.getName()).log(Level.SEVERE, message, ex);
+            IJ.showMessage(message);
+            return;
         } catch (IllegalArgumentException ex) {
             String message = "Wrong number value!";
             Logger.getLogger(SelfTuningController.class.getName()).log(Level.SEVERE, message, ex);
@@ -252,6 +329,7 @@ public class SelfTuningStatusPanel extends ControllerStatusPanel {
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton b_recalibrate;
     private javax.swing.JCheckBox cb_block;
+    private javax.swing.JComboBox<String> cb_method;
     private javax.swing.JTextField e_i_factor;
     private javax.swing.JTextField e_init_step_size;
     private javax.swing.JTextField e_p_factor;
@@ -260,6 +338,7 @@ public class SelfTuningStatusPanel extends ControllerStatusPanel {
     private javax.swing.JLabel jLabel3;
     private javax.swing.JLabel jLabel4;
     private javax.swing.JLabel jLabel5;
+    private javax.swing.JLabel jLabel6;
     private javax.swing.JLabel jLabel8;
     private javax.swing.JLabel jLabel9;
     private javax.swing.JPanel jPanel1;
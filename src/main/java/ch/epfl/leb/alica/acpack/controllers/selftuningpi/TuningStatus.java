@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.controllers.selftuningpi;
+
+/**
+ * Immutable snapshot of the calibration state of a SelfTuningController,
+ * published by the controller thread and read by the status panel.
+ */
+final class TuningStatus {
+
+    /**
+     * Calibration phases of the controller.
+     */
+    enum Phase {
+        UNCALIBRATED,
+        STEP_TEST,
+        RELAY_TEST,
+        CALIBRATED,
+        RELAY_FAILED
+    }
+
+    final Phase phase;
+    final int progress_percent;
+    final double P;
+    final double I;
+
+    TuningStatus(Phase phase, int progress_percent, double P, double I) {
+        this.phase = phase;
+        this.progress_percent = progress_percent;
+        this.P = P;
+        this.I = I;
+    }
+
+    /**
+     * @return true if this snapshot shows the same state
+     */
+    boolean matches(Phase phase, int progress_percent, double P, double I) {
+        return this.phase == phase && this.progress_percent == progress_percent
+                && Double.compare(this.P, P) == 0 && Double.compare(this.I, I) == 0;
+    }
+
+    /**
+     * @return text for the status label
+     */
+    String getText() {
+        switch (phase) {
+            case STEP_TEST:
+                return String.format("Calibrating... %d%%", progress_percent);
+            case RELAY_TEST:
+                return String.format("Relay test... %d%%", progress_percent);
+            case CALIBRATED:
+                return "Calibrated.";
+            case RELAY_FAILED:
+                return "Relay test failed.";
+            default:
+                return "Requires calibration...";
+        }
+    }
+}
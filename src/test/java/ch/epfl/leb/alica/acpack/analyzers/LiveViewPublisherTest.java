@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers;
+
+import ij.process.FloatProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LiveViewPublisher class.
+ */
+public class LiveViewPublisherTest {
+    private LiveViewPublisher publisher;
+
+    @Before
+    public void setUp() {
+        publisher = new LiveViewPublisher("Test live view", 5);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.dispose();
+    }
+
+    /**
+     * The live view is off until it is enabled, and publishing never blocks.
+     */
+    @Test
+    public void testEnable() {
+        assertFalse(publisher.isEnabled());
+        publisher.publish(new FloatProcessor(4, 4), null);
+
+        publisher.setEnabled(true);
+        assertTrue(publisher.isEnabled());
+        long start = System.nanoTime();
+        for (int n = 0; n < 1000; n++) {
+            publisher.publish(new FloatProcessor(4, 4), null);
+        }
+        assertTrue(System.nanoTime() - start < 1000000000L);
+
+        publisher.setEnabled(false);
+        assertFalse(publisher.isEnabled());
+    }
+
+    /**
+     * Ensures that the refresh rate is positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxFps() {
+        publisher.setMaxFps(0);
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the BatchPredictor class.
+ */
+public class BatchPredictorTest {
+
+    private BatchPredictor single;
+    private ImagePlus imp;
+    private String modelPath;
+    private ImageProcessor[] frames;
+    private float[][] expMaps;
+    private double[] expCounts;
+    private double[] expMaxLocalCounts;
+    private final String PATH_TO_MODEL = "tf_density_count";
+    private final String STACK_FILE = "test_data.tif";
+    private final int BOX_SIZE = 7;
+
+    @Before
+    public void setUp() throws Exception {
+        String stackFile = BatchPredictorTest.class.getClassLoader()
+                                                   .getResource(STACK_FILE)
+                                                   .getPath();
+        imp = IJ.openImage(stackFile);
+
+        modelPath = BatchPredictorTest.class.getClassLoader()
+                                            .getResource(PATH_TO_MODEL)
+                                            .getPath();
+
+        // single-frame inference as the reference
+        single = new BatchPredictor(1);
+        single.setup(modelPath);
+        int n = imp.getStackSize();
+        frames = new ImageProcessor[n];
+        expMaps = new float[n][];
+        expCounts = new double[n];
+        expMaxLocalCounts = new double[n];
+        for (int f = 0; f < n; f++) {
+            frames[f] = imp.getStack().getProcessor(f + 1);
+            single.predict(frames[f]);
+            expMaps[f] = (float[]) single.getDensityMap().getPixels();
+            expCounts[f] = single.getCount();
+            expMaxLocalCounts[f] = single.getMaximumLocalCount(BOX_SIZE);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        single.close();
+    }
+
+    /**
+     * Predicts the stack in batches of up to batchSize frames and compares
+     * every frame of each batch with single-frame inference.
+     */
+    private void assertBatchesMatch(int batchSize) throws Exception {
+        BatchPredictor batch = new BatchPredictor(batchSize);
+        batch.setup(modelPath);
+        try {
+            for (int start = 0; start < frames.length; start += batchSize) {
+                int n = Math.min(batchSize, frames.length - start);
+                ImageProcessor[] slices = new ImageProcessor[n];
+                System.arraycopy(frames, start, slices, 0, n);
+                batch.predict(slices, n);
+                assertEquals(n, batch.getBatchSize());
+
+                for (int i = 0; i < n; i++) {
+                    batch.selectFrame(i);
+                    float[] result = (float[]) batch.getDensityMap().getPixels();
+                    assertArrayEquals(expMaps[start + i], result, 1e-4f);
+                    assertEquals(expCounts[start + i], batch.getCount(), 1e-3);
+                    assertEquals(expMaxLocalCounts[start + i],
+                                 batch.getMaximumLocalCount(BOX_SIZE), 1e-3);
+                }
+            }
+        } finally {
+            batch.close();
+        }
+    }
+
+    /**
+     * All frames predicted in one batch, smaller than the maximum batch
+     * size, match single-frame inference.
+     */
+    @Test
+    public void testPartialBatch() throws Exception {
+        assertBatchesMatch(frames.length + 2);
+    }
+
+    /**
+     * Full batches followed by a partial one match single-frame inference.
+     */
+    @Test
+    public void testFullBatches() throws Exception {
+        assertBatchesMatch(4);
+    }
+
+    /**
+     * Non-default session options get their own session of the model, which
+     * gives the same counts as the default session.
+     */
+    @Test
+    public void testSessionConfig() throws Exception {
+        int models = ModelCache.size();
+        byte[] sessionConfig = SessionConfig.encode(2, 1, false);
+        BatchPredictor configured = new BatchPredictor(1, sessionConfig);
+        configured.setup(modelPath);
+        try {
+            assertEquals(models + 1, ModelCache.size());
+            assertEquals(1, ModelCache.getReferences(modelPath));
+            for (int f = 0; f < frames.length; f++) {
+                configured.predict(frames[f]);
+                assertEquals(expCounts[f], configured.getCount(), 1e-3);
+            }
+        } finally {
+            configured.close();
+        }
+        assertEquals(models, ModelCache.size());
+    }
+
+    /**
+     * Only frames of the last batch can be selected.
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSelectFrameOutsideBatch() throws Exception {
+        BatchPredictor batch = new BatchPredictor(4);
+        batch.setup(modelPath);
+        try {
+            batch.predict(frames, 2);
+            batch.selectFrame(2);
+        } finally {
+            batch.close();
+        }
+    }
+}
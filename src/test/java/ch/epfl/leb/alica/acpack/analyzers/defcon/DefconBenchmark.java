@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Measures the DEFCoN inference throughput for several batch sizes.
+ *
+ * This is not a unit test; run it with
+ * {@code java ... DefconBenchmark [model dir] [image stack] [frames]}.
+ * Without arguments, the model and stack of the test resources are used.
+ */
+public class DefconBenchmark {
+
+    private static final int[] BATCH_SIZES = {1, 2, 4, 8, 16};
+
+    private static final int WARMUP_FRAMES = 8;
+
+    public static void main(String[] args) throws Exception {
+        ClassLoader loader = DefconBenchmark.class.getClassLoader();
+        String modelPath = args.length > 0 ? args[0]
+                : loader.getResource("tf_density_count").getPath();
+        String stackPath = args.length > 1 ? args[1]
+                : loader.getResource("test_data.tif").getPath();
+        int nframes = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        ImagePlus imp = IJ.openImage(stackPath);
+        ImageStack stack = imp.getStack();
+        ImageProcessor[] frames = new ImageProcessor[stack.getSize()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = stack.getProcessor(i + 1);
+        }
+
+        System.out.println("batch size\tframes/s");
+        for (int batchSize : BATCH_SIZES) {
+            BatchPredictor predictor = new BatchPredictor(batchSize);
+            predictor.setup(modelPath);
+            try {
+                ImageProcessor[] batch = new ImageProcessor[batchSize];
+                run(predictor, frames, batch, WARMUP_FRAMES);
+                long start = System.nanoTime();
+                int done = run(predictor, frames, batch, nframes);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.format("%d\t%.1f%n", batchSize, done / seconds);
+            } finally {
+                predictor.close();
+            }
+        }
+    }
+
+    /**
+     * Runs full batches until at least nframes frames were analyzed.
+     */
+    private static int run(BatchPredictor predictor, ImageProcessor[] frames,
+                           ImageProcessor[] batch, int nframes)
+            throws Exception {
+        int done = 0;
+        while (done < nframes) {
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = frames[(done + i) % frames.length];
+            }
+            predictor.predict(batch, batch.length);
+            predictor.getCount();
+            done += batch.length;
+        }
+        return done;
+    }
+}
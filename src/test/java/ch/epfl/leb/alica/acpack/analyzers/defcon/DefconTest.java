@@ -18,8 +18,13 @@
  */
 package ch.epfl.leb.alica.acpack.analyzers.defcon;
 
+import ch.epfl.leb.defcon.predictors.internal.DefaultPredictor;
+
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.lang.ref.WeakReference;
 
 import org.junit.Test;
 import org.junit.Before;
@@ -134,4 +139,300 @@ public class DefconTest {
         
         assertNotEquals(fullCount, mlc, 0.0);
     }
+    
+    /**
+     * With the default DEFCoN predictor, the maximum local counts are the
+     * ones computed by the DEFCoN library.
+     */
+    @Test
+    public void testDefaultPredictorLocalCounts() throws Exception {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        DefaultPredictor reference = new DefaultPredictor();
+        reference.setup(modelPath);
+        reference.predict(imp.getProcessor());
+        
+        instance.maxLocalCountOn();
+        instance.setReportedBoxSizes(3, 11);
+        instance.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                              imp.getHeight(), 0.1, 10);
+        double[] counts = instance.getMaximumLocalCounts();
+        
+        assertEquals(reference.getMaximumLocalCount(3), counts[0], 1e-6);
+        assertEquals(reference.getMaximumLocalCount(11), counts[1], 1e-6);
+        assertEquals(reference.getMaximumLocalCount(instance.getBoxSize()),
+                     instance.getIntermittentOutput(), 1e-6);
+        reference.close();
+    }
+    
+    /**
+     * Only every frameStride-th frame is analyzed.
+     */
+    @Test
+    public void testFrameStride() {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        DefconConfig config = new DefconConfig();
+        config.frameStride = 3;
+        Defcon strided = new Defcon(modelPath, config);
+        
+        double pixelSizeUm = 0.1;
+        for (long timeMs = 0; timeMs < 6; timeMs++) {
+            strided.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                                 imp.getHeight(), pixelSizeUm, timeMs);
+        }
+        assertEquals(4, strided.getSkippedFrames());
+        assertEquals(3, strided.getIntermittentOutputTime());
+        strided.dispose();
+    }
+    
+    /**
+     * A full inference queue drops its oldest frames and counts them; the
+     * newest frame is always analyzed.
+     */
+    @Test
+    public void testAsynchronousDropOldest() throws InterruptedException {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        DefconConfig config = new DefconConfig();
+        config.asynchronous = true;
+        config.queueCapacity = 1;
+        Defcon async = new Defcon(modelPath, config);
+        
+        // Frames arrive much faster than they can be analyzed.
+        double pixelSizeUm = 0.1;
+        int frames = 50;
+        for (long timeMs = 0; timeMs < frames; timeMs++) {
+            async.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                               imp.getHeight(), pixelSizeUm, timeMs);
+        }
+        waitForOutputTime(async, frames - 1);
+        
+        long dropped = async.getDroppedFrames();
+        assertTrue(dropped > 0);
+        // The newest frame is never dropped.
+        assertTrue(dropped < frames);
+        assertEquals(0, async.getSkippedFrames());
+        async.dispose();
+    }
+    
+    /**
+     * The intermittent output is that of the newest analyzed frame, and it
+     * equals the synchronous result for the same frame.
+     */
+    @Test
+    public void testAsynchronousIntermittentOutput() throws InterruptedException {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        DefconConfig config = new DefconConfig();
+        config.asynchronous = true;
+        Defcon async = new Defcon(modelPath, config);
+        assertEquals(-1, async.getIntermittentOutputTime());
+        
+        double pixelSizeUm = 0.1;
+        for (long timeMs = 10; timeMs <= 30; timeMs += 10) {
+            async.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                               imp.getHeight(), pixelSizeUm, timeMs);
+        }
+        waitForOutputTime(async, 30);
+        
+        instance.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                              imp.getHeight(), pixelSizeUm, 30);
+        assertEquals(instance.getIntermittentOutput(),
+                     async.getIntermittentOutput(), 1e-6);
+        async.dispose();
+    }
+    
+    /**
+     * Analyzers sharing a model use one session, which is closed only after
+     * the last of them is closed.
+     */
+    @Test
+    public void testSharedModelReferences() {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        int models = ModelCache.size();
+        DefconConfig config = new DefconConfig();
+        config.shareModel = true;
+        Defcon first = new Defcon(modelPath, config);
+        Defcon second = new Defcon(modelPath, config);
+        assertEquals(2, ModelCache.getReferences(modelPath));
+        assertEquals(models + 1, ModelCache.size());
+        
+        first.close();
+        assertEquals(1, ModelCache.getReferences(modelPath));
+        
+        // The remaining analyzer can still run the shared session.
+        double pixelSizeUm = 0.1;
+        second.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                            imp.getHeight(), pixelSizeUm, 0);
+        instance.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                              imp.getHeight(), pixelSizeUm, 0);
+        assertEquals(instance.getBatchOutput(), second.getBatchOutput(), 1e-6);
+        
+        second.close();
+        assertEquals(0, ModelCache.getReferences(modelPath));
+        assertEquals(models, ModelCache.size());
+    }
+    
+    /**
+     * Waits until the analyzer has the output of the frame at timeMs.
+     */
+    private static void waitForOutputTime(Defcon analyzer, long timeMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (analyzer.getIntermittentOutputTime() != timeMs) {
+            assertTrue("The newest frame was not analyzed in time.",
+                       System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+    
+    /**
+     * Direct input of a region gives the same count as a cropped frame.
+     */
+    @Test
+    public void testDirectInput() {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        DefconConfig config = new DefconConfig();
+        config.directInput = true;
+        Defcon direct = new Defcon(modelPath, config);
+        
+        Roi roi = new Roi(8, 4, imp.getWidth() / 2, imp.getHeight() / 2);
+        instance.setROI(roi);
+        direct.setROI(roi);
+        double pixelSizeUm = 0.1;
+        long timeMs = 10;
+        instance.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                              imp.getHeight(), pixelSizeUm, timeMs);
+        direct.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                            imp.getHeight(), pixelSizeUm, timeMs);
+        
+        double expResult = instance.getBatchOutput();
+        double result = direct.getBatchOutput();
+        assertEquals(expResult, result, 1e-3 * Math.abs(expResult));
+        direct.dispose();
+    }
+    
+    /**
+     * A predictor pool analyzes a stack to the same result as one predictor.
+     */
+    @Test
+    public void testProcessStackWithPool() throws InterruptedException {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        DefconConfig config = new DefconConfig();
+        config.poolSize = 3;
+        Defcon pooled = new Defcon(modelPath, config);
+        
+        double pixelSizeUm = 0.1;
+        long frameIntervalMs = 10;
+        instance.processStack(imp.getStack(), pixelSizeUm, frameIntervalMs);
+        pooled.processStack(imp.getStack(), pixelSizeUm, frameIntervalMs);
+        
+        long lastTimeMs = (imp.getStackSize() - 1) * frameIntervalMs;
+        assertEquals(lastTimeMs, pooled.getIntermittentOutputTime());
+        assertEquals(instance.getIntermittentOutput(),
+                     pooled.getIntermittentOutput(), 1e-6);
+        assertEquals(instance.getBatchOutput(), pooled.getBatchOutput(), 1e-6);
+        pooled.dispose();
+    }
+    
+    /**
+     * Interrupting a pooled stack analysis drops the remaining slices
+     * without blocking the output of later frames.
+     */
+    @Test
+    public void testInterruptProcessStack() throws InterruptedException {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        DefconConfig config = new DefconConfig();
+        config.poolSize = 2;
+        Defcon pooled = new Defcon(modelPath, config);
+        
+        double pixelSizeUm = 0.1;
+        Thread.currentThread().interrupt();
+        try {
+            pooled.processStack(imp.getStack(), pixelSizeUm, 10);
+            fail("The stack analysis was not interrupted.");
+        } catch (InterruptedException ex) {
+            // expected
+        }
+        
+        long timeMs = imp.getStackSize() * 10;
+        pooled.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                            imp.getHeight(), pixelSizeUm, timeMs);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pooled.getIntermittentOutputTime() != timeMs) {
+            assertTrue("The output of the new frame was held back.",
+                       System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertFalse(Double.isNaN(pooled.getBatchOutput()));
+        pooled.dispose();
+    }
+    
+    /**
+     * Closing the analyzer releases the native buffers of its predictor.
+     */
+    @Test
+    public void testCloseReleasesNativeMemory() {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        long expResult = NativeResources.getDirectBytes();
+        int owners = NativeResources.getOpenOwners();
+        DefconConfig config = new DefconConfig();
+        config.directInput = true;
+        Defcon direct = new Defcon(modelPath, config);
+        assertEquals(owners + 1, NativeResources.getOpenOwners());
+        
+        direct.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                            imp.getHeight(), 0.1, 0);
+        assertTrue(NativeResources.getDirectBytes() > expResult);
+        
+        direct.close();
+        assertEquals(expResult, NativeResources.getDirectBytes());
+        assertEquals(owners, NativeResources.getOpenOwners());
+        
+        // Closing again has no effect.
+        direct.dispose();
+        assertEquals(expResult, NativeResources.getDirectBytes());
+    }
+    
+    /**
+     * An asynchronous analyzer that is dropped without being closed is
+     * collected, and its predictor is released.
+     */
+    @Test
+    public void testCollectAsynchronousAnalyzer() throws InterruptedException {
+        String modelPath = DefconTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+        int owners = NativeResources.getOpenOwners();
+        DefconConfig config = new DefconConfig();
+        config.asynchronous = true;
+        Defcon async = new Defcon(modelPath, config);
+        async.processImage(imp.getProcessor().getPixels(), imp.getWidth(),
+                           imp.getHeight(), 0.1, 0);
+        WeakReference<Defcon> ref = new WeakReference<>(async);
+        async = null;
+        
+        long deadline = System.currentTimeMillis() + 30000;
+        while (ref.get() != null || NativeResources.getOpenOwners() != owners) {
+            assertTrue("The analyzer was not collected.",
+                       System.currentTimeMillis() < deadline);
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
 }
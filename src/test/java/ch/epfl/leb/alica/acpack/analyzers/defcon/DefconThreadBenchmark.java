@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Measures the DEFCoN inference latency for several TensorFlow thread
+ * counts.
+ *
+ * This is not a unit test; run it with
+ * {@code java ... DefconThreadBenchmark [output file] [model dir] [image stack] [frames]}.
+ * The latency percentiles of single-frame inference are written to the
+ * output file as tab-separated values, by default defcon_threads.tsv.
+ * Without further arguments, the model and stack of the test resources are
+ * used.
+ */
+public class DefconThreadBenchmark {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 100};
+
+    private static final int WARMUP_FRAMES = 8;
+
+    public static void main(String[] args) throws Exception {
+        ClassLoader loader = DefconThreadBenchmark.class.getClassLoader();
+        String outputPath = args.length > 0 ? args[0] : "defcon_threads.tsv";
+        String modelPath = args.length > 1 ? args[1]
+                : loader.getResource("tf_density_count").getPath();
+        String stackPath = args.length > 2 ? args[2]
+                : loader.getResource("test_data.tif").getPath();
+        int nframes = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+
+        ImagePlus imp = IJ.openImage(stackPath);
+        ImageStack stack = imp.getStack();
+        ImageProcessor[] frames = new ImageProcessor[stack.getSize()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = stack.getProcessor(i + 1);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        try (PrintWriter out = new PrintWriter(new FileWriter(outputPath))) {
+            StringBuilder header = new StringBuilder("intra-op threads");
+            for (double p : PERCENTILES) {
+                header.append(String.format("\tp%.0f (ms)", p));
+            }
+            out.println(header);
+            System.out.println(header);
+
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                byte[] config = SessionConfig.encode(threads, 1, true);
+                BatchPredictor predictor = new BatchPredictor(1, config);
+                predictor.setup(modelPath);
+                try {
+                    run(predictor, frames, new double[WARMUP_FRAMES]);
+                    double[] latencies = new double[nframes];
+                    run(predictor, frames, latencies);
+                    Arrays.sort(latencies);
+
+                    StringBuilder line = new StringBuilder(String.valueOf(threads));
+                    for (double p : PERCENTILES) {
+                        line.append(String.format("\t%.2f", percentile(latencies, p)));
+                    }
+                    out.println(line);
+                    System.out.println(line);
+                } finally {
+                    predictor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Analyzes one frame per element of latencies and records the latency
+     * of each in milliseconds.
+     */
+    private static void run(BatchPredictor predictor, ImageProcessor[] frames,
+                            double[] latencies) throws Exception {
+        for (int i = 0; i < latencies.length; i++) {
+            long start = System.nanoTime();
+            predictor.predict(frames[i % frames.length]);
+            predictor.getCount();
+            latencies[i] = (System.nanoTime() - start) / 1e6;
+        }
+    }
+
+    /**
+     * Returns a percentile of sorted values by the nearest-rank method.
+     */
+    private static double percentile(double[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
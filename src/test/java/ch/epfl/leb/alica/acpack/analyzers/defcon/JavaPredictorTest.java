@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the JavaPredictor class.
+ */
+public class JavaPredictorTest {
+
+    private JavaPredictor instance;
+    private BatchPredictor tensorflow;
+    private ImagePlus imp;
+    private String modelPath;
+    private final String PATH_TO_MODEL = "tf_density_count";
+    private final String STACK_FILE = "test_data.tif";
+
+    @Before
+    public void setUp() {
+        String stackFile = JavaPredictorTest.class.getClassLoader()
+                                                  .getResource(STACK_FILE)
+                                                  .getPath();
+        imp = IJ.openImage(stackFile);
+
+        modelPath = JavaPredictorTest.class.getClassLoader()
+                                           .getResource(PATH_TO_MODEL)
+                                           .getPath();
+
+        instance = new JavaPredictor(2);
+        instance.setup(modelPath);
+        tensorflow = new BatchPredictor(1);
+        tensorflow.setup(modelPath);
+    }
+
+    @After
+    public void tearDown() {
+        instance.close();
+        tensorflow.close();
+    }
+
+    /**
+     * The variables of the saved model are read with their shapes.
+     */
+    @Test
+    public void testReadVariables() throws Exception {
+        Map<String, CheckpointReader.Variable> variables
+                = CheckpointReader.read(modelPath);
+        CheckpointReader.Variable kernel = variables.get("conv_seg_1/kernel");
+        assertArrayEquals(new int[] {3, 3, 1, 16}, kernel.shape);
+        assertEquals(3 * 3 * 16, kernel.values.length);
+        assertEquals(16, variables.get("conv_seg_1/bias").values.length);
+    }
+
+    /**
+     * The density map matches the one computed by TensorFlow.
+     */
+    @Test
+    public void testDensityMapMatchesTensorFlow() throws Exception {
+        for (int slice = 1; slice <= imp.getStackSize(); slice++) {
+            instance.predict(imp.getStack().getProcessor(slice));
+            tensorflow.predict(imp.getStack().getProcessor(slice));
+
+            float[] expResult = (float[]) tensorflow.getDensityMap().getPixels();
+            float[] result = (float[]) instance.getDensityMap().getPixels();
+            assertArrayEquals(expResult, result, 1e-4f);
+            assertEquals(tensorflow.getCount(), instance.getCount(), 1e-3);
+        }
+    }
+
+    /**
+     * Ensures that at least one thread is used.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        new JavaPredictor(0);
+    }
+}
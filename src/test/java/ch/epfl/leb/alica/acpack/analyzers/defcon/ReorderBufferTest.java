@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ReorderBuffer class.
+ */
+public class ReorderBufferTest {
+
+    private List<Long> times;
+    private ReorderBuffer instance;
+
+    @Before
+    public void setUp() {
+        times = new ArrayList<>();
+        instance = new ReorderBuffer(new ReorderBuffer.Sink() {
+            @Override
+            public void accept(long timeMs, double value) {
+                times.add(timeMs);
+            }
+        });
+    }
+
+    /**
+     * Results finishing out of order are passed on in timestamp order.
+     */
+    @Test
+    public void testReorder() {
+        instance.begin(0);
+        instance.begin(10);
+        instance.begin(20);
+
+        instance.complete(20, 2.0);
+        instance.complete(10, 1.0);
+        assertTrue(times.isEmpty());
+        assertEquals(2, instance.getWaiting());
+
+        instance.complete(0, 0.0);
+        assertArrayEquals(new Long[] {0L, 10L, 20L}, times.toArray(new Long[0]));
+        assertEquals(0, instance.getWaiting());
+    }
+
+    /**
+     * A result is passed on as soon as no earlier frame is running.
+     */
+    @Test
+    public void testNoEarlierFrame() {
+        instance.begin(0);
+        instance.begin(10);
+
+        instance.complete(0, 0.0);
+        assertArrayEquals(new Long[] {0L}, times.toArray(new Long[0]));
+    }
+
+    /**
+     * Frames with the same timestamp do not wait for each other.
+     */
+    @Test
+    public void testEqualTimestamps() {
+        instance.begin(0);
+        instance.begin(5);
+        instance.begin(5);
+
+        instance.complete(5, 1.0);
+        assertTrue(times.isEmpty());
+        instance.complete(0, 0.0);
+        assertEquals(2, times.size());
+        instance.complete(5, 1.0);
+        assertEquals(3, times.size());
+    }
+
+    /**
+     * Cancelled frames give no result and no longer hold back later ones.
+     */
+    @Test
+    public void testCancel() {
+        instance.begin(0);
+        instance.begin(10);
+        instance.begin(20);
+
+        instance.complete(20, 2.0);
+        instance.cancel(10);
+        assertTrue(times.isEmpty());
+        instance.cancel(0);
+        assertArrayEquals(new Long[] {20L}, times.toArray(new Long[0]));
+        assertEquals(0, instance.getWaiting());
+    }
+
+    /**
+     * Only registered frames can be completed.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testUnregisteredFrame() {
+        instance.complete(0, 0.0);
+    }
+}
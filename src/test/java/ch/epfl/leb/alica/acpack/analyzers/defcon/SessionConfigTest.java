@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SessionConfig class.
+ */
+public class SessionConfigTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    /**
+     * The default options are not encoded.
+     */
+    @Test
+    public void testDefaultOptions() {
+        assertNull(SessionConfig.encode(0, 0, true));
+    }
+
+    /**
+     * The thread counts are encoded as varint fields 2 and 5.
+     */
+    @Test
+    public void testThreads() {
+        assertArrayEquals(bytes(0x10, 0x02), SessionConfig.encode(2, 0, true));
+        assertArrayEquals(bytes(0x28, 0x03), SessionConfig.encode(0, 3, true));
+        // 300 takes two bytes
+        assertArrayEquals(bytes(0x10, 0xac, 0x02, 0x28, 0x01),
+                          SessionConfig.encode(300, 1, true));
+    }
+
+    /**
+     * Turning off the graph optimizations nests the optimization level L0
+     * in the optimizer options of the graph options.
+     */
+    @Test
+    public void testOptimizationLevel() {
+        byte[] expResult = bytes(
+                0x10, 0x04,             // intra_op_parallelism_threads: 4
+                0x28, 0x01,             // inter_op_parallelism_threads: 1
+                0x52, 0x0d,             // graph_options, 13 bytes
+                0x1a, 0x0b,             // optimizer_options, 11 bytes
+                0x18,                   // opt_level: L0 = -1
+                0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0x01);
+        assertArrayEquals(expResult, SessionConfig.encode(4, 1, false));
+    }
+}
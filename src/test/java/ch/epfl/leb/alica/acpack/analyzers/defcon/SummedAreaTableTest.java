@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SummedAreaTable class.
+ */
+public class SummedAreaTableTest {
+
+    private final int WIDTH = 23;
+    private final int HEIGHT = 17;
+    private float[] map;
+    private SummedAreaTable instance;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(42);
+        map = new float[WIDTH * HEIGHT];
+        for (int k = 0; k < map.length; k++) {
+            map[k] = random.nextFloat();
+        }
+        instance = new SummedAreaTable();
+        instance.build(map, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Sums the map over a box by brute force, clipped at the borders.
+     */
+    private double boxSum(int x, int y, int half) {
+        double sum = 0;
+        for (int j = Math.max(y - half, 0); j <= Math.min(y + half, HEIGHT - 1); j++) {
+            for (int i = Math.max(x - half, 0); i <= Math.min(x + half, WIDTH - 1); i++) {
+                sum += map[j * WIDTH + i];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The sum over the whole map is the total count.
+     */
+    @Test
+    public void testTotalSum() {
+        double expResult = 0;
+        for (float v : map) {
+            expResult += v;
+        }
+        double result = instance.sum(0, 0, WIDTH - 1, HEIGHT - 1);
+        assertEquals(expResult, result, 1e-9);
+    }
+
+    /**
+     * Local counts match brute-force box sums, including at the borders.
+     */
+    @Test
+    public void testLocalCounts() {
+        int boxSize = 7;
+        float[] counts = new float[WIDTH * HEIGHT];
+        double max = instance.maximumLocalCount(boxSize, counts);
+
+        double expMax = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double expResult = boxSum(x, y, boxSize / 2);
+                assertEquals(expResult, counts[y * WIDTH + x], 1e-4);
+                expMax = Math.max(expMax, expResult);
+            }
+        }
+        assertEquals(expMax, max, 1e-9);
+    }
+
+    /**
+     * Several box sizes computed in one pass match separate computations.
+     */
+    @Test
+    public void testMaximumLocalCounts() {
+        int[] boxSizes = {1, 7, 15, 31};
+        double[] result = new double[boxSizes.length];
+        instance.maximumLocalCounts(boxSizes, result);
+        for (int k = 0; k < boxSizes.length; k++) {
+            double expResult = instance.maximumLocalCount(boxSizes[k], null);
+            assertEquals(expResult, result[k], 1e-9);
+        }
+    }
+
+    /**
+     * The table can be rebuilt for a map stored at an offset.
+     */
+    @Test
+    public void testOffset() {
+        float[] stacked = new float[2 * map.length];
+        System.arraycopy(map, 0, stacked, map.length, map.length);
+        instance.build(stacked, map.length, WIDTH, HEIGHT);
+        assertEquals(boxSum(5, 5, 3), instance.sum(2, 2, 8, 8), 1e-9);
+    }
+
+    /**
+     * Ensures that the box size is positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBoxSize() {
+        instance.maximumLocalCount(0, null);
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne (EPFL), Switzerland
+ *
+ * This program is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.defcon;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the TiledPredictor class.
+ */
+public class TiledPredictorTest {
+
+    private TiledPredictor tiled;
+    private BatchPredictor whole;
+    private ImagePlus imp;
+    private ShortProcessor montage;
+    private final int TILE_SIZE = 32;
+    private final int MONTAGE_TILES = 5;
+    private final String PATH_TO_MODEL = "tf_density_count";
+    private final String STACK_FILE = "test_data.tif";
+
+    @Before
+    public void setUp() {
+        String stackFile = TiledPredictorTest.class.getClassLoader()
+                                                   .getResource(STACK_FILE)
+                                                   .getPath();
+        imp = IJ.openImage(stackFile);
+        montage = montage(imp, MONTAGE_TILES);
+
+        String modelPath = TiledPredictorTest.class.getClassLoader()
+                                                   .getResource(PATH_TO_MODEL)
+                                                   .getPath();
+
+        tiled = new TiledPredictor(TILE_SIZE, 2);
+        tiled.setup(modelPath);
+        whole = new BatchPredictor(1);
+        whole.setup(modelPath);
+    }
+
+    @After
+    public void tearDown() {
+        tiled.close();
+        whole.close();
+    }
+
+    /**
+     * Arranges the slices of a stack on a square grid, so that the frame is
+     * split into tiles that do not reach across the whole frame. The grid is
+     * cropped to a size that is not a multiple of 4, so that the outputs of
+     * the last tiles are padded.
+     */
+    private static ShortProcessor montage(ImagePlus imp, int n) {
+        int w = imp.getWidth();
+        int h = imp.getHeight();
+        ShortProcessor ip = new ShortProcessor(n * w - 2, n * h - 3);
+        for (int k = 0; k < n * n; k++) {
+            ImageProcessor slice = imp.getStack().getProcessor(k % imp.getStackSize() + 1);
+            int x0 = (k % n) * w;
+            int y0 = (k / n) * h;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    if (x0 + x < ip.getWidth() && y0 + y < ip.getHeight())
+                        ip.set(x0 + x, y0 + y, slice.get(x, y));
+                }
+            }
+        }
+        return ip;
+    }
+
+    /**
+     * The stitched count matches the count of the whole frame.
+     */
+    @Test
+    public void testCountMatchesWholeFrame() throws Exception {
+        tiled.predict(montage);
+        whole.predict(montage);
+
+        double expResult = whole.getCount();
+        double result = tiled.getCount();
+        assertEquals(expResult, result, 1e-3 * Math.abs(expResult));
+    }
+
+    /**
+     * The stitched density map matches the density map of the whole frame
+     * pixel by pixel, including the seams between tiles and the tiles that
+     * do not start at the origin.
+     */
+    @Test
+    public void testDensityMapMatchesWholeFrame() throws Exception {
+        // the tile whose core starts at (2, 2) tile sizes is cut from the
+        // frame on every side
+        int margin = TiledPredictor.MARGIN;
+        assertTrue(2 * TILE_SIZE > margin);
+        assertTrue(3 * TILE_SIZE + margin < montage.getWidth());
+        assertTrue(3 * TILE_SIZE + margin < montage.getHeight());
+
+        tiled.predict(montage);
+        whole.predict(montage);
+
+        float[] expResult = (float[]) whole.getDensityMap().getPixels();
+        float[] result = (float[]) tiled.getDensityMap().getPixels();
+        assertArrayEquals(expResult, result, 1e-4f);
+    }
+
+    /**
+     * The stitched density map has the size of the frame.
+     */
+    @Test
+    public void testDensityMapSize() throws Exception {
+        tiled.predict(montage);
+        FloatProcessor map = tiled.getDensityMap();
+        assertEquals(montage.getWidth(), map.getWidth());
+        assertEquals(montage.getHeight(), map.getHeight());
+    }
+
+    /**
+     * The tile size is rounded up to the network's downsampling factor.
+     */
+    @Test
+    public void testTileSizeAlignment() {
+        assertEquals(64, new TiledPredictor(61, 1).getTileSize());
+        assertEquals(64, new TiledPredictor(64, 1).getTileSize());
+    }
+
+    /**
+     * Ensures that the tile size is positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTileSize() {
+        new TiledPredictor(0, 1);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the AcquisitionImageSource class.
+ */
+public class AcquisitionImageSourceTest {
+
+    private File directory;
+    private MyDialogs dg;
+    private AcquisitionImageSource source;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("acquisition").toFile();
+        dg = new MyDialogs();
+        dg.imagedir = directory.getPath();
+        dg.prefix = "img_";
+        dg.sufix = ".tif";
+        dg.nimchars = 4;
+        dg.nimstart = 1;
+        dg.waittime = 200;
+    }
+
+    @After
+    public void tearDown() {
+        if (source != null)
+            source.close();
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    private void write(int frame, int bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(
+                new File(directory, source.getFileName(frame)), true);
+        try {
+            out.write(new byte[bytes]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The newest frame file is only handed out once its size is stable.
+     */
+    @Test
+    public void testGrowingFile() throws Exception {
+        source = new AcquisitionImageSource(dg, 4);
+        assertEquals("img_0001.tif", source.getFileName(1));
+        for (int n = 0; n < 20; n++) {
+            write(1, 100);
+            assertNull(source.next(1, 0));
+            Thread.sleep(AcquisitionImageSource.STABLE_SIZE_MS / 5);
+        }
+        AcquisitionImageSource.Frame f = source.next(1, 5000);
+        assertNotNull(f);
+        assertEquals(1, f.number);
+    }
+
+    /**
+     * A missing frame is skipped once a later frame exists.
+     */
+    @Test
+    public void testSkipMissingFrame() throws Exception {
+        source = new AcquisitionImageSource(dg, 4);
+        write(1, 100);
+        write(3, 100);
+        assertEquals(1, source.next(1, 5000).number);
+        AcquisitionImageSource.Frame f = source.next(2, 5000);
+        assertNotNull(f);
+        assertEquals(3, f.number);
+    }
+
+    /**
+     * Frames before the requested one are discarded.
+     */
+    @Test
+    public void testNextDiscardsEarlierFrames() throws Exception {
+        source = new AcquisitionImageSource(dg, 4);
+        for (int frame = 1; frame <= 4; frame++) {
+            write(frame, 100);
+        }
+        assertEquals(3, source.next(3, 5000).number);
+        assertEquals(4, source.next(1, 5000).number);
+    }
+
+    /**
+     * A frame that was given back is returned again, unless a later frame
+     * is requested.
+     */
+    @Test
+    public void testUnread() throws Exception {
+        source = new AcquisitionImageSource(dg, 4);
+        write(1, 100);
+        write(2, 100);
+        write(3, 100);
+        AcquisitionImageSource.Frame f = source.next(1, 5000);
+        source.unread(f);
+        assertSame(f, source.next(1, 0));
+        source.unread(f);
+        assertEquals(2, source.next(2, 5000).number);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the CalibrationBuilder class.
+ */
+public class CalibrationBuilderTest {
+
+    private static final int SIZE = 31;
+    private static final int SLICES = 41;
+    private static final double ZSTEP = 20;
+    // focal plane between slices 17 and 18
+    private static final double ZFOCUS = 17.4 * ZSTEP;
+
+    private File file;
+    private QuickPalmParameters params;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("calibration", ".csv");
+        params = new QuickPalmParameters();
+        params.threads = 4;
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Renders an astigmatic bead, wider than high above the focal plane.
+     */
+    private static ShortProcessor bead(double z) {
+        ShortProcessor ip = new ShortProcessor(SIZE, SIZE);
+        drawBead(ip, 0, z, false);
+        return ip;
+    }
+
+    /**
+     * Draws a bead into a SIZE x SIZE square starting at x0. A skewed bead
+     * has a faint satellite far below it, so that most of its intensity
+     * lies above its centroid.
+     */
+    private static void drawBead(ShortProcessor ip, int x0, double z, boolean skewed) {
+        double d = Math.tanh((z - ZFOCUS) / 300);
+        double sx = 1.8 + 0.6 * d;
+        double sy = 1.8 - 0.6 * d;
+        double c = (SIZE - 1) / 2.0;
+        double xc = skewed ? c + 0.5 : c;
+        double yc = skewed ? 4.5 : c;
+        for (int i = 0; i < SIZE; i++) {
+            for (int j = 0; j < SIZE; j++) {
+                double v = 100 + 2000 * gauss(i - xc, j - yc, sx, sy);
+                if (skewed)
+                    v += 600 * gauss(i - xc, j - yc - 20, sx, sy);
+                ip.set(x0 + i, j, (int) Math.round(v));
+            }
+        }
+    }
+
+    private static double gauss(double dx, double dy, double sx, double sy) {
+        return Math.exp(-0.5 * (dx * dx / (sx * sx) + dy * dy / (sy * sy)));
+    }
+
+    private static ImageStack zscan() {
+        ImageStack stack = new ImageStack(SIZE, SIZE);
+        for (int s = 0; s < SLICES; s++) {
+            stack.addSlice("z" + s, bead(s * ZSTEP));
+        }
+        return stack;
+    }
+
+    /**
+     * A calibration built from a z-scan, saved and loaded for 3D analysis
+     * gives back the z positions of the bead relative to the focal plane.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        CalibrationBuilder builder = new CalibrationBuilder(params, ZSTEP, 1);
+        ResultsTable table = builder.build(zscan(), null);
+        CalibrationBuilder.save(table, file.getPath());
+
+        MyFunctions f = new MyFunctions(false);
+        f.loadCalibration(file.getPath());
+
+        // the focal plane is interpolated between slices
+        assertEquals(0, f.getZ(0), 5);
+
+        MyDialogs dg = new MyDialogs();
+        dg.setParameters(params);
+        for (double z = ZFOCUS - 150; z <= ZFOCUS + 150; z += 25) {
+            double[] p = f.getParticleForCalibration(bead(z), dg,
+                    0, SIZE - 1, 0, SIZE - 1);
+            // pixels entering the local threshold make the width steppy
+            assertEquals(z - ZFOCUS, f.getZ(p[7]), ZSTEP);
+        }
+        // far outside of the calibrated range
+        assertEquals(9999, f.getZ(100), 0);
+    }
+
+    /**
+     * Asymmetric bead images are left out of the calibration.
+     */
+    @Test
+    public void testAsymmetricBead() {
+        MyDialogs dg = new MyDialogs();
+        dg.setParameters(params);
+        ShortProcessor skewed = new ShortProcessor(SIZE, SIZE);
+        drawBead(skewed, 0, ZFOCUS, true);
+        double[] p = new MyFunctions(false).getParticleForCalibration(
+                skewed, dg, 0, SIZE - 1, 0, SIZE - 1);
+        assertTrue(p[8] < params.symmetry);
+
+        ImageStack stack = new ImageStack(2 * SIZE, SIZE);
+        for (int s = 0; s < SLICES; s++) {
+            ShortProcessor ip = new ShortProcessor(2 * SIZE, SIZE);
+            drawBead(ip, 0, s * ZSTEP, false);
+            drawBead(ip, SIZE, s * ZSTEP, true);
+            stack.addSlice("z" + s, ip);
+        }
+        Roi[] beads = {new Roi(0, 0, SIZE, SIZE), new Roi(SIZE, 0, SIZE, SIZE)};
+        ResultsTable table = new CalibrationBuilder(params, ZSTEP, 1).build(stack, beads);
+        for (int row = 0; row < table.getCounter(); row++) {
+            assertEquals(1, table.getValue(CalibrationBuilder.COLUMNS[3], row), 0.0);
+        }
+    }
+
+    /**
+     * Beads without astigmatism cannot be calibrated.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFlatCurve() {
+        ImageStack stack = new ImageStack(SIZE, SIZE);
+        for (int s = 0; s < SLICES; s++) {
+            stack.addSlice("z" + s, bead(ZFOCUS));
+        }
+        new CalibrationBuilder(params, ZSTEP, 1).build(stack, null);
+    }
+}
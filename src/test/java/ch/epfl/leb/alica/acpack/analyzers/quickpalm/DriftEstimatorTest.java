@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.measure.ResultsTable;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the DriftEstimator class.
+ */
+public class DriftEstimatorTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int WINDOW = 3;
+    private static final double PIXELSIZE = 100.0;
+
+    private ResultsTable dtable;
+    private DriftEstimator drift;
+
+    @Before
+    public void setUp() {
+        dtable = new ResultsTable();
+        drift = new DriftEstimator(WIDTH, HEIGHT, WINDOW, PIXELSIZE, dtable);
+    }
+
+    @After
+    public void tearDown() {
+        drift.dispose();
+    }
+
+    /**
+     * Renders one window of localizations scattered around fixed emitters,
+     * shifted by the given drift.
+     */
+    private void addWindow(double[][] emitters, double dx, double dy, Random random) {
+        for (int frame = 0; frame < WINDOW; frame++) {
+            for (double[] e : emitters) {
+                for (int n = 0; n < 10; n++) {
+                    drift.add(e[0] + dx + 0.3 * random.nextGaussian(),
+                              e[1] + dy + 0.3 * random.nextGaussian());
+                }
+            }
+            drift.endFrame();
+        }
+    }
+
+    private void waitForWindows(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            synchronized (dtable) {
+                if (dtable.getCounter() >= n)
+                    return;
+            }
+            assertTrue("drift table was not filled in time",
+                       System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A sub-pixel shift between two windows is recovered from the
+     * cross-correlation and written to the drift table.
+     */
+    @Test
+    public void testSubPixelShift() throws InterruptedException {
+        Random random = new Random(42);
+        double[][] emitters = new double[40][];
+        for (int i = 0; i < emitters.length; i++) {
+            emitters[i] = new double[]{8 + (WIDTH - 16) * random.nextDouble(),
+                                       8 + (HEIGHT - 16) * random.nextDouble()};
+        }
+
+        addWindow(emitters, 0, 0, random);
+        waitForWindows(1);
+        addWindow(emitters, 1.3, -0.7, random);
+        waitForWindows(2);
+
+        assertEquals(1.3, drift.getDriftX(), 0.15);
+        assertEquals(-0.7, drift.getDriftY(), 0.15);
+
+        synchronized (dtable) {
+            assertEquals(2, dtable.getCounter());
+            // the first window is the reference
+            assertEquals(1, dtable.getValue("Window", 0), 0.0);
+            assertEquals(WINDOW, dtable.getValue("Last Frame", 0), 0.0);
+            assertEquals(0, dtable.getValue("X Drift (px)", 0), 0.0);
+            assertEquals(0, dtable.getValue("Y Drift (px)", 0), 0.0);
+
+            assertEquals(2, dtable.getValue("Window", 1), 0.0);
+            assertEquals(2 * WINDOW, dtable.getValue("Last Frame", 1), 0.0);
+            assertEquals(drift.getDriftX(), dtable.getValue("X Drift (px)", 1), 1e-9);
+            assertEquals(drift.getDriftY(), dtable.getValue("Y Drift (px)", 1), 1e-9);
+            assertEquals(drift.getDriftX() * PIXELSIZE,
+                         dtable.getValue("X Drift (nm)", 1), 1e-6);
+            assertEquals(drift.getDriftY() * PIXELSIZE,
+                         dtable.getValue("Y Drift (nm)", 1), 1e-6);
+        }
+    }
+
+    /**
+     * Localizations outside of the image are ignored, and windows are only
+     * closed after the given number of frames.
+     */
+    @Test
+    public void testWindowBoundaries() throws InterruptedException {
+        drift.add(-5, 10);
+        drift.add(10, HEIGHT + 100);
+        for (int frame = 0; frame < WINDOW - 1; frame++) {
+            drift.endFrame();
+        }
+        Thread.sleep(50);
+        synchronized (dtable) {
+            assertEquals(0, dtable.getCounter());
+        }
+        drift.endFrame();
+        waitForWindows(1);
+        assertEquals(0, drift.getDriftX(), 0.0);
+        assertEquals(0, drift.getDriftY(), 0.0);
+    }
+}
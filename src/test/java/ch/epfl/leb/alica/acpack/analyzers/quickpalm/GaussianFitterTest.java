@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.process.ShortProcessor;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the GaussianFitter class.
+ */
+public class GaussianFitterTest {
+
+    private static double[] spot(int size, double x0, double y0, double s,
+                                 double amplitude, double background) {
+        double[] data = new double[size * size];
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                double r2 = (i - x0) * (i - x0) + (j - y0) * (j - y0);
+                data[j * size + i] = amplitude * Math.exp(-0.5 * r2 / (s * s))
+                        + background;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * A noise-free spot is recovered from a centroid-like starting point.
+     */
+    @Test
+    public void testLeastSquares() {
+        double[] data = spot(9, 4.3, 3.6, 1.3, 500, 20);
+        GaussianFitter fitter = new GaussianFitter(GaussianFitter.LEAST_SQUARES, 50);
+        assertTrue(fitter.fit(data, 9, 9, 4, 4, 1));
+        assertEquals(4.3, fitter.getX(), 1e-3);
+        assertEquals(3.6, fitter.getY(), 1e-3);
+        assertEquals(1.3, fitter.getSigma(), 1e-3);
+        assertEquals(20, fitter.getBackground(), 1e-2);
+    }
+
+    /**
+     * The Poisson fit finds the same spot.
+     */
+    @Test
+    public void testPoissonMLE() {
+        double[] data = spot(9, 3.8, 4.7, 1.1, 200, 5);
+        GaussianFitter fitter = new GaussianFitter(GaussianFitter.POISSON_MLE, 50);
+        assertTrue(fitter.fit(data, 9, 9, 4, 4, 1.5));
+        assertEquals(3.8, fitter.getX(), 1e-3);
+        assertEquals(4.7, fitter.getY(), 1e-3);
+        assertEquals(200, fitter.getAmplitude(), 0.5);
+    }
+
+    /**
+     * The iteration cap is respected.
+     */
+    @Test
+    public void testIterationCap() {
+        double[] data = spot(9, 4.3, 3.6, 1.3, 500, 20);
+        GaussianFitter fitter = new GaussianFitter(GaussianFitter.LEAST_SQUARES, 2);
+        fitter.fit(data, 9, 9, 2, 6, 3);
+        assertTrue(fitter.getIterations() <= 2);
+    }
+
+    /**
+     * Raw camera counts are converted to photons before fitting, so the
+     * amplitude and the background are photon numbers.
+     */
+    @Test
+    public void testCameraCounts() {
+        // 300 photons peak on 10 photons background, 2 counts per photon
+        // and an offset of 100 counts
+        double[] data = spot(11, 5.2, 4.6, 1.2, 300, 10);
+        short[] counts = new short[data.length];
+        for (int k = 0; k < data.length; k++) {
+            counts[k] = (short) Math.round(100 + 2 * data[k]);
+        }
+        ShortProcessor ip = new ShortProcessor(11, 11, counts, null);
+        GaussianFitter fitter = new GaussianFitter(GaussianFitter.POISSON_MLE, 50);
+        assertTrue(fitter.fit(ip, 1, 9, 1, 9, 5, 5, 1.5, 100, 2));
+        assertEquals(5.2, fitter.getX(), 1e-2);
+        assertEquals(4.6, fitter.getY(), 1e-2);
+        assertEquals(300, fitter.getAmplitude(), 2);
+        assertEquals(10, fitter.getBackground(), 0.5);
+    }
+}
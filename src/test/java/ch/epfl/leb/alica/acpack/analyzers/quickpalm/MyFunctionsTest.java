@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import ij.process.ShortProcessor;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the MyFunctions class.
+ */
+public class MyFunctionsTest {
+
+    private MyFunctions f;
+    private double[] z;
+    private double[] wmh;
+
+    @Before
+    public void setUp() {
+        f = new MyFunctions(false);
+        // decreasing astigmatism curve, 10 nm steps
+        int n = 101;
+        z = new double[n];
+        wmh = new double[n];
+        for (int i = 0; i < n; i++) {
+            z[i] = -500 + 10 * i;
+            wmh[i] = -2.0 * Math.tanh(z[i] / 400.0);
+        }
+    }
+
+    /**
+     * The binary search finds the same index as the linear search inside the
+     * calibrated range.
+     */
+    @Test
+    public void testGetClosestMonotone() {
+        for (double v = -2.5; v <= 2.5; v += 0.013) {
+            int expResult = f.getClosest(v, wmh, wmh.length / 2);
+            int result = MyFunctions.getClosestMonotone(v, wmh, false);
+            // the linear search does not reach the first and last entries
+            if (result > 1 && result < wmh.length - 2) {
+                assertEquals(expResult, result);
+            }
+        }
+    }
+
+    /**
+     * Z positions are recovered by interpolating the calibration curve.
+     */
+    @Test
+    public void testGetZ() {
+        f.setCalibration(z, wmh);
+        assertEquals(0.0, f.getZ(0.0), 1.0);
+        assertEquals(120.0, f.getZ(-2.0 * Math.tanh(120.0 / 400.0)), 1.0);
+        assertEquals(9999, f.getZ(10.0), 0.0);
+        assertEquals(9999, f.getZ(-10.0), 0.0);
+    }
+
+    /**
+     * Non-monotone calibration curves are rejected up front.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonMonotoneCalibration() {
+        wmh[50] = wmh[48];
+        f.setCalibration(z, wmh);
+    }
+
+    /**
+     * Calibration curves must have increasing z positions.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedCalibration() {
+        z[10] = z[9];
+        MyFunctions.validateCalibration(z, wmh);
+    }
+
+    /**
+     * Without background the precision is that of an ideal detector with
+     * pixelation, and it degrades with background.
+     */
+    @Test
+    public void testGetPrecision() {
+        double sa2 = 150.0 * 150.0 + 100.0 * 100.0 / 12;
+        assertEquals(Math.sqrt(sa2 / 1000 * 16 / 9),
+                     MyFunctions.getPrecision(150, 100, 1000, 0), 1e-9);
+        assertTrue(MyFunctions.getPrecision(150, 100, 1000, 10)
+                > MyFunctions.getPrecision(150, 100, 1000, 0));
+        assertTrue(Double.isNaN(MyFunctions.getPrecision(150, 100, 0, 0)));
+    }
+
+    /**
+     * Photons and background are measured on raw counts, with the camera
+     * offset and gain removed.
+     */
+    @Test
+    public void testMeasurePhotons() {
+        // 5x5 region: 20 photons background, 500 photons in the center,
+        // 2 counts per photon and an offset of 100 counts
+        ShortProcessor raw = new ShortProcessor(7, 7);
+        for (int i = 0; i < 7; i++) {
+            for (int j = 0; j < 7; j++) {
+                raw.set(i, j, 100 + 2 * 20);
+            }
+        }
+        raw.set(3, 3, 100 + 2 * (20 + 300));
+        raw.set(2, 3, 100 + 2 * (20 + 100));
+        raw.set(4, 3, 100 + 2 * (20 + 100));
+        double[] counts = MyFunctions.measurePhotons(raw, 1, 5, 1, 5, 100, 2);
+        assertEquals(500, counts[0], 1e-9);
+        assertEquals(20, counts[1], 1e-9);
+    }
+}
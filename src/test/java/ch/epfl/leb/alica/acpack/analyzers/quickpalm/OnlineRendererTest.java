@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the OnlineRenderer class.
+ */
+public class OnlineRendererTest {
+
+    private static final int WINDOW = 3;
+
+    private OnlineRenderer renderer;
+
+    @After
+    public void tearDown() {
+        renderer.dispose();
+    }
+
+    /**
+     * Adds frame + 1 localizations at the position of a frame, so that
+     * the frames of the window can be told apart; many localizations
+     * overflow the initial bin list of the frame.
+     */
+    private void addFrame(int frame) {
+        for (int n = 0; n <= frame; n++) {
+            renderer.add(frame + 0.5, 2.5);
+            // the bin of a position shared by all frames
+            renderer.add(0.5, 0.5);
+        }
+        renderer.endFrame();
+    }
+
+    /**
+     * Only the localizations of the last frames are accumulated.
+     */
+    @Test
+    public void testSlidingWindow() {
+        renderer = new OnlineRenderer(100, 10, 1.0, WINDOW, 1);
+        int frames = 70;
+        for (int frame = 0; frame < frames; frame++) {
+            addFrame(frame);
+        }
+        int expected_total = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            int expected = frame >= frames - WINDOW ? frame + 1 : 0;
+            assertEquals(expected, renderer.getCount(frame + 0.5, 2.5));
+            expected_total += expected;
+        }
+        assertEquals(expected_total, renderer.getCount(0.5, 0.5));
+
+        // the frame being analyzed is shown in addition to the window
+        renderer.add(99.5, 2.5);
+        assertEquals(1, renderer.getCount(99.5, 2.5));
+        assertEquals(frames, renderer.getCount(frames - 1 + 0.5, 2.5));
+    }
+
+    /**
+     * Without a window all localizations are accumulated.
+     */
+    @Test
+    public void testAccumulateAll() {
+        renderer = new OnlineRenderer(50, 10, 2.0, 0, 5);
+        int frames = 20;
+        for (int frame = 0; frame < frames; frame++) {
+            addFrame(frame);
+        }
+        for (int frame = 0; frame < frames; frame++) {
+            assertEquals(frame + 1, renderer.getCount(frame + 0.5, 2.5));
+        }
+        assertEquals(frames * (frames + 1) / 2, renderer.getCount(0.5, 0.5));
+        // positions outside of the image are ignored
+        renderer.add(-1, 2.5);
+        renderer.add(50, 2.5);
+        assertEquals(0, renderer.getCount(-1, 2.5));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ParticleStreamWriter class.
+ */
+public class ParticleStreamWriterTest {
+
+    private final String[] COLUMNS = {"X (px)", "Y (px)", "Frame Number"};
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("particles", ".qpb");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * All records written before close() can be read back in order.
+     */
+    @Test
+    public void testWriteAndRead() throws IOException {
+        int n = 10000;
+        ParticleStreamWriter writer = new ParticleStreamWriter(
+                file.getPath(), COLUMNS, 1024);
+        for (int i = 0; i < n; i++) {
+            while (!writer.offer(new double[]{i, 2 * i, 3})) {
+                Thread.yield();
+            }
+        }
+        writer.close();
+
+        float[][] records = ParticleStreamWriter.readRecords(file.getPath());
+        assertEquals(n, records.length);
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, records[i][0], 0.0);
+            assertEquals(2 * i, records[i][1], 0.0);
+            assertEquals(3, records[i][2], 0.0);
+        }
+        String[] cols = ParticleStreamWriter.readColumns(file.getPath());
+        assertEquals(COLUMNS.length, cols.length);
+        assertEquals(COLUMNS[2], cols[2]);
+    }
+
+    /**
+     * Records are dropped instead of blocking once the writer is closed.
+     */
+    @Test
+    public void testOfferAfterClose() throws IOException {
+        ParticleStreamWriter writer = new ParticleStreamWriter(
+                file.getPath(), COLUMNS, 16);
+        writer.close();
+        assertFalse(writer.offer(new double[]{1, 2, 3}));
+        assertEquals(1, writer.getDroppedCount());
+        assertEquals(0, ParticleStreamWriter.readRecords(file.getPath()).length);
+    }
+
+    /**
+     * Every record offered while the writer is being closed is either
+     * written or counted as dropped.
+     */
+    @Test
+    public void testOfferRacingClose() throws Exception {
+        final ParticleStreamWriter writer = new ParticleStreamWriter(
+                file.getPath(), COLUMNS, 1 << 16);
+        final int nthreads = 4;
+        final long[] offered = new long[nthreads];
+        Thread[] threads = new Thread[nthreads];
+        for (int t = 0; t < nthreads; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        writer.offer(new double[]{i, id, 3});
+                        offered[id]++;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        Thread.sleep(5);
+        writer.close();
+        long total = 0;
+        for (int t = 0; t < nthreads; t++) {
+            threads[t].join();
+            total += offered[t];
+        }
+
+        int written = ParticleStreamWriter.readRecords(file.getPath()).length;
+        assertEquals(total, written + writer.getDroppedCount());
+    }
+
+    /**
+     * Files that are not particle streams are rejected.
+     */
+    @Test(expected = IOException.class)
+    public void testReadInvalidFile() throws IOException {
+        ParticleStreamWriter.readRecords(file.getPath());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the QuickPalmParameters class.
+ */
+public class QuickPalmParametersTest {
+
+    /**
+     * Missing keys keep their defaults.
+     */
+    @Test
+    public void testFromProperties() {
+        Properties props = new Properties();
+        props.setProperty("snr", "8");
+        props.setProperty("pixelsize", " 160.5 ");
+        props.setProperty("smartsnr", "true");
+
+        QuickPalmParameters p = QuickPalmParameters.fromProperties(props);
+        assertEquals(8, p.snr);
+        assertEquals(160.5, p.pixelsize, 0.0);
+        assertTrue(p.smartsnr);
+        assertEquals(new QuickPalmParameters().fwhm, p.fwhm, 0.0);
+    }
+
+    /**
+     * Parameters survive a round trip through properties.
+     */
+    @Test
+    public void testRoundTrip() {
+        QuickPalmParameters p = new QuickPalmParameters();
+        p.threads = 3;
+        p.pthrsh = 0.35;
+        p.pattern = "frameNNNN.tif";
+        QuickPalmParameters q = QuickPalmParameters.fromProperties(p.toProperties());
+        assertEquals(p.threads, q.threads);
+        assertEquals(p.pthrsh, q.pthrsh, 0.0);
+        assertEquals(p.pattern, q.pattern);
+    }
+
+    /**
+     * Unparseable values are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidNumber() {
+        Properties props = new Properties();
+        props.setProperty("maxpart", "many");
+        QuickPalmParameters.fromProperties(props);
+    }
+
+    /**
+     * Streaming requires a file to stream into.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidateStream() {
+        QuickPalmParameters p = new QuickPalmParameters();
+        p.stream = true;
+        p.validate();
+    }
+}
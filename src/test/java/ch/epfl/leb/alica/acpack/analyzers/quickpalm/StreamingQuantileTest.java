@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.analyzers.quickpalm;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the StreamingQuantile class.
+ */
+public class StreamingQuantileTest {
+
+    /**
+     * The median of a few values is exact.
+     */
+    @Test
+    public void testFewValues() {
+        StreamingQuantile q = new StreamingQuantile(0.5);
+        assertTrue(Double.isNaN(q.getQuantile()));
+        q.add(3);
+        q.add(1);
+        q.add(2);
+        assertEquals(2, q.getQuantile(), 0.0);
+    }
+
+    /**
+     * The median of many values is close to the true median, also after a
+     * reset.
+     */
+    @Test
+    public void testMedian() {
+        StreamingQuantile q = new StreamingQuantile(0.5);
+        Random rnd = new Random(42);
+        for (int round = 0; round < 2; round++) {
+            q.reset();
+            for (int i = 0; i < 10000; i++) {
+                q.add(100 + 10 * rnd.nextGaussian());
+            }
+            assertEquals(10000, q.getCount());
+            assertEquals(100, q.getQuantile(), 0.5);
+        }
+    }
+
+    /**
+     * Other quantiles of a uniform distribution are tracked as well.
+     */
+    @Test
+    public void testQuantile() {
+        StreamingQuantile q = new StreamingQuantile(0.9);
+        Random rnd = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            q.add(rnd.nextDouble());
+        }
+        assertEquals(0.9, q.getQuantile(), 0.02);
+    }
+}
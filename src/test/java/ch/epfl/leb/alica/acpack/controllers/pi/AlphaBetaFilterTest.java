@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.controllers.pi;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the AlphaBetaFilter class.
+ */
+public class AlphaBetaFilterTest {
+
+    /**
+     * A steady signal is smoothed, and the noise variance is estimated.
+     */
+    @Test
+    public void testSteadySignal() {
+        Random random = new Random(42);
+        AlphaBetaFilter filter = new AlphaBetaFilter();
+        double squared_error = 0.0;
+        int count = 0;
+        for (int n = 0; n < 5000; n++) {
+            filter.update(50.0 + 5.0 * random.nextGaussian(), 1.0);
+            if (n >= 1000) {
+                squared_error += Math.pow(filter.getEstimate() - 50.0, 2);
+                count++;
+            }
+        }
+        assertTrue(Math.sqrt(squared_error / count) < 0.5 * 5.0);
+        assertEquals(25.0, filter.getMeasurementNoise(), 0.2 * 25.0);
+        assertTrue(filter.getAlpha() < 0.3);
+    }
+
+    /**
+     * A ramp is followed without lag, and its slope is estimated.
+     */
+    @Test
+    public void testRamp() {
+        Random random = new Random(42);
+        AlphaBetaFilter filter = new AlphaBetaFilter();
+        double error = 0.0;
+        double slope = 0.0;
+        int count = 0;
+        for (int n = 0; n < 5000; n++) {
+            filter.update(0.5 * n + 5.0 * random.nextGaussian(), 1.0);
+            if (n >= 1000) {
+                error += filter.getEstimate() - 0.5 * n;
+                slope += filter.getDerivative();
+                count++;
+            }
+        }
+        assertEquals(0.0, error / count, 0.2);
+        assertEquals(0.5, slope / count, 0.01);
+        assertEquals(filter.getEstimate() + 2 * filter.getDerivative(),
+                filter.getPrediction(2.0), 1e-12);
+    }
+
+    /**
+     * Resetting forgets the signal.
+     */
+    @Test
+    public void testReset() {
+        AlphaBetaFilter filter = new AlphaBetaFilter();
+        assertTrue(Double.isNaN(filter.getEstimate()));
+        filter.update(10.0, 1.0);
+        filter.update(12.0, 1.0);
+        assertEquals(12.0, filter.getEstimate(), 1e-12);
+        assertEquals(2.0, filter.getDerivative(), 1e-12);
+
+        filter.reset();
+        assertTrue(Double.isNaN(filter.getEstimate()));
+        filter.update(3.0, 1.0);
+        assertEquals(3.0, filter.getEstimate(), 1e-12);
+        assertEquals(0.0, filter.getDerivative(), 0.0);
+    }
+
+    /**
+     * Ensures that the forgetting factor is checked.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidForgetting() {
+        new AlphaBetaFilter(0.0);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.controllers.pi;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PI_controller class.
+ */
+public class PI_controllerTest {
+
+    /**
+     * A PI controller whose clock is advanced by the test.
+     */
+    private static class ClockedController extends PI_controller {
+        long time_ns = 0;
+
+        ClockedController(double P, double I_per_second, double sampling_period_s) {
+            super(P, I_per_second, 100.0, sampling_period_s, true);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return time_ns;
+        }
+    }
+
+    /**
+     * Closes the loop around a first-order plant with a gain of 10 and a
+     * time constant of 1 s, ticking every tick_s seconds.
+     *
+     * @return settling time to within 2% of the setpoint in seconds, and
+     * the overshoot relative to the setpoint
+     */
+    private static double[] stepResponse(ClockedController controller, double tick_s) {
+        final double gain = 10.0;
+        final double tau = 1.0;
+        final double setpoint = 50.0;
+        controller.setSetpoint(setpoint);
+        double signal = 0.0;
+        double peak = 0.0;
+        double settled = 0.0;
+        int ticks = (int) Math.round(20.0 / tick_s);
+        for (int n = 1; n <= ticks; n++) {
+            controller.time_ns += (long) (tick_s * 1e9);
+            double output = controller.nextValue(signal);
+            // exact response of the plant over one tick
+            double target = gain * output;
+            signal = target + (signal - target) * Math.exp(-tick_s / tau);
+            peak = Math.max(peak, signal);
+            if (Math.abs(signal - setpoint) > 0.02 * setpoint) {
+                settled = n * tick_s;
+            }
+        }
+        return new double[] {settled, (peak - setpoint) / setpoint};
+    }
+
+    /**
+     * Settling time and overshoot do not depend on the actual tick rate.
+     */
+    @Test
+    public void testVariableTimeStep() {
+        double[] nominal = stepResponse(new ClockedController(0.02, 0.1, 0.1), 0.1);
+        double[] fast = stepResponse(new ClockedController(0.02, 0.1, 0.1), 0.05);
+        double[] slow = stepResponse(new ClockedController(0.02, 0.1, 0.1), 0.2);
+
+        assertEquals(nominal[0], fast[0], 0.15 * nominal[0]);
+        assertEquals(nominal[0], slow[0], 0.15 * nominal[0]);
+        assertEquals(nominal[1], fast[1], 0.02);
+        assertEquals(nominal[1], slow[1], 0.02);
+    }
+
+    /**
+     * Long gaps between valid samples are clamped.
+     */
+    @Test
+    public void testClampedTimeStep() {
+        ClockedController controller = new ClockedController(0.0, 1.0, 0.1);
+        controller.setSetpoint(1.0);
+        controller.nextValue(0.0);
+        assertEquals(0.1, controller.getCurrentOutput(), 1e-12);
+
+        // NaN ticks are skipped; the next sample comes 10 periods later
+        controller.time_ns += 500000000L;
+        controller.nextValue(Double.NaN);
+        controller.time_ns += 500000000L;
+        controller.nextValue(0.0);
+        double expResult = 0.1 + 0.1 * PI_controller.MAX_TIME_STEP_FACTOR;
+        assertEquals(expResult, controller.getCurrentOutput(), 1e-12);
+    }
+
+    /**
+     * Frame timestamps set the time step.
+     */
+    @Test
+    public void testTimestamps() {
+        PI_controller controller = new PI_controller(0.0, 1.0, 100.0, 0.1);
+        controller.setSetpoint(1.0);
+        controller.nextValue(0.0, 1000);
+        controller.nextValue(0.0, 1050);
+        assertEquals(0.15, controller.getCurrentOutput(), 1e-12);
+    }
+    
+    /**
+     * An out-of-order timestamp adds nothing and does not move the time of
+     * the last sample back.
+     */
+    @Test
+    public void testOutOfOrderTimestamp() {
+        PI_controller controller = new PI_controller(0.0, 1.0, 100.0, 0.1);
+        controller.setSetpoint(1.0);
+        controller.nextValue(0.0, 1000);
+        controller.nextValue(0.0, 1100);
+        assertEquals(0.2, controller.getCurrentOutput(), 1e-12);
+        controller.nextValue(0.0, 1050);
+        assertEquals(0.2, controller.getCurrentOutput(), 1e-12);
+        controller.nextValue(0.0, 1150);
+        assertEquals(0.25, controller.getCurrentOutput(), 1e-12);
+    }
+    
+    /**
+     * Timestamps and the clock are not compared with each other; the first
+     * sample after switching integrates over one sampling period.
+     */
+    @Test
+    public void testTimestampsAndClock() {
+        ClockedController controller = new ClockedController(0.0, 1.0, 0.1);
+        controller.setSetpoint(1.0);
+        controller.time_ns = 5000000000L;
+        controller.nextValue(0.0);
+        assertEquals(0.1, controller.getCurrentOutput(), 1e-12);
+        controller.nextValue(0.0, 1000);
+        assertEquals(0.2, controller.getCurrentOutput(), 1e-12);
+        controller.time_ns += 50000000L;
+        controller.nextValue(0.0);
+        assertEquals(0.3, controller.getCurrentOutput(), 1e-12);
+        controller.time_ns += 50000000L;
+        controller.nextValue(0.0);
+        assertEquals(0.35, controller.getCurrentOutput(), 1e-12);
+    }
+
+    /**
+     * Closes the loop around the same plant as stepResponse, with a shot
+     * noise of standard deviation sigma on the measured values.
+     *
+     * @return standard deviation of the output once settled, and the time
+     * to reach 90% of the setpoint in seconds
+     */
+    private static double[] noisyResponse(PI_controller controller, double tick_s, double sigma) {
+        final Random random = new Random(11);
+        final double setpoint = 50.0;
+        controller.setSetpoint(setpoint);
+        double signal = 0.0;
+        double rise = Double.NaN;
+        double sum = 0.0;
+        double sum_squares = 0.0;
+        int count = 0;
+        int ticks = (int) Math.round(300.0 / tick_s);
+        for (int n = 1; n <= ticks; n++) {
+            double output = controller.nextValue(signal + sigma * random.nextGaussian());
+            double target = 10.0 * output;
+            signal = target + (signal - target) * Math.exp(-tick_s);
+            if (Double.isNaN(rise) && signal > 0.9 * setpoint) {
+                rise = n * tick_s;
+            }
+            if (n * tick_s > 50.0) {
+                sum += output;
+                sum_squares += output * output;
+                count++;
+            }
+        }
+        double mean = sum / count;
+        return new double[] {Math.sqrt(sum_squares / count - mean * mean), rise};
+    }
+
+    /**
+     * With a four times shorter averaging window, and so twice the noise,
+     * the filtered controller is as quiet as the unfiltered one with the
+     * long window, and as fast.
+     */
+    @Test
+    public void testSignalFilter() {
+        double[] long_window = noisyResponse(new PI_controller(0.02, 0.1, 100.0, 0.1), 0.1, 5.0);
+        double[] short_window = noisyResponse(new PI_controller(0.02, 0.1, 100.0, 0.025), 0.025, 10.0);
+        PI_controller filtered = new PI_controller(0.02, 0.1, 100.0, 0.025, false, true);
+        double[] short_filtered = noisyResponse(filtered, 0.025, 10.0);
+
+        assertNotNull(filtered.getSignalFilter());
+        assertTrue(short_filtered[0] < 0.8 * short_window[0]);
+        assertTrue(short_filtered[0] < long_window[0]);
+        assertEquals(long_window[1], short_filtered[1], 0.1 * long_window[1]);
+    }
+}
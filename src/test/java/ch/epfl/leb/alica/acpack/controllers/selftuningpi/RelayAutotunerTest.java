@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.controllers.selftuningpi;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the RelayAutotuner class.
+ */
+public class RelayAutotunerTest {
+
+    private static final double SAMPLING_PERIOD_S = 0.1;
+
+    /**
+     * Runs a relay test on a first-order plant with a gain of 10, a time
+     * constant of 1 s and a dead time of delay_ticks ticks.
+     */
+    private static RelayAutotuner runTest(RelayAutotuner.Rule rule, int delay_ticks) {
+        final double gain = 10.0;
+        final double tau = 1.0;
+        RelayAutotuner tuner = new RelayAutotuner(50.0, 0.0, 10.0, 0.5, 2, 200,
+                SAMPLING_PERIOD_S, rule);
+        double[] delayed = new double[delay_ticks + 1];
+        double signal = 0.0;
+        while (!tuner.isDone()) {
+            double output = tuner.nextOutput(signal);
+            // the plant sees the output after the dead time
+            System.arraycopy(delayed, 0, delayed, 1, delay_ticks);
+            delayed[0] = output;
+            double target = gain * delayed[delay_ticks];
+            signal = target + (signal - target) * Math.exp(-SAMPLING_PERIOD_S / tau);
+        }
+        return tuner;
+    }
+
+    /**
+     * The measured ultimate point is close to that of the plant. With the
+     * dead time and the hold of one tick, the plant lags by half a period
+     * at about 5 rad/s, where Ku = 0.51 and Tu = 1.25 s; the describing
+     * function underestimates Ku by about 15% for this plant.
+     */
+    @Test
+    public void testUltimatePoint() {
+        RelayAutotuner tuner = runTest(RelayAutotuner.Rule.ZIEGLER_NICHOLS, 3);
+        assertFalse(tuner.hasFailed());
+        assertTrue(tuner.getTicks() < 100);
+        assertEquals(0.51, tuner.getUltimateGain(), 0.25 * 0.51);
+        assertEquals(1.25, tuner.getUltimatePeriod(), 0.1);
+        assertEquals(0.45 * tuner.getUltimateGain(), tuner.getP(), 1e-12);
+        assertEquals(1.0, tuner.getProgress(), 1e-12);
+        assertEquals(0.0, tuner.nextOutput(0.0), 0.0);
+    }
+
+    /**
+     * Missed samples still count towards the ultimate period. Holding the
+     * output over two ticks slows the oscillation down, so the period is
+     * compared to the switching of the relay on the tick clock.
+     */
+    @Test
+    public void testMissedSamples() {
+        RelayAutotuner tuner = new RelayAutotuner(50.0, 0.0, 10.0, 0.5, 2, 200,
+                SAMPLING_PERIOD_S, RelayAutotuner.Rule.ZIEGLER_NICHOLS);
+        double[] delayed = new double[4];
+        double signal = 0.0;
+        double output = 0.0;
+        int tick = 0;
+        int last_switch_up = -1;
+        int period_ticks = 0;
+        while (!tuner.isDone()) {
+            tick++;
+            if (tick % 2 == 0) {
+                double previous = output;
+                output = tuner.nextOutput(signal, 2.0);
+                if (output > previous) {
+                    if (last_switch_up >= 0)
+                        period_ticks = tick - last_switch_up;
+                    last_switch_up = tick;
+                }
+            }
+            System.arraycopy(delayed, 0, delayed, 1, 3);
+            delayed[0] = output;
+            double target = 10.0 * delayed[3];
+            signal = target + (signal - target) * Math.exp(-SAMPLING_PERIOD_S);
+        }
+        assertFalse(tuner.hasFailed());
+        assertEquals(2 * tuner.getSamples(), tuner.getTicks(), 1e-12);
+        assertTrue(period_ticks > 0);
+        assertEquals(period_ticks * SAMPLING_PERIOD_S, tuner.getUltimatePeriod(), 0.2);
+    }
+
+    /**
+     * Tyreus-Luyben is more conservative than Ziegler-Nichols.
+     */
+    @Test
+    public void testRules() {
+        RelayAutotuner zn = runTest(RelayAutotuner.Rule.ZIEGLER_NICHOLS, 3);
+        RelayAutotuner tl = runTest(RelayAutotuner.Rule.TYREUS_LUYBEN, 3);
+        assertEquals(zn.getUltimateGain(), tl.getUltimateGain(), 1e-12);
+        assertTrue(tl.getP() < zn.getP());
+        assertTrue(tl.getIPerSecond() < zn.getIPerSecond());
+    }
+
+    /**
+     * The test fails if the loop does not oscillate in time.
+     */
+    @Test
+    public void testTimeout() {
+        RelayAutotuner tuner = new RelayAutotuner(50.0, 0.0, 10.0, 0.5, 2, 50,
+                SAMPLING_PERIOD_S, RelayAutotuner.Rule.ZIEGLER_NICHOLS);
+        for (int n = 0; n < 50; n++) {
+            tuner.nextOutput(0.0);
+        }
+        assertTrue(tuner.isDone());
+        assertTrue(tuner.hasFailed());
+        assertTrue(Double.isNaN(tuner.getP()));
+    }
+
+    /**
+     * Ensures that the relay levels are checked.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRelay() {
+        new RelayAutotuner(50.0, 10.0, 10.0, 0.5, 2, 200,
+                SAMPLING_PERIOD_S, RelayAutotuner.Rule.ZIEGLER_NICHOLS);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 Laboratory of Experimental Biophysics
+ * Ecole Polytechnique Federale de Lausanne
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.epfl.leb.alica.acpack.controllers.selftuningpi;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SelfTuningController class.
+ */
+public class SelfTuningControllerTest {
+    private SelfTuningController controller;
+
+    @Before
+    public void setUp() {
+        controller = new SelfTuningController(100.0, 0.1);
+    }
+
+    /**
+     * Runs the step calibration on a plant whose signal is ten times the
+     * output.
+     */
+    private void calibrate() {
+        controller.recalibrate(2.0, 0.3, 0.03);
+        double signal = 0.0;
+        for (int n = 0; n < 21; n++) {
+            signal = 10.0 * controller.nextValue(signal);
+        }
+    }
+
+    /**
+     * The calibration progress and result are published as snapshots.
+     */
+    @Test
+    public void testStatusSnapshot() {
+        assertEquals(TuningStatus.Phase.UNCALIBRATED, controller.getTuningStatus().phase);
+        controller.recalibrate(2.0, 0.3, 0.03);
+        assertEquals(TuningStatus.Phase.STEP_TEST, controller.getTuningStatus().phase);
+        assertTrue(Double.isNaN(controller.getTuningStatus().P));
+
+        calibrate();
+        TuningStatus status = controller.getTuningStatus();
+        assertEquals(TuningStatus.Phase.CALIBRATED, status.phase);
+        assertEquals(100, status.progress_percent);
+        assertEquals(2.0 * 0.3 / 20.0, status.P, 1e-12);
+        assertEquals("Calibrated.", status.getText());
+    }
+
+    /**
+     * Normal operation does not replace the snapshot.
+     */
+    @Test
+    public void testSteadyStateKeepsSnapshot() {
+        calibrate();
+        TuningStatus status = controller.getTuningStatus();
+        controller.setSetpoint(50.0);
+        double signal = 0.0;
+        for (int n = 0; n < 1000; n++) {
+            signal = 10.0 * controller.nextValue(signal);
+        }
+        assertSame(status, controller.getTuningStatus());
+    }
+
+    /**
+     * Ticks without a valid signal count towards the period of the relay
+     * test.
+     */
+    @Test
+    public void testRelayMissedTicks() {
+        controller.setSetpoint(50.0);
+        controller.recalibrateRelay(10.0, RelayAutotuner.Rule.ZIEGLER_NICHOLS);
+        RelayAutotuner reference = new RelayAutotuner(50.0, 0.0, 10.0,
+                SelfTuningController.RELAY_HYSTERESIS * 50.0,
+                SelfTuningController.RELAY_CYCLES, SelfTuningController.RELAY_MAX_TICKS,
+                0.1, RelayAutotuner.Rule.ZIEGLER_NICHOLS);
+        double[] delayed = new double[4];
+        double signal = 0.0;
+        double output = 0.0;
+        int tick = 0;
+        while (!reference.isDone()) {
+            tick++;
+            if (tick % 2 == 0) {
+                output = controller.nextValue(signal);
+                if (!reference.isDone()) {
+                    assertEquals(reference.nextOutput(signal, 2.0), output, 0.0);
+                }
+            } else {
+                assertEquals(output, controller.nextValue(Double.NaN), 0.0);
+            }
+            System.arraycopy(delayed, 0, delayed, 1, 3);
+            delayed[0] = output;
+            double target = 10.0 * delayed[3];
+            signal = target + (signal - target) * Math.exp(-0.1);
+        }
+        TuningStatus status = controller.getTuningStatus();
+        assertFalse(reference.hasFailed());
+        assertEquals(TuningStatus.Phase.CALIBRATED, status.phase);
+        assertEquals(reference.getP(), status.P, 1e-12);
+        assertEquals(reference.getIPerSecond() * 0.1, status.I, 1e-12);
+    }
+}